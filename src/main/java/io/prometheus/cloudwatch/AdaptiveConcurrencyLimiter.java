@@ -0,0 +1,150 @@
+package io.prometheus.cloudwatch;
+
+import java.util.function.Supplier;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+/**
+ * Limits how many AWS API requests are in flight at once, shared by all CloudWatch and tagging
+ * calls of a configuration.
+ *
+ * <p>When {@code minLimit} is below {@code maxLimit} the limit adapts AIMD-style: it grows by one
+ * for every window of successful requests whose latency stays within {@link #LATENCY_TOLERANCE} of
+ * the best latency seen, and is halved whenever a request is throttled. With {@code minLimit ==
+ * maxLimit} it is a plain fixed-size limiter.
+ *
+ * <p>The AWS SDK retries throttled attempts on its own before a call fails, so waiting for the
+ * call's exception would only notice throttling once the retries are used up. {@link
+ * SdkMetricsInterceptor} therefore reports every throttled attempt through {@link
+ * #throttledAttempt(String)}, which backs off the limiter of the call running on the current
+ * thread; the synchronous SDK clients make their attempts on the thread that made the call.
+ * Requests the SDK makes on the side, such as STS credential refreshes, run on the same thread but
+ * are a different operation, so their throttling is not charged to the call.
+ */
+final class AdaptiveConcurrencyLimiter {
+
+  static final double LATENCY_TOLERANCE = 2.0;
+  static final double BACKOFF_RATIO = 0.5;
+
+  private static final ThreadLocal<Call> CURRENT_CALL = new ThreadLocal<>();
+
+  /** A call in flight on some thread, remembered so that its throttled attempts find it. */
+  private static final class Call {
+    final AdaptiveConcurrencyLimiter limiter;
+    final String operation;
+    final long start;
+    boolean throttled;
+
+    Call(AdaptiveConcurrencyLimiter limiter, String operation, long start) {
+      this.limiter = limiter;
+      this.operation = operation;
+      this.start = start;
+    }
+  }
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private double limit;
+  private int inFlight;
+  private long minLatencyNanos = Long.MAX_VALUE;
+  private long lastBackoffNanos = Long.MIN_VALUE;
+
+  AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(
+          "Concurrency limits must satisfy 1 <= min <= max, got " + minLimit + " and " + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = minLimit;
+  }
+
+  /** The number of requests currently allowed in flight. */
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /** The most requests ever allowed in flight. */
+  int getMaxLimit() {
+    return maxLimit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * @param operation the API operation the call makes, such as {@code getMetricData}
+   */
+  <T> T call(String operation, Supplier<T> call) {
+    long start = acquire();
+    Call outer = CURRENT_CALL.get();
+    Call current = new Call(this, operation, start);
+    CURRENT_CALL.set(current);
+    try {
+      return call.get();
+    } catch (SdkServiceException e) {
+      current.throttled |= e.isThrottlingException();
+      throw e;
+    } finally {
+      if (outer == null) {
+        CURRENT_CALL.remove();
+      } else {
+        CURRENT_CALL.set(outer);
+      }
+      release(start, System.nanoTime(), current.throttled);
+    }
+  }
+
+  /**
+   * Backs off the limiter of the call running on the current thread, if any, as soon as one of its
+   * attempts is throttled rather than once the call has failed. Attempts of other operations made
+   * while the call is running are not the call's and leave its limiter alone.
+   *
+   * @param operation the SDK operation name of the attempt, such as {@code GetMetricData}
+   */
+  static void throttledAttempt(String operation) {
+    Call current = CURRENT_CALL.get();
+    if (current != null && current.operation.equalsIgnoreCase(operation)) {
+      current.throttled = true;
+      current.limiter.backOff(current.start, System.nanoTime());
+    }
+  }
+
+  private synchronized void backOff(long start, long now) {
+    // Only back off once for all the requests that were in flight when throttling started.
+    if (minLimit < maxLimit && start > lastBackoffNanos) {
+      limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+      lastBackoffNanos = now;
+    }
+  }
+
+  private synchronized long acquire() {
+    while (inFlight >= (int) limit) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting to call the AWS API", e);
+      }
+    }
+    inFlight++;
+    return System.nanoTime();
+  }
+
+  synchronized void release(long start, long end, boolean throttled) {
+    boolean saturated = inFlight >= (int) limit;
+    inFlight--;
+    if (throttled) {
+      backOff(start, end);
+    } else if (minLimit < maxLimit) {
+      long latency = end - start;
+      minLatencyNanos = Math.min(minLatencyNanos, latency);
+      // Growing the limit only makes sense when it is what keeps requests waiting.
+      if (saturated && latency <= LATENCY_TOLERANCE * minLatencyNanos) {
+        limit = Math.min(maxLimit, limit + 1 / Math.floor(limit));
+      }
+    }
+    notifyAll();
+  }
+}
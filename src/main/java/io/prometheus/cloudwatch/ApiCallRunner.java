@@ -0,0 +1,77 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Runs the AWS API calls made during a scrape, recording how long each one took by action and
+ * namespace and keeping the number of calls in flight within the limit of a shared {@link
+ * AdaptiveConcurrencyLimiter}.
+ *
+ * <p>Actions with a configured requests-per-second budget additionally wait for their {@link
+ * RequestRateLimiter} before taking a concurrency slot, so the budget is shared by all rules.
+ */
+final class ApiCallRunner {
+
+  private final Histogram apiRequestDuration;
+  private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+  private final Map<String, RequestRateLimiter> rateLimits;
+  private final Histogram rateLimitWait;
+  private final Gauge rateLimitQueued;
+
+  /**
+   * @param apiRequestDuration histogram with the label names {@code action} and {@code namespace}
+   * @param concurrencyLimiter limiter shared by all calls made through this runner
+   */
+  ApiCallRunner(Histogram apiRequestDuration, AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    this(apiRequestDuration, concurrencyLimiter, Collections.emptyMap(), null, null);
+  }
+
+  /**
+   * @param rateLimits rate limiters by action, actions without one are not rate limited
+   * @param rateLimitWait histogram with the label name {@code action}
+   * @param rateLimitQueued gauge with the label name {@code action}
+   */
+  ApiCallRunner(
+      Histogram apiRequestDuration,
+      AdaptiveConcurrencyLimiter concurrencyLimiter,
+      Map<String, RequestRateLimiter> rateLimits,
+      Histogram rateLimitWait,
+      Gauge rateLimitQueued) {
+    this.apiRequestDuration = apiRequestDuration;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.rateLimits = rateLimits;
+    this.rateLimitWait = rateLimitWait;
+    this.rateLimitQueued = rateLimitQueued;
+  }
+
+  AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  <T> T call(String action, String namespace, Supplier<T> call) {
+    RequestRateLimiter rateLimit = rateLimits.get(action);
+    if (rateLimit != null) {
+      Gauge.Child queued = rateLimitQueued.labels(action);
+      queued.inc();
+      try {
+        rateLimitWait.labels(action).observe(rateLimit.acquire() / 1.0E9);
+      } finally {
+        queued.dec();
+      }
+    }
+    return concurrencyLimiter.call(
+        action,
+        () -> {
+          Histogram.Timer timer = apiRequestDuration.labels(action, namespace).startTimer();
+          try {
+            return call.get();
+          } finally {
+            timer.observeDuration();
+          }
+        });
+  }
+}
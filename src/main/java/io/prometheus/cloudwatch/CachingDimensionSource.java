@@ -3,11 +3,17 @@ package io.prometheus.cloudwatch;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -31,6 +37,33 @@ final class CachingDimensionSource implements DimensionSource {
             .build();
   }
 
+  /**
+   * Copy the cached entries of rules that are still configured from the source replaced by a config
+   * reload, so unchanged rules do not all call ListMetrics again right after the reload. Entries
+   * keep the time they had left to live.
+   *
+   * @param previous the source of the previous config
+   * @param rules the rules of the new config
+   */
+  void carryOver(CachingDimensionSource previous, Collection<MetricRule> rules) {
+    Set<MetricRule> unchangedRules = new HashSet<>(rules);
+    Policy.VarExpiration<DimensionCacheKey, DimensionData> previousExpiration =
+        previous.cache.policy().expireVariably().orElseThrow();
+    Policy.VarExpiration<DimensionCacheKey, DimensionData> expiration =
+        cache.policy().expireVariably().orElseThrow();
+    for (Map.Entry<DimensionCacheKey, DimensionData> entry : previous.cache.asMap().entrySet()) {
+      if (!unchangedRules.contains(entry.getKey().rule)) {
+        continue;
+      }
+      OptionalLong remainingNanos =
+          previousExpiration.getExpiresAfter(entry.getKey(), TimeUnit.NANOSECONDS);
+      if (remainingNanos.isPresent() && remainingNanos.getAsLong() > 0) {
+        expiration.put(
+            entry.getKey(), entry.getValue(), remainingNanos.getAsLong(), TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
   @Override
   public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
     DimensionData cachedDimensions =
@@ -5,20 +5,39 @@ import static io.prometheus.cloudwatch.CachingDimensionSource.DimensionCacheConf
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.Describable;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
+import io.prometheus.cloudwatch.SeriesLabelCache.SeriesLabels;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.net.URI;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -27,6 +46,9 @@ import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.SafeConstructor;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
@@ -55,20 +77,404 @@ public class CloudWatchCollector extends Collector implements Describable {
   private static final Pattern DEFAULT_ARN_RESOURCE_ID_REGEXP =
       Pattern.compile("(?:([^:/]+)|[^:/]+/([^:]+))$");
 
-  static class ActiveConfig {
-    ArrayList<MetricRule> rules;
-    CloudWatchClient cloudWatchClient;
-    ResourceGroupsTaggingApiClient taggingClient;
-    DimensionSource dimensionSource;
+  // The ids GetMetricData accepts for queries.
+  private static final Pattern METRIC_MATH_ID = Pattern.compile("[a-z][a-zA-Z0-9_]*");
 
-    public ActiveConfig(ActiveConfig cfg) {
-      this.rules = new ArrayList<>(cfg.rules);
-      this.cloudWatchClient = cfg.cloudWatchClient;
-      this.taggingClient = cfg.taggingClient;
-      this.dimensionSource = cfg.dimensionSource;
+  /**
+   * Everything a scrape needs from the configuration. Instances are never modified after they are
+   * published through {@link #activeConfig}, so a scrape sees one consistent config even when a
+   * reload happens while it runs.
+   */
+  static final class ActiveConfig {
+    final List<MetricRule> rules;
+    final String region;
+    final CloudWatchClient cloudWatchClient;
+    final ResourceGroupsTaggingApiClient taggingClient;
+    final Map<String, AwsClients> additionalClients;
+    final DimensionSource dimensionSource;
+    // The ListMetrics cache inside dimensionSource, null when no rule caches.
+    final CachingDimensionSource cachingDimensionSource;
+    final ApiCallRunner apiCallRunner;
+    final Map<String, ApiCallRunner> accountRunners;
+    final int maxConcurrency;
+    final int maxTotalSeries;
+    final MetricStreamsConfig metricStreams;
+    final RemoteWriteConfig remoteWrite;
+    // The connection pool and credentials of the default clients, null when they were passed in.
+    final AccountConnection defaultConnection;
+
+    private int scrapes;
+    private boolean retired;
+    private Runnable onRetired;
+
+    ActiveConfig(
+        List<MetricRule> rules,
+        String region,
+        CloudWatchClient cloudWatchClient,
+        ResourceGroupsTaggingApiClient taggingClient,
+        Map<String, AwsClients> additionalClients,
+        DimensionSource dimensionSource,
+        CachingDimensionSource cachingDimensionSource,
+        ApiCallRunner apiCallRunner,
+        Map<String, ApiCallRunner> accountRunners,
+        int maxConcurrency,
+        int maxTotalSeries,
+        MetricStreamsConfig metricStreams,
+        RemoteWriteConfig remoteWrite,
+        AccountConnection defaultConnection) {
+      this.rules = Collections.unmodifiableList(rules);
+      this.region = region;
+      this.cloudWatchClient = cloudWatchClient;
+      this.taggingClient = taggingClient;
+      this.additionalClients = Collections.unmodifiableMap(additionalClients);
+      this.dimensionSource = dimensionSource;
+      this.cachingDimensionSource = cachingDimensionSource;
+      this.apiCallRunner = apiCallRunner;
+      this.accountRunners = Collections.unmodifiableMap(accountRunners);
+      this.maxConcurrency = maxConcurrency;
+      this.maxTotalSeries = maxTotalSeries;
+      this.metricStreams = metricStreams;
+      this.remoteWrite = remoteWrite;
+      this.defaultConnection = defaultConnection;
+    }
+
+    /** Registers a scrape using the clients of this config, unless it was replaced already. */
+    synchronized boolean beginScrape() {
+      if (retired) {
+        return false;
+      }
+      scrapes++;
+      return true;
+    }
+
+    synchronized void endScrape() {
+      scrapes--;
+      if (retired && scrapes == 0) {
+        runOnRetired();
+      }
+    }
+
+    /**
+     * Marks this config as replaced, running {@code closeDropped} once no scrape uses its clients
+     * anymore.
+     */
+    synchronized void retire(Runnable closeDropped) {
+      retired = true;
+      onRetired = closeDropped;
+      if (scrapes == 0) {
+        runOnRetired();
+      }
+    }
+
+    private void runOnRetired() {
+      if (onRetired != null) {
+        onRetired.run();
+        onRetired = null;
+      }
+    }
+
+    CloudWatchClient cloudWatchClientFor(MetricRule rule) {
+      String key = clientsKey(rule, region);
+      return key == null ? cloudWatchClient : additionalClients.get(key).cloudWatchClient;
+    }
+
+    ResourceGroupsTaggingApiClient taggingClientFor(MetricRule rule) {
+      String key = clientsKey(rule, region);
+      return key == null ? taggingClient : additionalClients.get(key).taggingClient;
+    }
+
+    ApiCallRunner apiCallRunnerFor(MetricRule rule) {
+      return rule.accountId == null ? apiCallRunner : accountRunners.get(rule.accountId);
+    }
+  }
+
+  /** The clients of an account or region other than the default one. */
+  static final class AwsClients {
+    final CloudWatchClient cloudWatchClient;
+    final ResourceGroupsTaggingApiClient taggingClient;
+    // What the clients were built with, null for clients passed in, which are never rebuilt.
+    final AccountConnection connection;
+
+    AwsClients(CloudWatchClient cloudWatchClient, ResourceGroupsTaggingApiClient taggingClient) {
+      this(cloudWatchClient, taggingClient, null);
+    }
+
+    AwsClients(
+        CloudWatchClient cloudWatchClient,
+        ResourceGroupsTaggingApiClient taggingClient,
+        AccountConnection connection) {
+      this.cloudWatchClient = cloudWatchClient;
+      this.taggingClient = taggingClient;
+      this.connection = connection;
+    }
+
+    /** Whether these clients can serve an account configured with the given settings. */
+    boolean isFor(ConnectionSettings settings) {
+      return connection == null || connection.settings.equals(settings);
+    }
+  }
+
+  /** The settings of the HTTP connection pool, null where the SDK default applies. */
+  static final class HttpClientSettings {
+    private static final Set<String> KEYS =
+        new HashSet<>(
+            Arrays.asList(
+                "max_connections",
+                "connection_ttl_seconds",
+                "connection_max_idle_seconds",
+                "connection_acquisition_timeout_seconds",
+                "tcp_keep_alive"));
+
+    final Integer maxConnections;
+    final Duration connectionTtl;
+    final Duration connectionMaxIdle;
+    final Duration connectionAcquisitionTimeout;
+    final Boolean tcpKeepAlive;
+
+    HttpClientSettings(
+        Integer maxConnections,
+        Duration connectionTtl,
+        Duration connectionMaxIdle,
+        Duration connectionAcquisitionTimeout,
+        Boolean tcpKeepAlive) {
+      this.maxConnections = maxConnections;
+      this.connectionTtl = connectionTtl;
+      this.connectionMaxIdle = connectionMaxIdle;
+      this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+      this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    static HttpClientSettings parse(Map<String, Object> yaml) {
+      for (String key : yaml.keySet()) {
+        if (!KEYS.contains(key)) {
+          throw new IllegalArgumentException("Unknown http_client setting " + key);
+        }
+      }
+      Object maxConnections = yaml.get("max_connections");
+      if (maxConnections != null
+          && (!(maxConnections instanceof Integer) || (Integer) maxConnections < 1)) {
+        throw new IllegalArgumentException(
+            "http_client max_connections must be a positive integer, got " + maxConnections);
+      }
+      Object tcpKeepAlive = yaml.get("tcp_keep_alive");
+      if (tcpKeepAlive != null && !(tcpKeepAlive instanceof Boolean)) {
+        throw new IllegalArgumentException(
+            "http_client tcp_keep_alive must be a boolean, got " + tcpKeepAlive);
+      }
+      return new HttpClientSettings(
+          (Integer) maxConnections,
+          seconds(yaml, "connection_ttl_seconds"),
+          seconds(yaml, "connection_max_idle_seconds"),
+          seconds(yaml, "connection_acquisition_timeout_seconds"),
+          (Boolean) tcpKeepAlive);
+    }
+
+    private static Duration seconds(Map<String, Object> yaml, String key) {
+      Object value = yaml.get(key);
+      if (value == null) {
+        return null;
+      }
+      if (!(value instanceof Number) || ((Number) value).doubleValue() <= 0) {
+        throw new IllegalArgumentException(
+            "http_client " + key + " must be a positive number of seconds, got " + value);
+      }
+      return Duration.ofMillis(Math.round(((Number) value).doubleValue() * 1000));
+    }
+
+    SdkHttpClient build() {
+      ApacheHttpClient.Builder builder = ApacheHttpClient.builder();
+      if (maxConnections != null) {
+        builder.maxConnections(maxConnections);
+      }
+      if (connectionTtl != null) {
+        builder.connectionTimeToLive(connectionTtl);
+      }
+      if (connectionMaxIdle != null) {
+        builder.connectionMaxIdleTime(connectionMaxIdle);
+      }
+      if (connectionAcquisitionTimeout != null) {
+        builder.connectionAcquisitionTimeout(connectionAcquisitionTimeout);
+      }
+      if (tcpKeepAlive != null) {
+        builder.tcpKeepAlive(tcpKeepAlive);
+      }
+      return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      HttpClientSettings that = (HttpClientSettings) o;
+      return Objects.equals(maxConnections, that.maxConnections)
+          && Objects.equals(connectionTtl, that.connectionTtl)
+          && Objects.equals(connectionMaxIdle, that.connectionMaxIdle)
+          && Objects.equals(connectionAcquisitionTimeout, that.connectionAcquisitionTimeout)
+          && Objects.equals(tcpKeepAlive, that.tcpKeepAlive);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          maxConnections,
+          connectionTtl,
+          connectionMaxIdle,
+          connectionAcquisitionTimeout,
+          tcpKeepAlive);
+    }
+  }
+
+  /**
+   * The configuration the clients of an account are built from. Clients built from different
+   * settings are not reused by a configuration reload.
+   */
+  static final class ConnectionSettings {
+    final String roleArn;
+    final String stsRegion;
+    final HttpClientSettings httpClient;
+
+    ConnectionSettings(String roleArn, String stsRegion, HttpClientSettings httpClient) {
+      this.roleArn = roleArn;
+      this.stsRegion = stsRegion;
+      this.httpClient = httpClient;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      ConnectionSettings that = (ConnectionSettings) o;
+      return Objects.equals(roleArn, that.roleArn)
+          && Objects.equals(stsRegion, that.stsRegion)
+          && Objects.equals(httpClient, that.httpClient);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(roleArn, stsRegion, httpClient);
+    }
+  }
+
+  /**
+   * The connection pool and assumed role credentials shared by the clients of an account, closed
+   * once a configuration reload dropped all of them.
+   */
+  static final class AccountConnection {
+    final ConnectionSettings settings;
+    final SdkHttpClient httpClient;
+    final StsClient stsClient;
+    final StsAssumeRoleCredentialsProvider credentialsProvider;
+
+    AccountConnection(
+        ConnectionSettings settings,
+        SdkHttpClient httpClient,
+        StsClient stsClient,
+        StsAssumeRoleCredentialsProvider credentialsProvider) {
+      this.settings = settings;
+      this.httpClient = httpClient;
+      this.stsClient = stsClient;
+      this.credentialsProvider = credentialsProvider;
+    }
+
+    void close() {
+      if (credentialsProvider != null) {
+        credentialsProvider.close();
+      }
+      if (stsClient != null) {
+        stsClient.close();
+      }
+      httpClient.close();
+    }
+  }
+
+  /** How metrics pushed through CloudWatch Metric Streams are received and exported. */
+  static final class MetricStreamsConfig {
+    final MetricStreamDecoder.Format format;
+    final String accessKey;
+    final Duration seriesTtl;
+    final boolean setTimestamp;
+    // The most series held at once, 0 for no limit.
+    final int maxSeries;
+
+    MetricStreamsConfig(
+        MetricStreamDecoder.Format format,
+        String accessKey,
+        Duration seriesTtl,
+        boolean setTimestamp,
+        int maxSeries) {
+      this.format = format;
+      this.accessKey = accessKey;
+      this.seriesTtl = seriesTtl;
+      this.setTimestamp = setTimestamp;
+      this.maxSeries = maxSeries;
+    }
+  }
+
+  /** Where and how often the collected samples are pushed with remote write. */
+  static final class RemoteWriteConfig {
+    final URI url;
+    final Duration pushInterval;
+    final int shards;
+    final int maxSamplesPerSend;
+    final int capacity;
+    final int maxRetries;
+    final Duration timeout;
+
+    RemoteWriteConfig(
+        URI url,
+        Duration pushInterval,
+        int shards,
+        int maxSamplesPerSend,
+        int capacity,
+        int maxRetries,
+        Duration timeout) {
+      this.url = url;
+      this.pushInterval = pushInterval;
+      this.shards = shards;
+      this.maxSamplesPerSend = maxSamplesPerSend;
+      this.capacity = capacity;
+      this.maxRetries = maxRetries;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      RemoteWriteConfig that = (RemoteWriteConfig) o;
+      return shards == that.shards
+          && maxSamplesPerSend == that.maxSamplesPerSend
+          && capacity == that.capacity
+          && maxRetries == that.maxRetries
+          && url.equals(that.url)
+          && pushInterval.equals(that.pushInterval)
+          && timeout.equals(that.timeout);
     }
 
-    public ActiveConfig() {}
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          url, pushInterval, shards, maxSamplesPerSend, capacity, maxRetries, timeout);
+    }
+  }
+
+  /** An account metrics are scraped from, through a role of its own. */
+  static final class AccountGroup {
+    final String accountId;
+    final String roleArn;
+    final List<String> regions;
+    final Map<String, Object> requestsPerSecond;
+
+    AccountGroup(
+        String accountId,
+        String roleArn,
+        List<String> regions,
+        Map<String, Object> requestsPerSecond) {
+      this.accountId = accountId;
+      this.roleArn = roleArn;
+      this.regions = regions;
+      this.requestsPerSecond = requestsPerSecond;
+    }
   }
 
   static class AWSTagSelect {
@@ -76,9 +482,74 @@ public class CloudWatchCollector extends Collector implements Describable {
     String resourceIdDimension;
     Map<String, List<String>> tagSelections;
     Pattern arnResourceIdRegexp;
+    boolean listByResourceId;
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      AWSTagSelect that = (AWSTagSelect) o;
+      return listByResourceId == that.listByResourceId
+          && Objects.equals(resourceTypeSelection, that.resourceTypeSelection)
+          && Objects.equals(resourceIdDimension, that.resourceIdDimension)
+          && Objects.equals(tagSelections, that.tagSelections)
+          && Objects.equals(regex(arnResourceIdRegexp), regex(that.arnResourceIdRegexp));
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          resourceTypeSelection,
+          resourceIdDimension,
+          tagSelections,
+          regex(arnResourceIdRegexp),
+          listByResourceId);
+    }
+
+    // Pattern has identity equality, two patterns compiled from the same regex are the same.
+    private static String regex(Pattern pattern) {
+      return pattern == null ? null : pattern.pattern();
+    }
   }
 
-  ActiveConfig activeConfig = new ActiveConfig();
+  /** The metric families scraped for a single rule, and the tag mappings it looked up. */
+  static class RuleScrape {
+    final MetricRule rule;
+    final List<MetricFamilySamples> metricFamilies = new ArrayList<>();
+    // The labels of every series with data, in the order they were scraped.
+    final List<SeriesLabels> series = new ArrayList<>();
+    List<ResourceTagMapping> resourceTagMappings = Collections.emptyList();
+
+    RuleScrape(MetricRule rule) {
+      this.rule = rule;
+    }
+  }
+
+  final AtomicReference<ActiveConfig> activeConfig = new AtomicReference<>();
+
+  // Held while a config is loaded and swapped in, so that concurrent reloads do not both build on
+  // the same previous config and close clients the other one still uses.
+  private final Object configLock = new Object();
+
+  // Outlives config reloads, so that streamed series survive until they expire.
+  final MetricStreamStore metricStreamStore = new MetricStreamStore();
+
+  // Labels of the series found by the last scrape of each rule, reused by the next one.
+  final SeriesLabelCache seriesLabelCache = new SeriesLabelCache();
+
+  // The latest datapoints of each rule with incremental_fetch, by GetMetricData result key.
+  final Map<MetricRule, Map<DimensionFingerprint, MetricRuleData>> latestDatapoints =
+      new ConcurrentHashMap<>();
+
+  // Pushes the collected samples while remote_write is configured, replaced when it changes.
+  private RemoteWriter remoteWriter;
+
+  private static final ThreadFactory SCRAPE_THREAD_FACTORY =
+      runnable -> {
+        Thread thread = new Thread(runnable, "cloudwatch-exporter-scrape");
+        thread.setDaemon(true);
+        return thread;
+      };
 
   private static final Counter cloudwatchRequests =
       Counter.build()
@@ -101,7 +572,59 @@ public class CloudWatchCollector extends Collector implements Describable {
           .help("API requests made to the Resource Groups Tagging API")
           .register();
 
-  private static final List<String> brokenDynamoMetrics =
+  private static final Histogram apiRequestDuration =
+      Histogram.build()
+          .labelNames("action", "namespace")
+          .name("cloudwatch_exporter_api_request_duration_seconds")
+          .help("Time taken by CloudWatch and Resource Groups Tagging API requests, in seconds")
+          .register();
+
+  private static final Histogram apiRateLimitWait =
+      Histogram.build()
+          .labelNames("action")
+          .name("cloudwatch_exporter_api_rate_limit_wait_seconds")
+          .help("Time API requests waited for their api_requests_per_second budget, in seconds")
+          .register();
+
+  private static final Gauge apiRateLimitQueued =
+      Gauge.build()
+          .labelNames("action")
+          .name("cloudwatch_exporter_api_rate_limit_queued_requests")
+          .help("API requests currently waiting for their api_requests_per_second budget")
+          .register();
+
+  // Keys of api_requests_per_second, mapped to the actions passed to ApiCallRunner.
+  private static final Map<String, String> RATE_LIMITED_ACTIONS =
+      Map.of(
+          "list_metrics", "listMetrics",
+          "get_metric_data", "getMetricData",
+          "get_metric_statistics", "getMetricStatistics",
+          "get_resources", "getResources");
+
+  static final Counter droppedSeries =
+      Counter.build()
+          .labelNames("namespace", "metric_name", "limit")
+          .name("cloudwatch_exporter_dropped_series_total")
+          .help(
+              "Series left out of a scrape to stay within max_series or max_total_series, or out"
+                  + " of Metric Streams to stay within max_streamed_series")
+          .register();
+
+  private static final Histogram ruleStageDuration =
+      Histogram.build()
+          .labelNames("namespace", "metric_name", "stage")
+          .name("cloudwatch_exporter_rule_stage_duration_seconds")
+          .help(
+              "Time spent scraping a metric rule, by stage: tag_lookup, dimension_listing,"
+                  + " data_fetch or sample_building")
+          .register();
+
+  private static final ClientOverrideConfiguration clientOverrideConfiguration =
+      ClientOverrideConfiguration.builder()
+          .addExecutionInterceptor(new SdkMetricsInterceptor())
+          .build();
+
+  static final List<String> brokenDynamoMetrics =
       Arrays.asList(
           "ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits",
           "ProvisionedReadCapacityUnits", "ProvisionedWriteCapacityUnits",
@@ -148,7 +671,7 @@ public class CloudWatchCollector extends Collector implements Describable {
       Map<String, Object> config,
       CloudWatchClient cloudWatchClient,
       ResourceGroupsTaggingApiClient taggingClient) {
-    loadConfig(config, cloudWatchClient, taggingClient);
+    loadConfig(config, cloudWatchClient, taggingClient, Collections.emptyMap());
   }
 
   @Override
@@ -164,7 +687,10 @@ public class CloudWatchCollector extends Collector implements Describable {
   protected void reloadConfig() throws IOException {
     LOGGER.log(Level.INFO, "Reloading configuration");
     try (FileReader reader = new FileReader(WebServer.configFilePath); ) {
-      loadConfig(reader, activeConfig.cloudWatchClient, activeConfig.taggingClient);
+      synchronized (configLock) {
+        ActiveConfig config = activeConfig.get();
+        loadConfig(reader, config.cloudWatchClient, config.taggingClient, config.additionalClients);
+      }
     }
   }
 
@@ -178,17 +704,44 @@ public class CloudWatchCollector extends Collector implements Describable {
   @SuppressWarnings("unchecked")
   protected void loadConfig(
       Reader in, CloudWatchClient cloudWatchClient, ResourceGroupsTaggingApiClient taggingClient) {
+    loadConfig(in, cloudWatchClient, taggingClient, Collections.emptyMap());
+  }
+
+  /**
+   * Loads configuration from a reader, additionally reusing the clients of accounts and regions
+   * other than the default ones.
+   *
+   * @param additionalClients existing clients by {@link #clientsKey}, missing ones are created
+   */
+  @SuppressWarnings("unchecked")
+  void loadConfig(
+      Reader in,
+      CloudWatchClient cloudWatchClient,
+      ResourceGroupsTaggingApiClient taggingClient,
+      Map<String, AwsClients> additionalClients) {
     loadConfig(
         (Map<String, Object>) new Yaml(new SafeConstructor(new LoaderOptions())).load(in),
         cloudWatchClient,
-        taggingClient);
+        taggingClient,
+        additionalClients);
   }
 
-  @SuppressWarnings("unchecked")
   private void loadConfig(
       Map<String, Object> config,
       CloudWatchClient cloudWatchClient,
-      ResourceGroupsTaggingApiClient taggingClient) {
+      ResourceGroupsTaggingApiClient taggingClient,
+      Map<String, AwsClients> previousClients) {
+    synchronized (configLock) {
+      loadConfigLocked(config, cloudWatchClient, taggingClient, previousClients);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void loadConfigLocked(
+      Map<String, Object> config,
+      CloudWatchClient cloudWatchClient,
+      ResourceGroupsTaggingApiClient taggingClient,
+      Map<String, AwsClients> previousClients) {
     if (config == null) { // Yaml config empty, set config to empty map.
       config = new HashMap<>();
     }
@@ -216,201 +769,777 @@ public class CloudWatchCollector extends Collector implements Describable {
       defaultUseGetMetricData = (Boolean) config.get("use_get_metric_data");
     }
 
+    boolean defaultIncrementalFetch = false;
+    if (config.containsKey("incremental_fetch")) {
+      defaultIncrementalFetch = (Boolean) config.get("incremental_fetch");
+    }
+
+    boolean defaultBackfill = false;
+    if (config.containsKey("backfill")) {
+      defaultBackfill = (Boolean) config.get("backfill");
+    }
+
+    boolean defaultIncludeLinkedAccounts = false;
+    if (config.containsKey("include_linked_accounts")) {
+      defaultIncludeLinkedAccounts = (Boolean) config.get("include_linked_accounts");
+    }
+
     Duration defaultMetricCacheSeconds = Duration.ofSeconds(0);
     if (config.containsKey("list_metrics_cache_ttl")) {
       defaultMetricCacheSeconds =
           Duration.ofSeconds(((Number) config.get("list_metrics_cache_ttl")).intValue());
     }
 
+    int defaultMaxSeries = 0;
+    if (config.containsKey("max_series")) {
+      defaultMaxSeries = ((Number) config.get("max_series")).intValue();
+    }
+    int defaultListMetricsPartitions = DefaultDimensionSource.DEFAULT_LIST_METRICS_PARTITIONS;
+    if (config.containsKey("list_metrics_partitions")) {
+      defaultListMetricsPartitions = ((Number) config.get("list_metrics_partitions")).intValue();
+    }
+    int maxTotalSeries = 0;
+    if (config.containsKey("max_total_series")) {
+      maxTotalSeries = ((Number) config.get("max_total_series")).intValue();
+    }
+
     boolean defaultWarnOnMissingDimensions = false;
     if (config.containsKey("warn_on_empty_list_dimensions")) {
       defaultWarnOnMissingDimensions = (Boolean) config.get("warn_on_empty_list_dimensions");
     }
 
+    int maxConcurrency = 1;
+    if (config.containsKey("max_concurrency")) {
+      maxConcurrency = ((Number) config.get("max_concurrency")).intValue();
+    }
+    boolean adaptiveConcurrency = false;
+    if (config.containsKey("adaptive_concurrency")) {
+      adaptiveConcurrency = (Boolean) config.get("adaptive_concurrency");
+    }
+
+    Map<String, Object> defaultRequestsPerSecond =
+        (Map<String, Object>)
+            config.getOrDefault("api_requests_per_second", Collections.emptyMap());
+    HttpClientSettings httpClientSettings =
+        HttpClientSettings.parse(
+            (Map<String, Object>) config.getOrDefault("http_client", Collections.emptyMap()));
+
+    Shard shard =
+        new Shard(
+            ((Number) config.getOrDefault("shard_index", 0)).intValue(),
+            ((Number) config.getOrDefault("shard_count", 1)).intValue());
+
     String region = (String) config.get("region");
 
-    if (cloudWatchClient == null) {
-      CloudWatchClientBuilder clientBuilder = CloudWatchClient.builder();
+    // Rules without regions of their own are scraped from the default region only, without a
+    // region label, unless a list of regions is configured globally.
+    List<String> defaultRegions = Collections.singletonList(null);
+    if (config.containsKey("regions")) {
+      defaultRegions = (List<String>) config.get("regions");
+    }
 
-      if (config.containsKey("role_arn")) {
-        clientBuilder.credentialsProvider(getRoleCredentialProvider(config));
+    // Without account groups every metric is scraped from the account of the exporter's own
+    // credentials, or of role_arn.
+    List<AccountGroup> accountGroups = new ArrayList<>();
+    if (config.containsKey("accounts")) {
+      for (Map<String, Object> yamlAccount : (List<Map<String, Object>>) config.get("accounts")) {
+        if (!(yamlAccount.get("account_id") instanceof String)
+            || !yamlAccount.containsKey("role_arn")) {
+          throw new IllegalArgumentException(
+              "Must provide account_id, as a quoted string, and role_arn for every account");
+        }
+        accountGroups.add(
+            new AccountGroup(
+                (String) yamlAccount.get("account_id"),
+                (String) yamlAccount.get("role_arn"),
+                (List<String>) yamlAccount.getOrDefault("regions", defaultRegions),
+                (Map<String, Object>)
+                    yamlAccount.getOrDefault("api_requests_per_second", defaultRequestsPerSecond)));
       }
+    } else {
+      accountGroups.add(
+          new AccountGroup(
+              null, (String) config.get("role_arn"), defaultRegions, defaultRequestsPerSecond));
+    }
 
-      if (region != null) {
-        clientBuilder.region(Region.of(region));
+    MetricStreamsConfig metricStreams = null;
+    if (config.containsKey("metric_streams")) {
+      Map<String, Object> yamlMetricStreams = (Map<String, Object>) config.get("metric_streams");
+      String format = (String) yamlMetricStreams.getOrDefault("format", "json");
+      MetricStreamDecoder.Format streamFormat;
+      if (format.equals("json")) {
+        streamFormat = MetricStreamDecoder.Format.JSON;
+      } else if (format.equals("opentelemetry0.7")) {
+        streamFormat = MetricStreamDecoder.Format.OPENTELEMETRY_0_7;
+      } else {
+        throw new IllegalArgumentException(
+            "metric_streams format must be json or opentelemetry0.7, got " + format);
+      }
+      metricStreams =
+          new MetricStreamsConfig(
+              streamFormat,
+              (String) yamlMetricStreams.get("access_key"),
+              Duration.ofSeconds(
+                  ((Number) yamlMetricStreams.getOrDefault("series_ttl_seconds", 600)).longValue()),
+              defaultCloudwatchTimestamp,
+              ((Number) yamlMetricStreams.getOrDefault("max_streamed_series", 100000)).intValue());
+      if (metricStreams.maxSeries < 0) {
+        throw new IllegalArgumentException(
+            "metric_streams max_streamed_series must not be negative, got "
+                + metricStreams.maxSeries);
+      }
+      if (metricStreams.accessKey == null) {
+        LOGGER.warning(
+            "metric_streams has no access_key, anyone who can reach /metric-streams can push"
+                + " series");
       }
-
-      cloudWatchClient = clientBuilder.build();
     }
 
-    if (taggingClient == null) {
-      ResourceGroupsTaggingApiClientBuilder clientBuilder =
-          ResourceGroupsTaggingApiClient.builder();
-
-      if (config.containsKey("role_arn")) {
-        clientBuilder.credentialsProvider(getRoleCredentialProvider(config));
+    RemoteWriteConfig remoteWrite = null;
+    if (config.containsKey("remote_write")) {
+      Map<String, Object> yamlRemoteWrite = (Map<String, Object>) config.get("remote_write");
+      if (!(yamlRemoteWrite.get("url") instanceof String)) {
+        throw new IllegalArgumentException("remote_write must have a url");
       }
-      if (region != null) {
-        clientBuilder.region(Region.of(region));
+      remoteWrite =
+          new RemoteWriteConfig(
+              URI.create((String) yamlRemoteWrite.get("url")),
+              Duration.ofSeconds(
+                  ((Number) yamlRemoteWrite.getOrDefault("push_interval_seconds", 60)).longValue()),
+              ((Number) yamlRemoteWrite.getOrDefault("shards", 1)).intValue(),
+              ((Number) yamlRemoteWrite.getOrDefault("max_samples_per_send", 2000)).intValue(),
+              ((Number) yamlRemoteWrite.getOrDefault("capacity", 10000)).intValue(),
+              ((Number) yamlRemoteWrite.getOrDefault("max_retries", 10)).intValue(),
+              Duration.ofSeconds(
+                  ((Number) yamlRemoteWrite.getOrDefault("remote_timeout_seconds", 30))
+                      .longValue()));
+      if (remoteWrite.pushInterval.isZero()
+          || remoteWrite.pushInterval.isNegative()
+          || remoteWrite.shards < 1
+          || remoteWrite.maxSamplesPerSend < 1
+          || remoteWrite.capacity < 1
+          || remoteWrite.maxRetries < 0) {
+        throw new IllegalArgumentException(
+            "remote_write push_interval_seconds, shards, max_samples_per_send and capacity must be"
+                + " positive, max_retries must not be negative");
       }
-      taggingClient = clientBuilder.build();
     }
 
-    if (!config.containsKey("metrics")) {
+    // Metrics may all be pushed through Metric Streams, leaving nothing to poll.
+    if (!config.containsKey("metrics") && metricStreams == null) {
       throw new IllegalArgumentException("Must provide metrics");
     }
 
     DimensionCacheConfig metricCacheConfig = new DimensionCacheConfig(defaultMetricCacheSeconds);
     ArrayList<MetricRule> rules = new ArrayList<>();
 
-    for (Object ruleObject : (List<Map<String, Object>>) config.get("metrics")) {
+    for (Object ruleObject :
+        (List<Map<String, Object>>) config.getOrDefault("metrics", Collections.emptyList())) {
       Map<String, Object> yamlMetricRule = (Map<String, Object>) ruleObject;
-      MetricRule rule = new MetricRule();
-      rules.add(rule);
-      if (!yamlMetricRule.containsKey("aws_namespace")
-          || !yamlMetricRule.containsKey("aws_metric_name")) {
-        throw new IllegalArgumentException("Must provide aws_namespace and aws_metric_name");
-      }
-      rule.awsNamespace = (String) yamlMetricRule.get("aws_namespace");
-      rule.awsMetricName = (String) yamlMetricRule.get("aws_metric_name");
-      if (yamlMetricRule.containsKey("help")) {
-        rule.help = (String) yamlMetricRule.get("help");
-      }
-      if (yamlMetricRule.containsKey("aws_dimensions")) {
-        rule.awsDimensions = (List<String>) yamlMetricRule.get("aws_dimensions");
-      }
-      if (yamlMetricRule.containsKey("aws_dimension_select")
-          && yamlMetricRule.containsKey("aws_dimension_select_regex")) {
-        throw new IllegalArgumentException(
-            "Must not provide aws_dimension_select and aws_dimension_select_regex at the same time");
-      }
-      if (yamlMetricRule.containsKey("aws_dimension_select")) {
-        rule.awsDimensionSelect =
-            (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select");
-      }
-      if (yamlMetricRule.containsKey("aws_dimension_select_regex")) {
-        rule.awsDimensionSelectRegex =
-            (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select_regex");
-      }
-      if (yamlMetricRule.containsKey("aws_statistics")) {
-        rule.awsStatistics = new ArrayList<>();
-        for (String statistic : (List<String>) yamlMetricRule.get("aws_statistics")) {
-          rule.awsStatistics.add(Statistic.fromValue(statistic));
+      for (AccountGroup account : accountGroups) {
+        List<String> ruleRegions = account.regions;
+        if (yamlMetricRule.containsKey("regions")) {
+          ruleRegions = (List<String>) yamlMetricRule.get("regions");
         }
-      } else if (!yamlMetricRule.containsKey("aws_extended_statistics")) {
-        rule.awsStatistics = new ArrayList<>();
-        for (String statistic :
-            Arrays.asList("Sum", "SampleCount", "Minimum", "Maximum", "Average")) {
-          rule.awsStatistics.add(Statistic.fromValue(statistic));
+        for (String ruleRegion : ruleRegions) {
+          MetricRule rule = new MetricRule();
+          rules.add(rule);
+          rule.accountId = account.accountId;
+          rule.region = ruleRegion;
+          if (!yamlMetricRule.containsKey("aws_namespace")
+              || !yamlMetricRule.containsKey("aws_metric_name")) {
+            throw new IllegalArgumentException("Must provide aws_namespace and aws_metric_name");
+          }
+          rule.awsNamespace = (String) yamlMetricRule.get("aws_namespace");
+          rule.awsMetricName = (String) yamlMetricRule.get("aws_metric_name");
+          if (yamlMetricRule.containsKey("help")) {
+            rule.help = (String) yamlMetricRule.get("help");
+          }
+          if (yamlMetricRule.containsKey("aws_dimensions")) {
+            rule.awsDimensions = (List<String>) yamlMetricRule.get("aws_dimensions");
+          }
+          if (yamlMetricRule.containsKey("aws_dimension_select")
+              && yamlMetricRule.containsKey("aws_dimension_select_regex")) {
+            throw new IllegalArgumentException(
+                "Must not provide aws_dimension_select and aws_dimension_select_regex at the same time");
+          }
+          if (yamlMetricRule.containsKey("aws_dimension_select")) {
+            rule.awsDimensionSelect =
+                (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select");
+          }
+          if (yamlMetricRule.containsKey("aws_dimension_select_regex")) {
+            rule.awsDimensionSelectRegex =
+                (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select_regex");
+          }
+          if (yamlMetricRule.containsKey("aws_statistics")) {
+            rule.awsStatistics = new ArrayList<>();
+            for (String statistic : (List<String>) yamlMetricRule.get("aws_statistics")) {
+              rule.awsStatistics.add(Statistic.fromValue(statistic));
+            }
+          } else if (yamlMetricRule.containsKey("metric_math")) {
+            // Only the expressions are exported unless statistics are asked for as well.
+            rule.awsStatistics = new ArrayList<>();
+          } else if (!yamlMetricRule.containsKey("aws_extended_statistics")) {
+            rule.awsStatistics = new ArrayList<>();
+            for (String statistic :
+                Arrays.asList("Sum", "SampleCount", "Minimum", "Maximum", "Average")) {
+              rule.awsStatistics.add(Statistic.fromValue(statistic));
+            }
+          }
+          if (yamlMetricRule.containsKey("aws_extended_statistics")) {
+            rule.awsExtendedStatistics =
+                (List<String>) yamlMetricRule.get("aws_extended_statistics");
+          }
+          if (yamlMetricRule.containsKey("period_seconds")) {
+            rule.periodSeconds = ((Number) yamlMetricRule.get("period_seconds")).intValue();
+          } else {
+            rule.periodSeconds = defaultPeriod;
+          }
+          if (yamlMetricRule.containsKey("range_seconds")) {
+            rule.rangeSeconds = ((Number) yamlMetricRule.get("range_seconds")).intValue();
+          } else {
+            rule.rangeSeconds = defaultRange;
+          }
+          if (yamlMetricRule.containsKey("delay_seconds")) {
+            rule.delaySeconds = ((Number) yamlMetricRule.get("delay_seconds")).intValue();
+          } else {
+            rule.delaySeconds = defaultDelay;
+          }
+          if (yamlMetricRule.containsKey("set_timestamp")) {
+            rule.cloudwatchTimestamp = (Boolean) yamlMetricRule.get("set_timestamp");
+          } else {
+            rule.cloudwatchTimestamp = defaultCloudwatchTimestamp;
+          }
+          if (yamlMetricRule.containsKey("use_get_metric_data")) {
+            rule.useGetMetricData = (Boolean) yamlMetricRule.get("use_get_metric_data");
+          } else {
+            rule.useGetMetricData = defaultUseGetMetricData;
+          }
+          if (yamlMetricRule.containsKey("incremental_fetch")) {
+            rule.incrementalFetch = (Boolean) yamlMetricRule.get("incremental_fetch");
+          } else {
+            rule.incrementalFetch = defaultIncrementalFetch;
+          }
+          if (yamlMetricRule.containsKey("backfill")) {
+            rule.backfill = (Boolean) yamlMetricRule.get("backfill");
+          } else {
+            rule.backfill = defaultBackfill;
+          }
+          if (rule.backfill && !rule.cloudwatchTimestamp) {
+            // Datapoints of one series can only be told apart by their timestamps.
+            throw new IllegalArgumentException(
+                "backfill requires set_timestamp for "
+                    + rule.awsNamespace
+                    + " "
+                    + rule.awsMetricName);
+          }
+          if (yamlMetricRule.containsKey("include_linked_accounts")) {
+            rule.includeLinkedAccounts = (Boolean) yamlMetricRule.get("include_linked_accounts");
+          } else {
+            rule.includeLinkedAccounts = defaultIncludeLinkedAccounts;
+          }
+          if (rule.includeLinkedAccounts && !rule.useGetMetricData) {
+            // GetMetricStatistics cannot read metrics of other accounts.
+            throw new IllegalArgumentException(
+                "include_linked_accounts requires use_get_metric_data for "
+                    + rule.awsNamespace
+                    + " "
+                    + rule.awsMetricName);
+          }
+          if (yamlMetricRule.containsKey("metric_math")) {
+            parseMetricMath(rule, yamlMetricRule);
+          }
+          if (yamlMetricRule.containsKey("dimension_discovery")) {
+            String discovery = (String) yamlMetricRule.get("dimension_discovery");
+            if (discovery.equals("search")) {
+              rule.searchDimensions = true;
+            } else if (!discovery.equals("list_metrics")) {
+              throw new IllegalArgumentException(
+                  "dimension_discovery must be list_metrics or search, got " + discovery);
+            }
+          }
+          if (yamlMetricRule.containsKey("max_series")) {
+            rule.maxSeries = ((Number) yamlMetricRule.get("max_series")).intValue();
+          } else {
+            rule.maxSeries = defaultMaxSeries;
+          }
+          if (yamlMetricRule.containsKey("list_metrics_partitions")) {
+            rule.listMetricsPartitions =
+                ((Number) yamlMetricRule.get("list_metrics_partitions")).intValue();
+          } else {
+            rule.listMetricsPartitions = defaultListMetricsPartitions;
+          }
+          if (rule.listMetricsPartitions < 1) {
+            throw new IllegalArgumentException(
+                "list_metrics_partitions must be at least 1, got " + rule.listMetricsPartitions);
+          }
+          if (yamlMetricRule.containsKey("shard_series")) {
+            rule.shardSeries = (Boolean) yamlMetricRule.get("shard_series");
+          }
+          if (rule.searchDimensions
+              && (!rule.useGetMetricData
+                  || rule.awsDimensions == null
+                  || rule.awsDimensions.isEmpty()
+                  || rule.metricMath != null
+                  || rule.backfill
+                  || rule.incrementalFetch
+                  || rule.shardSeries)) {
+            throw new IllegalArgumentException(
+                "dimension_discovery search requires use_get_metric_data and aws_dimensions, and"
+                    + " does not support metric_math, backfill, incremental_fetch or shard_series,"
+                    + " for "
+                    + rule.awsNamespace
+                    + " "
+                    + rule.awsMetricName);
+          }
+          if (yamlMetricRule.containsKey("metrics_insights_query")) {
+            rule.metricsInsightsQuery = (String) yamlMetricRule.get("metrics_insights_query");
+            // Fails early on queries whose results could not be exported.
+            MetricsInsightsDataGetter.statisticOf(rule.metricsInsightsQuery);
+            if (rule.awsDimensions != null
+                || rule.metricMath != null
+                || yamlMetricRule.containsKey("dimension_discovery")
+                || rule.includeLinkedAccounts
+                || rule.backfill
+                || rule.incrementalFetch
+                || rule.shardSeries) {
+              throw new IllegalArgumentException(
+                  "metrics_insights_query takes its dimensions from the query and does not support"
+                      + " aws_dimensions, metric_math, dimension_discovery,"
+                      + " include_linked_accounts, backfill, incremental_fetch or shard_series,"
+                      + " for "
+                      + rule.awsNamespace
+                      + " "
+                      + rule.awsMetricName);
+            }
+          }
+          if (yamlMetricRule.containsKey("aggregate_by")) {
+            Map<String, Object> yamlAggregateBy =
+                (Map<String, Object>) yamlMetricRule.get("aggregate_by");
+            rule.aggregateBy =
+                (List<String>) yamlAggregateBy.getOrDefault("dimensions", Collections.emptyList());
+            String function = (String) yamlAggregateBy.getOrDefault("function", "sum");
+            try {
+              rule.aggregateFunction =
+                  SeriesAggregator.Function.valueOf(function.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+              throw new IllegalArgumentException(
+                  "aggregate_by function must be sum, min, max, avg or count, got " + function);
+            }
+            if (rule.awsDimensions != null && !rule.awsDimensions.containsAll(rule.aggregateBy)) {
+              throw new IllegalArgumentException(
+                  "aggregate_by dimensions must be among the aws_dimensions of "
+                      + rule.awsNamespace
+                      + " "
+                      + rule.awsMetricName);
+            }
+            if (rule.backfill) {
+              // Earlier datapoints of the series in a group do not line up.
+              throw new IllegalArgumentException(
+                  "aggregate_by does not support backfill for "
+                      + rule.awsNamespace
+                      + " "
+                      + rule.awsMetricName);
+            }
+          }
+          if (yamlMetricRule.containsKey("warn_on_empty_list_dimensions")) {
+            rule.warnOnEmptyListDimensions =
+                (Boolean) yamlMetricRule.get("warn_on_empty_list_dimensions");
+          } else {
+            rule.warnOnEmptyListDimensions = defaultWarnOnMissingDimensions;
+          }
+
+          if (yamlMetricRule.containsKey("aws_tag_select")) {
+            Map<String, Object> yamlAwsTagSelect =
+                (Map<String, Object>) yamlMetricRule.get("aws_tag_select");
+            if (!yamlAwsTagSelect.containsKey("resource_type_selection")
+                || !yamlAwsTagSelect.containsKey("resource_id_dimension")) {
+              throw new IllegalArgumentException(
+                  "Must provide resource_type_selection and resource_id_dimension");
+            }
+            AWSTagSelect awsTagSelect = new AWSTagSelect();
+            rule.awsTagSelect = awsTagSelect;
+
+            awsTagSelect.resourceTypeSelection =
+                (String) yamlAwsTagSelect.get("resource_type_selection");
+            awsTagSelect.resourceIdDimension =
+                (String) yamlAwsTagSelect.get("resource_id_dimension");
+
+            if (yamlAwsTagSelect.containsKey("tag_selections")) {
+              awsTagSelect.tagSelections =
+                  (Map<String, List<String>>) yamlAwsTagSelect.get("tag_selections");
+            }
+            if (yamlAwsTagSelect.containsKey("arn_resource_id_regexp")) {
+              awsTagSelect.arnResourceIdRegexp =
+                  Pattern.compile((String) yamlAwsTagSelect.get("arn_resource_id_regexp"));
+            }
+            if (yamlAwsTagSelect.containsKey("list_by_resource_id")) {
+              awsTagSelect.listByResourceId = (Boolean) yamlAwsTagSelect.get("list_by_resource_id");
+            }
+          }
+
+          if (yamlMetricRule.containsKey("list_metrics_cache_ttl")) {
+            rule.listMetricsCacheTtl =
+                Duration.ofSeconds(
+                    ((Number) yamlMetricRule.get("list_metrics_cache_ttl")).intValue());
+            metricCacheConfig.addOverride(rule);
+          } else {
+            rule.listMetricsCacheTtl = defaultMetricCacheSeconds;
+          }
         }
       }
-      if (yamlMetricRule.containsKey("aws_extended_statistics")) {
-        rule.awsExtendedStatistics = (List<String>) yamlMetricRule.get("aws_extended_statistics");
+    }
+
+    // Replicas sharing the configuration each keep their own part of the rules.
+    if (!shard.isAll()) {
+      rules.removeIf(rule -> !shard.ownsRule(rule));
+    }
+
+    Set<String> clientsKeys = new HashSet<>();
+    for (MetricRule rule : rules) {
+      String key = clientsKey(rule, region);
+      if (key != null) {
+        clientsKeys.add(key);
       }
-      if (yamlMetricRule.containsKey("period_seconds")) {
-        rule.periodSeconds = ((Number) yamlMetricRule.get("period_seconds")).intValue();
+    }
+    if (!config.containsKey("max_concurrency") && !clientsKeys.isEmpty()) {
+      // Scrape accounts and regions in parallel unless told otherwise, they have separate API
+      // quotas.
+      maxConcurrency = clientsKeys.size() + 1;
+    }
+    if (adaptiveConcurrency && maxConcurrency < 2) {
+      throw new IllegalArgumentException(
+          "adaptive_concurrency needs max_concurrency above 1 to have a limit to adapt");
+    }
+
+    // Every account has its own rate budgets and concurrency limit.
+    ApiCallRunner apiCallRunner = null;
+    Map<String, ApiCallRunner> accountRunners = new HashMap<>();
+    for (AccountGroup account : accountGroups) {
+      ApiCallRunner runner =
+          new ApiCallRunner(
+              apiRequestDuration,
+              new AdaptiveConcurrencyLimiter(
+                  adaptiveConcurrency ? 1 : maxConcurrency, maxConcurrency),
+              parseRateLimits(account.requestsPerSecond),
+              apiRateLimitWait,
+              apiRateLimitQueued);
+      if (account.accountId == null) {
+        apiCallRunner = runner;
       } else {
-        rule.periodSeconds = defaultPeriod;
+        accountRunners.put(account.accountId, runner);
       }
-      if (yamlMetricRule.containsKey("range_seconds")) {
-        rule.rangeSeconds = ((Number) yamlMetricRule.get("range_seconds")).intValue();
-      } else {
-        rule.rangeSeconds = defaultRange;
+    }
+    if (apiCallRunner == null) {
+      apiCallRunner =
+          new ApiCallRunner(
+              apiRequestDuration,
+              new AdaptiveConcurrencyLimiter(maxConcurrency, maxConcurrency),
+              Collections.emptyMap(),
+              apiRateLimitWait,
+              apiRateLimitQueued);
+    }
+
+    // Rules for the default account and region use the clients passed in, every other account and
+    // region gets its own clients, reused from the previous config where they were built with the
+    // same settings.
+    ActiveConfig previousConfig = activeConfig.get();
+    AccountConnection defaultConnection = null;
+    if (previousConfig != null
+        && previousConfig.defaultConnection != null
+        && cloudWatchClient == previousConfig.cloudWatchClient
+        && taggingClient == previousConfig.taggingClient) {
+      defaultConnection = previousConfig.defaultConnection;
+    }
+    Map<String, AwsClients> additionalClients = new HashMap<>();
+    for (AccountGroup account : accountGroups) {
+      ConnectionSettings settings =
+          new ConnectionSettings(account.roleArn, region, httpClientSettings);
+      if (account.accountId == null
+          && defaultConnection != null
+          && !defaultConnection.settings.equals(settings)) {
+        cloudWatchClient = null;
+        taggingClient = null;
+        defaultConnection = null;
       }
-      if (yamlMetricRule.containsKey("delay_seconds")) {
-        rule.delaySeconds = ((Number) yamlMetricRule.get("delay_seconds")).intValue();
-      } else {
-        rule.delaySeconds = defaultDelay;
+      Map<String, String> missingRegions = new TreeMap<>();
+      for (MetricRule rule : rules) {
+        String key = clientsKey(rule, region);
+        if (!Objects.equals(rule.accountId, account.accountId)
+            || key == null
+            || additionalClients.containsKey(key)) {
+          continue;
+        }
+        AwsClients previous = previousClients.get(key);
+        if (previous != null && previous.isFor(settings)) {
+          additionalClients.put(key, previous);
+        } else {
+          missingRegions.put(key, rule.region == null ? region : rule.region);
+        }
       }
-      if (yamlMetricRule.containsKey("set_timestamp")) {
-        rule.cloudwatchTimestamp = (Boolean) yamlMetricRule.get("set_timestamp");
-      } else {
-        rule.cloudwatchTimestamp = defaultCloudwatchTimestamp;
+      boolean missingDefaultClients =
+          account.accountId == null && (cloudWatchClient == null || taggingClient == null);
+      if (missingRegions.isEmpty() && !missingDefaultClients) {
+        continue;
       }
-      if (yamlMetricRule.containsKey("use_get_metric_data")) {
-        rule.useGetMetricData = (Boolean) yamlMetricRule.get("use_get_metric_data");
-      } else {
-        rule.useGetMetricData = defaultUseGetMetricData;
+
+      // The clients of an account share one connection pool and one set of assumed role
+      // credentials, which are refreshed before they expire.
+      AccountConnection connection = connect(settings);
+      if (account.accountId == null && cloudWatchClient == null) {
+        cloudWatchClient =
+            buildCloudWatchClient(region, connection.httpClient, connection.credentialsProvider);
+        defaultConnection = connection;
       }
-      if (yamlMetricRule.containsKey("warn_on_empty_list_dimensions")) {
-        rule.warnOnEmptyListDimensions =
-            (Boolean) yamlMetricRule.get("warn_on_empty_list_dimensions");
-      } else {
-        rule.warnOnEmptyListDimensions = defaultWarnOnMissingDimensions;
+      if (account.accountId == null && taggingClient == null) {
+        taggingClient =
+            buildTaggingClient(region, connection.httpClient, connection.credentialsProvider);
+        defaultConnection = connection;
+      }
+      for (Entry<String, String> entry : missingRegions.entrySet()) {
+        additionalClients.put(
+            entry.getKey(),
+            new AwsClients(
+                buildCloudWatchClient(
+                    entry.getValue(), connection.httpClient, connection.credentialsProvider),
+                buildTaggingClient(
+                    entry.getValue(), connection.httpClient, connection.credentialsProvider),
+                connection));
       }
+    }
 
-      if (yamlMetricRule.containsKey("aws_tag_select")) {
-        Map<String, Object> yamlAwsTagSelect =
-            (Map<String, Object>) yamlMetricRule.get("aws_tag_select");
-        if (!yamlAwsTagSelect.containsKey("resource_type_selection")
-            || !yamlAwsTagSelect.containsKey("resource_id_dimension")) {
-          throw new IllegalArgumentException(
-              "Must provide resource_type_selection and resource_id_dimension");
+    DimensionSource dimensionSource =
+        new DefaultDimensionSource(cloudWatchClient, apiCallRunner, cloudwatchRequests);
+    if (!additionalClients.isEmpty()) {
+      Map<String, DimensionSource> dimensionSources = new HashMap<>();
+      for (MetricRule rule : rules) {
+        String key = clientsKey(rule, region);
+        if (key != null && !dimensionSources.containsKey(key)) {
+          dimensionSources.put(
+              key,
+              new DefaultDimensionSource(
+                  additionalClients.get(key).cloudWatchClient,
+                  rule.accountId == null ? apiCallRunner : accountRunners.get(rule.accountId),
+                  cloudwatchRequests));
         }
-        AWSTagSelect awsTagSelect = new AWSTagSelect();
-        rule.awsTagSelect = awsTagSelect;
+      }
+      String defaultRegion = region;
+      dimensionSource =
+          new RoutingDimensionSource(
+              dimensionSource, dimensionSources, rule -> clientsKey(rule, defaultRegion));
+    }
+    CachingDimensionSource cachingDimensionSource = null;
+    if (defaultMetricCacheSeconds.toSeconds() > 0 || !metricCacheConfig.metricConfig.isEmpty()) {
+      cachingDimensionSource = new CachingDimensionSource(dimensionSource, metricCacheConfig);
+      if (previousConfig != null && previousConfig.cachingDimensionSource != null) {
+        cachingDimensionSource.carryOver(previousConfig.cachingDimensionSource, rules);
+      }
+      dimensionSource = cachingDimensionSource;
+    }
+
+    if (!shard.isAll()) {
+      // Outside of the cache, so that the cached dimensions stay valid if the shard changes.
+      dimensionSource = new ShardingDimensionSource(dimensionSource, shard);
+    }
 
-        awsTagSelect.resourceTypeSelection =
-            (String) yamlAwsTagSelect.get("resource_type_selection");
-        awsTagSelect.resourceIdDimension = (String) yamlAwsTagSelect.get("resource_id_dimension");
+    seriesLabelCache.retainRules(rules);
+    latestDatapoints.keySet().retainAll(new HashSet<>(rules));
+    ActiveConfig loaded =
+        new ActiveConfig(
+            rules,
+            region,
+            cloudWatchClient,
+            taggingClient,
+            additionalClients,
+            dimensionSource,
+            cachingDimensionSource,
+            apiCallRunner,
+            accountRunners,
+            maxConcurrency,
+            maxTotalSeries,
+            metricStreams,
+            remoteWrite,
+            defaultConnection);
+    ActiveConfig replaced = activeConfig.getAndSet(loaded);
+    if (replaced != null) {
+      replaced.retire(() -> closeDroppedClients(replaced, loaded));
+    }
+    updateRemoteWriter(remoteWrite);
+  }
 
-        if (yamlAwsTagSelect.containsKey("tag_selections")) {
-          awsTagSelect.tagSelections =
-              (Map<String, List<String>>) yamlAwsTagSelect.get("tag_selections");
-        }
-        if (yamlAwsTagSelect.containsKey("arn_resource_id_regexp")) {
-          awsTagSelect.arnResourceIdRegexp =
-              Pattern.compile((String) yamlAwsTagSelect.get("arn_resource_id_regexp"));
-        }
+  /**
+   * Closes the clients a reload dropped, along with their connection pools and credentials once no
+   * remaining client shares them. Clients passed in by the caller are left alone.
+   */
+  private static void closeDroppedClients(ActiveConfig replaced, ActiveConfig current) {
+    Set<AwsClients> keptClients = Collections.newSetFromMap(new IdentityHashMap<>());
+    keptClients.addAll(current.additionalClients.values());
+    Set<AccountConnection> keptConnections = Collections.newSetFromMap(new IdentityHashMap<>());
+    keptConnections.add(current.defaultConnection);
+    for (AwsClients clients : current.additionalClients.values()) {
+      keptConnections.add(clients.connection);
+    }
+
+    Set<AccountConnection> droppedConnections = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (AwsClients clients : replaced.additionalClients.values()) {
+      if (clients.connection != null && !keptClients.contains(clients)) {
+        clients.cloudWatchClient.close();
+        clients.taggingClient.close();
+        droppedConnections.add(clients.connection);
+      }
+    }
+    if (replaced.defaultConnection != null) {
+      if (replaced.cloudWatchClient != current.cloudWatchClient) {
+        replaced.cloudWatchClient.close();
+      }
+      if (replaced.taggingClient != current.taggingClient) {
+        replaced.taggingClient.close();
       }
+      droppedConnections.add(replaced.defaultConnection);
+    }
+    droppedConnections.removeAll(keptConnections);
+    droppedConnections.forEach(AccountConnection::close);
+  }
 
-      if (yamlMetricRule.containsKey("list_metrics_cache_ttl")) {
-        rule.listMetricsCacheTtl =
-            Duration.ofSeconds(((Number) yamlMetricRule.get("list_metrics_cache_ttl")).intValue());
-        metricCacheConfig.addOverride(rule);
-      } else {
-        rule.listMetricsCacheTtl = defaultMetricCacheSeconds;
+  @SuppressWarnings("unchecked")
+  private static void parseMetricMath(MetricRule rule, Map<String, Object> yamlMetricRule) {
+    if (!rule.useGetMetricData) {
+      // Expressions are evaluated by GetMetricData.
+      throw new IllegalArgumentException(
+          "metric_math requires use_get_metric_data for "
+              + rule.awsNamespace
+              + " "
+              + rule.awsMetricName);
+    }
+    rule.metricMathInputs = new LinkedHashMap<>();
+    Map<String, Map<String, Object>> yamlInputs =
+        (Map<String, Map<String, Object>>)
+            yamlMetricRule.getOrDefault("metric_math_inputs", Collections.emptyMap());
+    for (Entry<String, Map<String, Object>> input : yamlInputs.entrySet()) {
+      if (!METRIC_MATH_ID.matcher(input.getKey()).matches()) {
+        throw new IllegalArgumentException(
+            "metric_math_inputs id must start with a lowercase letter and only contain letters,"
+                + " digits and underscores, got "
+                + input.getKey());
       }
+      if (!input.getValue().containsKey("aws_statistic")) {
+        throw new IllegalArgumentException(
+            "metric_math_inputs " + input.getKey() + " must have an aws_statistic");
+      }
+      rule.metricMathInputs.put(
+          input.getKey(),
+          new MetricRule.MathInput(
+              (String) input.getValue().getOrDefault("aws_metric_name", rule.awsMetricName),
+              (String) input.getValue().get("aws_statistic")));
+    }
+    rule.metricMath = new LinkedHashMap<>();
+    for (Entry<String, Object> expression :
+        ((Map<String, Object>) yamlMetricRule.get("metric_math")).entrySet()) {
+      rule.metricMath.put(expression.getKey(), (String) expression.getValue());
     }
+  }
 
-    DimensionSource dimensionSource =
-        new DefaultDimensionSource(cloudWatchClient, cloudwatchRequests);
-    if (defaultMetricCacheSeconds.toSeconds() > 0 || !metricCacheConfig.metricConfig.isEmpty()) {
-      dimensionSource = new CachingDimensionSource(dimensionSource, metricCacheConfig);
+  /** Starts, restarts or stops pushing when the remote_write config changed. */
+  private synchronized void updateRemoteWriter(RemoteWriteConfig remoteWrite) {
+    if (remoteWriter != null && remoteWriter.config().equals(remoteWrite)) {
+      return;
     }
+    if (remoteWriter != null) {
+      remoteWriter.close();
+      remoteWriter = null;
+    }
+    if (remoteWrite != null) {
+      remoteWriter = new RemoteWriter(remoteWrite, this::collectSamples).start();
+    }
+  }
 
-    loadConfig(rules, cloudWatchClient, taggingClient, dimensionSource);
+  /**
+   * The key of the clients a rule is scraped with in {@link ActiveConfig#additionalClients}, or
+   * null for the clients of the default account and region.
+   */
+  static String clientsKey(MetricRule rule, String defaultRegion) {
+    String region = rule.region == null ? defaultRegion : rule.region;
+    if (rule.accountId == null) {
+      return Objects.equals(region, defaultRegion) ? null : region;
+    }
+    return rule.accountId + "/" + Objects.toString(region, "");
   }
 
-  private void loadConfig(
-      ArrayList<MetricRule> rules,
-      CloudWatchClient cloudWatchClient,
-      ResourceGroupsTaggingApiClient taggingClient,
-      DimensionSource dimensionSource) {
-    synchronized (activeConfig) {
-      activeConfig.cloudWatchClient = cloudWatchClient;
-      activeConfig.taggingClient = taggingClient;
-      activeConfig.rules = rules;
-      activeConfig.dimensionSource = dimensionSource;
+  private static Map<String, RequestRateLimiter> parseRateLimits(
+      Map<String, Object> requestsPerSecond) {
+    Map<String, RequestRateLimiter> rateLimits = new HashMap<>();
+    for (Entry<String, Object> entry : requestsPerSecond.entrySet()) {
+      String action = RATE_LIMITED_ACTIONS.get(entry.getKey());
+      if (action == null) {
+        throw new IllegalArgumentException(
+            "Unknown action in api_requests_per_second: "
+                + entry.getKey()
+                + ", expected one of "
+                + RATE_LIMITED_ACTIONS.keySet());
+      }
+      rateLimits.put(action, new RequestRateLimiter(((Number) entry.getValue()).doubleValue()));
+    }
+    return rateLimits;
+  }
+
+  private static CloudWatchClient buildCloudWatchClient(
+      String region, SdkHttpClient httpClient, AwsCredentialsProvider credentialsProvider) {
+    CloudWatchClientBuilder clientBuilder =
+        CloudWatchClient.builder()
+            .httpClient(httpClient)
+            .overrideConfiguration(clientOverrideConfiguration);
+    if (credentialsProvider != null) {
+      clientBuilder.credentialsProvider(credentialsProvider);
+    }
+    if (region != null) {
+      clientBuilder.region(Region.of(region));
+    }
+    return clientBuilder.build();
+  }
+
+  private static ResourceGroupsTaggingApiClient buildTaggingClient(
+      String region, SdkHttpClient httpClient, AwsCredentialsProvider credentialsProvider) {
+    ResourceGroupsTaggingApiClientBuilder clientBuilder =
+        ResourceGroupsTaggingApiClient.builder()
+            .httpClient(httpClient)
+            .overrideConfiguration(clientOverrideConfiguration);
+    if (credentialsProvider != null) {
+      clientBuilder.credentialsProvider(credentialsProvider);
     }
+    if (region != null) {
+      clientBuilder.region(Region.of(region));
+    }
+    return clientBuilder.build();
   }
 
-  private AwsCredentialsProvider getRoleCredentialProvider(Map<String, Object> config) {
+  private static AccountConnection connect(ConnectionSettings settings) {
+    SdkHttpClient httpClient = settings.httpClient.build();
+    if (settings.roleArn == null) {
+      return new AccountConnection(settings, httpClient, null, null);
+    }
     StsClient stsClient =
-        StsClient.builder().region(Region.of((String) config.get("region"))).build();
+        StsClient.builder()
+            .httpClient(httpClient)
+            .overrideConfiguration(clientOverrideConfiguration)
+            .region(Region.of(settings.stsRegion))
+            .build();
     AssumeRoleRequest assumeRoleRequest =
         AssumeRoleRequest.builder()
-            .roleArn((String) config.get("role_arn"))
+            .roleArn(settings.roleArn)
             .roleSessionName("cloudwatch_exporter")
             .build();
-    return StsAssumeRoleCredentialsProvider.builder()
-        .stsClient(stsClient)
-        .refreshRequest(assumeRoleRequest)
-        .build();
+    return new AccountConnection(
+        settings,
+        httpClient,
+        stsClient,
+        StsAssumeRoleCredentialsProvider.builder()
+            .stsClient(stsClient)
+            .refreshRequest(assumeRoleRequest)
+            .build());
   }
 
   private List<ResourceTagMapping> getResourceTagMappings(
-      MetricRule rule, ResourceGroupsTaggingApiClient taggingClient) {
+      MetricRule rule, ResourceGroupsTaggingApiClient taggingClient, ApiCallRunner apiCallRunner) {
     if (rule.awsTagSelect == null) {
       return Collections.emptyList();
     }
@@ -431,7 +1560,10 @@ public class CloudWatchCollector extends Collector implements Describable {
     do {
       requestBuilder.paginationToken(paginationToken);
 
-      GetResourcesResponse response = taggingClient.getResources(requestBuilder.build());
+      GetResourcesRequest request = requestBuilder.build();
+      GetResourcesResponse response =
+          apiCallRunner.call(
+              "getResources", rule.awsNamespace, () -> taggingClient.getResources(request));
       taggingApiRequests.labels("getResources", rule.awsTagSelect.resourceTypeSelection).inc();
 
       resourceTagMappings.addAll(response.resourceTagMappingList());
@@ -459,16 +1591,16 @@ public class CloudWatchCollector extends Collector implements Describable {
     return DEFAULT_ARN_RESOURCE_ID_REGEXP;
   }
 
-  private String toSnakeCase(String str) {
+  static String toSnakeCase(String str) {
     return str.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
   }
 
-  private String safeName(String s) {
+  static String safeName(String s) {
     // Change invalid chars to underscore, and merge underscores.
     return s.replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
   }
 
-  private String safeLabelName(String s) {
+  static String safeLabelName(String s) {
     // Change invalid chars to underscore, and merge underscores.
     return s.replaceAll("[^a-zA-Z0-9_]", "_").replaceAll("__+", "_");
   }
@@ -477,19 +1609,33 @@ public class CloudWatchCollector extends Collector implements Describable {
     if (rule.help != null) {
       return rule.help;
     }
+    List<String> dimensions = rule.awsDimensions;
+    if (rule.metricsInsightsQuery != null) {
+      dimensions = MetricsInsightsDataGetter.groupByOf(rule.metricsInsightsQuery);
+    }
+    return help(rule.awsNamespace, rule.awsMetricName, dimensions, statistic, unit);
+  }
+
+  /** The help of a CloudWatch metric, listing "[]" as dimensions when it has none. */
+  static String help(
+      String namespace,
+      String metricName,
+      Collection<String> dimensions,
+      String statistic,
+      String unit) {
     return "CloudWatch metric "
-        + rule.awsNamespace
+        + namespace
         + " "
-        + rule.awsMetricName
+        + metricName
         + " Dimensions: "
-        + rule.awsDimensions
+        + (dimensions == null ? Collections.emptyList() : dimensions)
         + " Statistic: "
         + statistic
         + " Unit: "
         + unit;
   }
 
-  private String sampleLabelSuffixBy(Statistic s) {
+  static String sampleLabelSuffixBy(Statistic s) {
     switch (s) {
       case SUM:
         return "_sum";
@@ -506,203 +1652,513 @@ public class CloudWatchCollector extends Collector implements Describable {
     }
   }
 
-  private void scrape(List<MetricFamilySamples> mfs) {
-    ActiveConfig config = new ActiveConfig(activeConfig);
+  /**
+   * Scrapes the rules, handing the metric families of each rule to {@code sink} as soon as it and
+   * the rules before it are done, so that the samples of a rule need not be held for the whole
+   * scrape.
+   */
+  private void scrape(ActiveConfig config, Consumer<MetricFamilySamples> sink) {
     Set<String> publishedResourceInfo = new HashSet<>();
 
     long start = System.currentTimeMillis();
     List<MetricFamilySamples.Sample> infoSamples = new ArrayList<>();
 
-    for (MetricRule rule : config.rules) {
-      String baseName =
-          safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
-      String jobName = safeName(rule.awsNamespace.toLowerCase());
-      Map<Statistic, List<MetricFamilySamples.Sample>> baseSamples = new HashMap<>();
-      for (Statistic s : Statistic.values()) {
-        baseSamples.put(s, new ArrayList<>());
-      }
-      HashMap<String, List<MetricFamilySamples.Sample>> extendedSamples = new HashMap<>();
-
-      String unit = null;
-
-      if (rule.awsNamespace.equals("AWS/DynamoDB")
-          && rule.awsDimensions != null
-          && rule.awsDimensions.contains("GlobalSecondaryIndexName")
-          && brokenDynamoMetrics.contains(rule.awsMetricName)) {
-        baseName += "_index";
-      }
-
-      List<ResourceTagMapping> resourceTagMappings =
-          getResourceTagMappings(rule, config.taggingClient);
-      Pattern arnResourceIdRegexp = getArnResourceIdRegexp(rule);
-      List<String> tagBasedResourceIds =
-          extractResourceIds(arnResourceIdRegexp, resourceTagMappings);
-
-      List<List<Dimension>> dimensionList =
-          config.dimensionSource.getDimensions(rule, tagBasedResourceIds).getDimensions();
-      DataGetter dataGetter = null;
-      if (rule.useGetMetricData) {
-        dataGetter =
-            new GetMetricDataDataGetter(
-                config.cloudWatchClient,
-                start,
-                rule,
-                cloudwatchRequests,
-                cloudwatchMetricsRequested,
-                dimensionList);
-      } else {
-        dataGetter =
-            new GetMetricStatisticsDataGetter(
-                config.cloudWatchClient,
-                start,
-                rule,
-                cloudwatchRequests,
-                cloudwatchMetricsRequested);
-      }
-
-      for (List<Dimension> dimensions : dimensionList) {
-        MetricRuleData values = dataGetter.metricRuleDataFor(dimensions);
-        if (values == null) {
-          continue;
-        }
-        unit = values.unit;
-        List<String> labelNames = new ArrayList<>();
-        List<String> labelValues = new ArrayList<>();
-        labelNames.add("job");
-        labelValues.add(jobName);
-        labelNames.add("instance");
-        labelValues.add("");
-        for (Dimension d : dimensions) {
-          labelNames.add(safeLabelName(toSnakeCase(d.name())));
-          labelValues.add(d.value());
-        }
+    int[] remainingSeries = {config.maxTotalSeries > 0 ? config.maxTotalSeries : Integer.MAX_VALUE};
+    scrapeRules(
+        config,
+        start,
+        ruleScrape -> {
+          MetricRule rule = ruleScrape.rule;
+          if (ruleScrape.series.size() > remainingSeries[0]) {
+            limitSeries(ruleScrape, remainingSeries[0], config.maxTotalSeries).forEach(sink);
+            remainingSeries[0] = 0;
+          } else {
+            ruleScrape.metricFamilies.forEach(sink);
+            remainingSeries[0] -= ruleScrape.series.size();
+          }
 
-        Long timestamp = null;
-        if (rule.cloudwatchTimestamp) {
-          timestamp = values.timestamp.toEpochMilli();
-        }
+          String jobName = safeName(rule.awsNamespace.toLowerCase());
+          Pattern arnResourceIdRegexp = getArnResourceIdRegexp(rule);
+          List<ResourceTagMapping> resourceTagMappings = ruleScrape.resourceTagMappings;
+
+          // Add the "aws_resource_info" metric for existing tag mappings
+          for (ResourceTagMapping resourceTagMapping : resourceTagMappings) {
+            if (!publishedResourceInfo.contains(resourceTagMapping.resourceARN())) {
+              List<String> labelNames = new ArrayList<>();
+              List<String> labelValues = new ArrayList<>();
+              labelNames.add("job");
+              labelValues.add(jobName);
+              labelNames.add("instance");
+              labelValues.add("");
+              if (rule.accountId != null) {
+                labelNames.add("account_id");
+                labelValues.add(rule.accountId);
+              }
+              if (rule.region != null) {
+                labelNames.add("region");
+                labelValues.add(rule.region);
+              }
+              labelNames.add("arn");
+              labelValues.add(resourceTagMapping.resourceARN());
+              labelNames.add(safeLabelName(toSnakeCase(rule.awsTagSelect.resourceIdDimension)));
+              labelValues.add(
+                  extractResourceIdFromArn(resourceTagMapping.resourceARN(), arnResourceIdRegexp));
+              for (Tag tag : resourceTagMapping.tags()) {
+                // Avoid potential collision between resource tags and other metric labels by adding
+                // the "tag_" prefix
+                // The AWS tags are case sensitive, so to avoid loosing information and label
+                // collisions, tag keys are not snaked cased
+                labelNames.add("tag_" + safeLabelName(tag.key()));
+                labelValues.add(tag.value());
+              }
+
+              infoSamples.add(
+                  new MetricFamilySamples.Sample("aws_resource_info", labelNames, labelValues, 1));
+
+              publishedResourceInfo.add(resourceTagMapping.resourceARN());
+            }
+          }
+        });
+    sink.accept(
+        new MetricFamilySamples(
+            "aws_resource_info",
+            Type.GAUGE,
+            "AWS information available for resource",
+            infoSamples));
+  }
 
-        // iterate over aws statistics
-        for (Entry<Statistic, Double> e : values.statisticValues.entrySet()) {
-          String suffix = sampleLabelSuffixBy(e.getKey());
-          baseSamples
-              .get(e.getKey())
-              .add(
-                  new MetricFamilySamples.Sample(
-                      baseName + suffix, labelNames, labelValues, e.getValue(), timestamp));
+  /**
+   * Keeps the first {@code limit} series of a rule, dropping the others from every metric family so
+   * that a series is either exported with all its statistics or not at all.
+   */
+  private static List<MetricFamilySamples> limitSeries(
+      RuleScrape ruleScrape, int limit, int maxTotalSeries) {
+    MetricRule rule = ruleScrape.rule;
+    int dropped = ruleScrape.series.size() - limit;
+    droppedSeries.labels(rule.awsNamespace, rule.awsMetricName, "max_total_series").inc(dropped);
+    LOGGER.warning(
+        String.format(
+            "%s:%s dropping %d series above max_total_series %d",
+            rule.awsNamespace, rule.awsMetricName, dropped, maxTotalSeries));
+
+    // Samples share the label values list of their series, so identity tells them apart cheaply.
+    Set<List<String>> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (SeriesLabels labels : ruleScrape.series.subList(0, limit)) {
+      kept.add(labels.values);
+    }
+    List<MetricFamilySamples> limited = new ArrayList<>();
+    for (MetricFamilySamples family : ruleScrape.metricFamilies) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        if (kept.contains(sample.labelValues)) {
+          samples.add(sample);
         }
+      }
+      if (!samples.isEmpty()) {
+        limited.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+      }
+    }
+    return limited;
+  }
+
+  /**
+   * Scrapes every rule of the config, running up to {@code max_concurrency} rules at once. The
+   * results are handed to {@code consumer} in rule order regardless of which rule finished first,
+   * each as soon as the rules before it were.
+   */
+  private void scrapeRules(ActiveConfig config, long start, Consumer<RuleScrape> consumer) {
+    int threads = Math.min(config.maxConcurrency, config.rules.size());
+    if (threads <= 1) {
+      for (MetricRule rule : config.rules) {
+        consumer.accept(scrapeRule(config, rule, start));
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads, SCRAPE_THREAD_FACTORY);
+    try {
+      List<Future<RuleScrape>> futures = new ArrayList<>();
+      for (MetricRule rule : config.rules) {
+        futures.add(executor.submit(() -> scrapeRule(config, rule, start)));
+      }
+      // Consumed results are let go of, so that only those of rules still waiting are held.
+      for (int i = 0; i < futures.size(); i++) {
+        consumer.accept(futures.get(i).get());
+        futures.set(i, null);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while scraping CloudWatch", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void addSamples(
+      String baseName,
+      List<String> labelNames,
+      List<String> labelValues,
+      MetricRuleData values,
+      boolean withTimestamp,
+      Map<Statistic, List<MetricFamilySamples.Sample>> baseSamples,
+      Map<String, List<MetricFamilySamples.Sample>> extendedSamples) {
+    Long timestamp = null;
+    if (withTimestamp) {
+      timestamp = values.timestamp.toEpochMilli();
+    }
 
-        // iterate over extended values
-        for (Entry<String, Double> entry : values.extendedValues.entrySet()) {
-          List<MetricFamilySamples.Sample> samples =
-              extendedSamples.getOrDefault(entry.getKey(), new ArrayList<>());
-          samples.add(
+    // iterate over aws statistics
+    for (Entry<Statistic, Double> e : values.statisticValues.entrySet()) {
+      String suffix = sampleLabelSuffixBy(e.getKey());
+      baseSamples
+          .get(e.getKey())
+          .add(
               new MetricFamilySamples.Sample(
-                  baseName + "_" + safeName(toSnakeCase(entry.getKey())),
-                  labelNames,
-                  labelValues,
-                  entry.getValue(),
-                  timestamp));
-          extendedSamples.put(entry.getKey(), samples);
-        }
+                  baseName + suffix, labelNames, labelValues, e.getValue(), timestamp));
+    }
+
+    // iterate over extended values
+    for (Entry<String, Double> entry : values.extendedValues.entrySet()) {
+      List<MetricFamilySamples.Sample> samples =
+          extendedSamples.getOrDefault(entry.getKey(), new ArrayList<>());
+      samples.add(
+          new MetricFamilySamples.Sample(
+              baseName + "_" + safeName(toSnakeCase(entry.getKey())),
+              labelNames,
+              labelValues,
+              entry.getValue(),
+              timestamp));
+      extendedSamples.put(entry.getKey(), samples);
+    }
+  }
+
+  private RuleScrape scrapeRule(ActiveConfig config, MetricRule rule, long start) {
+    RuleScrape result = new RuleScrape(rule);
+    List<MetricFamilySamples> mfs = result.metricFamilies;
+
+    String baseName =
+        safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
+    String jobName = safeName(rule.awsNamespace.toLowerCase());
+    Map<Statistic, List<MetricFamilySamples.Sample>> baseSamples = new HashMap<>();
+    for (Statistic s : Statistic.values()) {
+      baseSamples.put(s, new ArrayList<>());
+    }
+    HashMap<String, List<MetricFamilySamples.Sample>> extendedSamples = new HashMap<>();
+
+    String unit = null;
+
+    if (rule.awsNamespace.equals("AWS/DynamoDB")
+        && rule.awsDimensions != null
+        && rule.awsDimensions.contains("GlobalSecondaryIndexName")
+        && brokenDynamoMetrics.contains(rule.awsMetricName)) {
+      baseName += "_index";
+    }
+
+    long stageStart = System.nanoTime();
+    List<ResourceTagMapping> resourceTagMappings =
+        getResourceTagMappings(rule, config.taggingClientFor(rule), config.apiCallRunnerFor(rule));
+    result.resourceTagMappings = resourceTagMappings;
+    Pattern arnResourceIdRegexp = getArnResourceIdRegexp(rule);
+    List<String> tagBasedResourceIds = extractResourceIds(arnResourceIdRegexp, resourceTagMappings);
+    stageStart = observeStage(rule, "tag_lookup", stageStart);
+
+    DimensionData dimensionData;
+    DataGetter discoveringDataGetter = null;
+    if (rule.metricsInsightsQuery != null) {
+      // The query groups the series server side, no dimension sets are listed.
+      MetricsInsightsDataGetter insightsDataGetter =
+          new MetricsInsightsDataGetter(
+              config.cloudWatchClientFor(rule),
+              config.apiCallRunnerFor(rule),
+              start,
+              rule,
+              cloudwatchRequests,
+              cloudwatchMetricsRequested);
+      dimensionData = insightsDataGetter.getDimensionData();
+      discoveringDataGetter = insightsDataGetter;
+    } else if (rule.searchDimensions) {
+      // The search finds the dimension sets along with their data, so it counts as data_fetch.
+      SearchDataGetter searchDataGetter =
+          new SearchDataGetter(
+              config.cloudWatchClientFor(rule),
+              config.apiCallRunnerFor(rule),
+              start,
+              rule,
+              cloudwatchRequests,
+              cloudwatchMetricsRequested,
+              tagBasedResourceIds);
+      dimensionData = searchDataGetter.getDimensionData();
+      discoveringDataGetter = searchDataGetter;
+    } else {
+      dimensionData = config.dimensionSource.getDimensions(rule, tagBasedResourceIds);
+      stageStart = observeStage(rule, "dimension_listing", stageStart);
+    }
+    List<List<Dimension>> dimensionList = dimensionData.getDimensions();
+    if (dimensionData.getDroppedSeries() > 0) {
+      droppedSeries
+          .labels(rule.awsNamespace, rule.awsMetricName, "max_series")
+          .inc(dimensionData.getDroppedSeries());
+    }
+
+    DataGetter dataGetter = null;
+    if (discoveringDataGetter != null) {
+      dataGetter = discoveringDataGetter;
+    } else if (rule.useGetMetricData) {
+      dataGetter =
+          new GetMetricDataDataGetter(
+              config.cloudWatchClientFor(rule),
+              config.apiCallRunnerFor(rule),
+              start,
+              rule,
+              cloudwatchRequests,
+              cloudwatchMetricsRequested,
+              dimensionData,
+              rule.incrementalFetch
+                  ? latestDatapoints.getOrDefault(rule, Collections.emptyMap())
+                  : null);
+      if (rule.incrementalFetch) {
+        latestDatapoints.put(rule, ((GetMetricDataDataGetter) dataGetter).getResults());
       }
+    } else {
+      dataGetter =
+          new GetMetricStatisticsDataGetter(
+              config.cloudWatchClientFor(rule),
+              config.apiCallRunnerFor(rule),
+              start,
+              rule,
+              cloudwatchRequests,
+              cloudwatchMetricsRequested);
+    }
 
-      if (!baseSamples.get(Statistic.SUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_sum",
-                Type.GAUGE,
-                help(rule, unit, "Sum"),
-                baseSamples.get(Statistic.SUM)));
-      }
-      if (!baseSamples.get(Statistic.SAMPLE_COUNT).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_sample_count",
-                Type.GAUGE,
-                help(rule, unit, "SampleCount"),
-                baseSamples.get(Statistic.SAMPLE_COUNT)));
-      }
-      if (!baseSamples.get(Statistic.MINIMUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_minimum",
-                Type.GAUGE,
-                help(rule, unit, "Minimum"),
-                baseSamples.get(Statistic.MINIMUM)));
-      }
-      if (!baseSamples.get(Statistic.MAXIMUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_maximum",
-                Type.GAUGE,
-                help(rule, unit, "Maximum"),
-                baseSamples.get(Statistic.MAXIMUM)));
-      }
-      if (!baseSamples.get(Statistic.AVERAGE).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_average",
-                Type.GAUGE,
-                help(rule, unit, "Average"),
-                baseSamples.get(Statistic.AVERAGE)));
-      }
-      for (Entry<String, List<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_" + safeName(toSnakeCase(entry.getKey())),
-                Type.GAUGE,
-                help(rule, unit, entry.getKey()),
-                entry.getValue()));
-      }
-
-      // Add the "aws_resource_info" metric for existing tag mappings
-      for (ResourceTagMapping resourceTagMapping : resourceTagMappings) {
-        if (!publishedResourceInfo.contains(resourceTagMapping.resourceARN())) {
-          List<String> labelNames = new ArrayList<>();
-          List<String> labelValues = new ArrayList<>();
-          labelNames.add("job");
-          labelValues.add(jobName);
-          labelNames.add("instance");
-          labelValues.add("");
-          labelNames.add("arn");
-          labelValues.add(resourceTagMapping.resourceARN());
-          labelNames.add(safeLabelName(toSnakeCase(rule.awsTagSelect.resourceIdDimension)));
-          labelValues.add(
-              extractResourceIdFromArn(resourceTagMapping.resourceARN(), arnResourceIdRegexp));
-          for (Tag tag : resourceTagMapping.tags()) {
-            // Avoid potential collision between resource tags and other metric labels by adding the
-            // "tag_" prefix
-            // The AWS tags are case sensitive, so to avoid loosing information and label
-            // collisions, tag keys are not snaked cased
-            labelNames.add("tag_" + safeLabelName(tag.key()));
-            labelValues.add(tag.value());
-          }
-
-          infoSamples.add(
-              new MetricFamilySamples.Sample("aws_resource_info", labelNames, labelValues, 1));
-
-          publishedResourceInfo.add(resourceTagMapping.resourceARN());
+    // GetMetricData fetches everything up front, GetMetricStatistics fetches lazily per
+    // dimension set, so time spent in metricRuleDataFor counts towards data_fetch as well.
+    long buildStart = System.nanoTime();
+    long fetchNanos = buildStart - stageStart;
+    long lazyFetchNanos = 0;
+    SeriesLabelCache.RuleSeries ruleSeries = seriesLabelCache.begin(rule);
+    SeriesAggregator aggregator =
+        rule.aggregateBy == null
+            ? null
+            : new SeriesAggregator(new HashSet<>(rule.aggregateBy), rule.aggregateFunction);
+    for (int i = 0; i < dimensionList.size(); i++) {
+      List<Dimension> dimensions = dimensionList.get(i);
+      String owningAccount = dimensionData.getOwningAccount(i);
+      long fetchStart = System.nanoTime();
+      MetricRuleData values = dataGetter.metricRuleDataFor(dimensionData, i);
+      lazyFetchNanos += System.nanoTime() - fetchStart;
+      if (values == null) {
+        continue;
+      }
+      unit = values.unit;
+      if (aggregator != null) {
+        aggregator.add(owningAccount, dimensions, values);
+        continue;
+      }
+      SeriesLabels labels =
+          ruleSeries.labels(
+              dimensionData.getFingerprint(i),
+              () -> seriesLabels(rule, jobName, owningAccount, dimensions));
+      result.series.add(labels);
+      List<String> labelNames = labels.names;
+      List<String> labelValues = labels.values;
+
+      if (rule.backfill) {
+        // Earlier datapoints are exported once, oldest first, ahead of the newest one. They count
+        // as exported once collected, as nothing tells whether the scrape reached Prometheus.
+        long exportedUntil = labels.exportedUntil;
+        for (MetricRuleData earlier : values.earlierDatapoints) {
+          if (earlier.timestamp.toEpochMilli() > exportedUntil) {
+            addSamples(
+                baseName, labelNames, labelValues, earlier, true, baseSamples, extendedSamples);
+          }
         }
+        labels.exportedUntil = Math.max(exportedUntil, values.timestamp.toEpochMilli());
       }
+      addSamples(
+          baseName,
+          labelNames,
+          labelValues,
+          values,
+          rule.cloudwatchTimestamp,
+          baseSamples,
+          extendedSamples);
     }
-    mfs.add(
-        new MetricFamilySamples(
-            "aws_resource_info",
-            Type.GAUGE,
-            "AWS information available for resource",
-            infoSamples));
+    if (aggregator != null) {
+      for (SeriesAggregator.Group group : aggregator.groups()) {
+        SeriesLabels labels =
+            ruleSeries.labels(
+                DimensionFingerprint.of(group.owningAccount, group.dimensions),
+                () -> seriesLabels(rule, jobName, group.owningAccount, group.dimensions));
+        result.series.add(labels);
+        addSamples(
+            baseName,
+            labels.names,
+            labels.values,
+            group.data,
+            rule.cloudwatchTimestamp,
+            baseSamples,
+            extendedSamples);
+      }
+    }
+
+    if (!baseSamples.get(Statistic.SUM).isEmpty()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_sum",
+              Type.GAUGE,
+              help(rule, unit, "Sum"),
+              baseSamples.get(Statistic.SUM)));
+    }
+    if (!baseSamples.get(Statistic.SAMPLE_COUNT).isEmpty()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_sample_count",
+              Type.GAUGE,
+              help(rule, unit, "SampleCount"),
+              baseSamples.get(Statistic.SAMPLE_COUNT)));
+    }
+    if (!baseSamples.get(Statistic.MINIMUM).isEmpty()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_minimum",
+              Type.GAUGE,
+              help(rule, unit, "Minimum"),
+              baseSamples.get(Statistic.MINIMUM)));
+    }
+    if (!baseSamples.get(Statistic.MAXIMUM).isEmpty()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_maximum",
+              Type.GAUGE,
+              help(rule, unit, "Maximum"),
+              baseSamples.get(Statistic.MAXIMUM)));
+    }
+    if (!baseSamples.get(Statistic.AVERAGE).isEmpty()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_average",
+              Type.GAUGE,
+              help(rule, unit, "Average"),
+              baseSamples.get(Statistic.AVERAGE)));
+    }
+    for (Entry<String, List<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
+      mfs.add(
+          new MetricFamilySamples(
+              baseName + "_" + safeName(toSnakeCase(entry.getKey())),
+              Type.GAUGE,
+              help(rule, unit, entry.getKey()),
+              entry.getValue()));
+    }
+
+    long buildNanos = System.nanoTime() - buildStart - lazyFetchNanos;
+    ruleStageDuration
+        .labels(rule.awsNamespace, rule.awsMetricName, "data_fetch")
+        .observe((fetchNanos + lazyFetchNanos) / 1.0E9);
+    ruleStageDuration
+        .labels(rule.awsNamespace, rule.awsMetricName, "sample_building")
+        .observe(buildNanos / 1.0E9);
+    ruleSeries.commit();
+    return result;
+  }
+
+  /** Builds the labels of a series, for {@link SeriesLabelCache} to keep between scrapes. */
+  private static SeriesLabels seriesLabels(
+      MetricRule rule, String jobName, String owningAccount, List<Dimension> dimensions) {
+    List<String> labelNames = new ArrayList<>();
+    List<String> labelValues = new ArrayList<>();
+    labelNames.add("job");
+    labelValues.add(jobName);
+    labelNames.add("instance");
+    labelValues.add("");
+    // Linked source accounts are reported in the same label as account groups.
+    String accountId = owningAccount != null ? owningAccount : rule.accountId;
+    if (accountId != null) {
+      labelNames.add("account_id");
+      labelValues.add(accountId);
+    }
+    if (rule.region != null) {
+      labelNames.add("region");
+      labelValues.add(rule.region);
+    }
+    for (Dimension d : dimensions) {
+      labelNames.add(safeLabelName(toSnakeCase(d.name())));
+      labelValues.add(d.value());
+    }
+    return new SeriesLabels(labelNames, labelValues);
+  }
+
+  /**
+   * Records the time elapsed since {@code stageStart} for the given rule and stage.
+   *
+   * @return the current {@link System#nanoTime()}, to be used as the start of the next stage
+   */
+  private static long observeStage(MetricRule rule, String stage, long stageStart) {
+    long now = System.nanoTime();
+    ruleStageDuration
+        .labels(rule.awsNamespace, rule.awsMetricName, stage)
+        .observe((now - stageStart) / 1.0E9);
+    return now;
   }
 
+  /**
+   * Scrapes CloudWatch, unless the samples are pushed with remote write, in which case scrapes
+   * return nothing so that CloudWatch is not queried twice.
+   */
   public List<MetricFamilySamples> collect() {
+    if (activeConfig.get().remoteWrite != null) {
+      return Collections.emptyList();
+    }
+    return collectSamples();
+  }
+
+  /** Scrapes CloudWatch and returns the samples along with the exporter's own. */
+  List<MetricFamilySamples> collectSamples() {
+    // The copies of a rule for other regions and accounts yield families of the same name, which
+    // the exposition formats only allow once.
+    Map<String, List<MetricFamilySamples>> byName = new LinkedHashMap<>();
+    collectSamples(
+        family -> byName.computeIfAbsent(family.name, name -> new ArrayList<>()).add(family));
+    List<MetricFamilySamples> mfs = new ArrayList<>(byName.size());
+    for (List<MetricFamilySamples> families : byName.values()) {
+      mfs.add(families.size() == 1 ? families.get(0) : merge(families));
+    }
+    return mfs;
+  }
+
+  /** One family with the samples of all of them, described by the first. */
+  private static MetricFamilySamples merge(List<MetricFamilySamples> families) {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    for (MetricFamilySamples family : families) {
+      samples.addAll(family.samples);
+    }
+    MetricFamilySamples first = families.get(0);
+    return new MetricFamilySamples(first.name, first.type, first.help, samples);
+  }
+
+  /**
+   * Scrapes CloudWatch and hands the samples, along with the exporter's own, to {@code sink} rule
+   * by rule.
+   */
+  void collectSamples(Consumer<MetricFamilySamples> sink) {
     long start = System.nanoTime();
     double error = 0;
-    List<MetricFamilySamples> mfs = new ArrayList<>();
+    ActiveConfig config = activeConfig.get();
+    // A reload closes the clients it dropped once the scrapes still using them are done.
+    while (!config.beginScrape()) {
+      config = activeConfig.get();
+    }
     try {
-      scrape(mfs);
+      scrape(config, sink);
     } catch (Exception e) {
       error = 1;
       LOGGER.log(Level.WARNING, "CloudWatch scrape failed", e);
+    } finally {
+      config.endScrape();
     }
     List<MetricFamilySamples.Sample> samples = new ArrayList<>();
     samples.add(
@@ -711,7 +2167,7 @@ public class CloudWatchCollector extends Collector implements Describable {
             new ArrayList<>(),
             new ArrayList<>(),
             (System.nanoTime() - start) / 1.0E9));
-    mfs.add(
+    sink.accept(
         new MetricFamilySamples(
             "cloudwatch_exporter_scrape_duration_seconds",
             Type.GAUGE,
@@ -722,13 +2178,56 @@ public class CloudWatchCollector extends Collector implements Describable {
     samples.add(
         new MetricFamilySamples.Sample(
             "cloudwatch_exporter_scrape_error", new ArrayList<>(), new ArrayList<>(), error));
-    mfs.add(
+    sink.accept(
         new MetricFamilySamples(
             "cloudwatch_exporter_scrape_error",
             Type.GAUGE,
             "Non-zero if this scrape failed.",
             samples));
-    return mfs;
+
+    if (config.metricStreams != null) {
+      metricStreamStore
+          .collect(
+              System.currentTimeMillis(),
+              config.metricStreams.seriesTtl,
+              config.metricStreams.setTimestamp)
+          .forEach(sink);
+      samples = new ArrayList<>();
+      samples.add(
+          new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_metric_streams_series",
+              new ArrayList<>(),
+              new ArrayList<>(),
+              metricStreamStore.size()));
+      sink.accept(
+          new MetricFamilySamples(
+              "cloudwatch_exporter_metric_streams_series",
+              Type.GAUGE,
+              "Number of series currently held from CloudWatch Metric Streams.",
+              samples));
+    }
+
+    samples = new ArrayList<>();
+    samples.add(
+        new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_api_concurrency_limit",
+            List.of("account_id"),
+            List.of(""),
+            config.apiCallRunner.getConcurrencyLimiter().getLimit()));
+    for (Entry<String, ApiCallRunner> account : new TreeMap<>(config.accountRunners).entrySet()) {
+      samples.add(
+          new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_api_concurrency_limit",
+              List.of("account_id"),
+              List.of(account.getKey()),
+              account.getValue().getConcurrencyLimiter().getLimit()));
+    }
+    sink.accept(
+        new MetricFamilySamples(
+            "cloudwatch_exporter_api_concurrency_limit",
+            Type.GAUGE,
+            "Number of CloudWatch and tagging API requests currently allowed in flight, by account.",
+            samples));
   }
 
   private String extractResourceIdFromArn(String arn, Pattern arnResourceIdRegexp) {
@@ -1,6 +1,8 @@
 package io.prometheus.cloudwatch;
 
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +12,24 @@ import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 interface DataGetter {
   MetricRuleData metricRuleDataFor(List<Dimension> dimensions);
 
+  /**
+   * Data of a dimension set of a linked source account, when the rule includes linked accounts.
+   *
+   * @param owningAccount the account the dimension set belongs to, or null for the scraped account
+   */
+  default MetricRuleData metricRuleDataFor(List<Dimension> dimensions, String owningAccount) {
+    return metricRuleDataFor(dimensions);
+  }
+
+  /**
+   * Data of the dimension set at {@code index}, which getters that know the sets up front look up
+   * by their {@link DimensionData#getFingerprint(int) fingerprint}.
+   */
+  default MetricRuleData metricRuleDataFor(DimensionData dimensionData, int index) {
+    return metricRuleDataFor(
+        dimensionData.getDimensions().get(index), dimensionData.getOwningAccount(index));
+  }
+
   class MetricRuleData {
     Map<Statistic, Double> statisticValues;
     Map<String, Double> extendedValues;
@@ -17,6 +37,12 @@ interface DataGetter {
 
     String unit;
 
+    /**
+     * The datapoints of the window older than this one, oldest first, only filled for rules with
+     * {@code backfill}.
+     */
+    List<MetricRuleData> earlierDatapoints = Collections.emptyList();
+
     MetricRuleData(Instant timestamp, String unit) {
       this.timestamp = timestamp;
       this.unit = unit;
@@ -2,9 +2,24 @@ package io.prometheus.cloudwatch;
 
 import io.prometheus.client.Counter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
@@ -17,12 +32,45 @@ import software.amazon.awssdk.services.cloudwatch.model.Metric;
 final class DefaultDimensionSource implements DimensionSource {
 
   private static final Logger LOGGER = Logger.getLogger(DefaultDimensionSource.class.getName());
+
+  /** The default of {@code list_metrics_partitions}. */
+  static final int DEFAULT_LIST_METRICS_PARTITIONS = 10;
+
+  private static final ThreadFactory LIST_METRICS_THREAD_FACTORY =
+      runnable -> {
+        Thread thread = new Thread(runnable, "cloudwatch-exporter-list-metrics");
+        thread.setDaemon(true);
+        return thread;
+      };
+
   private final Counter cloudwatchRequests;
   private final CloudWatchClient cloudWatchClient;
+  private final ApiCallRunner apiCallRunner;
+  // Lists the partitions of every rule, null when the runner allows a single request in flight.
+  private final ExecutorService listMetricsExecutor;
 
-  public DefaultDimensionSource(CloudWatchClient cloudWatchClient, Counter cloudwatchRequests) {
+  public DefaultDimensionSource(
+      CloudWatchClient cloudWatchClient, ApiCallRunner apiCallRunner, Counter cloudwatchRequests) {
     this.cloudWatchClient = cloudWatchClient;
+    this.apiCallRunner = apiCallRunner;
     this.cloudwatchRequests = cloudwatchRequests;
+    // No more partitions can be listed at once than the runner lets requests be in flight. Idle
+    // threads exit, so a source replaced by a configuration reload leaves none behind.
+    int threads = apiCallRunner.getConcurrencyLimiter().getMaxLimit();
+    if (threads > 1) {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              60,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              LIST_METRICS_THREAD_FACTORY);
+      executor.allowCoreThreadTimeOut(true);
+      this.listMetricsExecutor = executor;
+    } else {
+      this.listMetricsExecutor = null;
+    }
   }
 
   public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
@@ -31,11 +79,17 @@ final class DefaultDimensionSource implements DimensionSource {
         && !rule.awsDimensions.isEmpty()
         && rule.awsDimensions.size() == rule.awsDimensionSelect.size()
         && rule.awsDimensionSelect.keySet().containsAll(rule.awsDimensions)
-        && rule.awsTagSelect == null) {
+        && rule.awsTagSelect == null
+        && !rule.includeLinkedAccounts) {
       // The full list of dimensions is known so no need to request it from cloudwatch.
-      return new DimensionData(permuteDimensions(rule.awsDimensions, rule.awsDimensionSelect));
+      SeriesAccumulator series = new SeriesAccumulator(rule, false);
+      for (List<Dimension> dimensions :
+          permuteDimensions(rule.awsDimensions, rule.awsDimensionSelect)) {
+        series.add(dimensions, null);
+      }
+      return series.toDimensionData();
     } else {
-      return new DimensionData(listDimensions(rule, tagBasedResourceIds, cloudWatchClient));
+      return listDimensions(rule, tagBasedResourceIds, cloudWatchClient);
     }
   }
 
@@ -62,14 +116,156 @@ final class DefaultDimensionSource implements DimensionSource {
     return result;
   }
 
-  private List<List<Dimension>> listDimensions(
+  private DimensionData listDimensions(
       MetricRule rule, List<String> tagBasedResourceIds, CloudWatchClient cloudWatchClient) {
-    List<List<Dimension>> dimensions = new ArrayList<>();
     if (rule.awsDimensions == null) {
+      List<List<Dimension>> dimensions = new ArrayList<>();
       dimensions.add(new ArrayList<>());
-      return dimensions;
+      return new DimensionData(dimensions);
+    }
+    // ListMetrics returns the owning account of every metric when asked for linked accounts.
+    SeriesAccumulator series = new SeriesAccumulator(rule, rule.includeLinkedAccounts);
+    // Looked up for every listed metric, which may be many more than the tagged resources.
+    Set<String> tagBasedResourceIdSet = new HashSet<>(tagBasedResourceIds);
+
+    List<List<DimensionFilter>> partitions = dimensionFilterPartitions(rule, tagBasedResourceIds);
+    if (partitions.isEmpty()) {
+      LOGGER.fine(
+          String.format(
+              "(listDimensions) %s:%s selects no dimension values, not listing it",
+              rule.awsNamespace, rule.awsMetricName));
+    } else if (partitions.size() == 1 || listMetricsExecutor == null) {
+      for (List<DimensionFilter> partition : partitions) {
+        listPartition(rule, partition, tagBasedResourceIdSet, series::add);
+      }
+    } else {
+      listPartitions(rule, partitions, tagBasedResourceIdSet, series);
+      // Partitions finish in any order, the series are exported in one that does not depend on it.
+      series.sort();
+    }
+    DimensionData dimensions = series.toDimensionData();
+    if (rule.warnOnEmptyListDimensions && dimensions.getDimensions().isEmpty()) {
+      LOGGER.warning(
+          String.format(
+              "(listDimensions) ignoring metric %s:%s due to dimensions mismatch",
+              rule.awsNamespace, rule.awsMetricName));
+    }
+    return dimensions;
+  }
+
+  /**
+   * The dimension filters of the ListMetrics paginations a rule is listed with, which together
+   * return every metric the rule selects, or none when no metric can be selected.
+   *
+   * <p>The values a dimension may have are those of {@code aws_dimension_select} and, for the
+   * {@code resource_id_dimension} of an {@code aws_tag_select} with tag selections, the ids of the
+   * tagged resources. Those only rule out listings unless {@code list_by_resource_id} is set, as a
+   * listing per resource costs more calls than paging the whole metric when it has few pages. Known
+   * values are pushed into the filters, so that CloudWatch only returns the selected metrics rather
+   * than every page of the namespace. A filter holds a single value, so dimensions with several
+   * values are partitioned into one pagination per combination of values, unless that would take
+   * more than {@code list_metrics_partitions} paginations; then only dimensions with a single value
+   * are pushed down.
+   */
+  static List<List<DimensionFilter>> dimensionFilterPartitions(
+      MetricRule rule, Collection<String> tagBasedResourceIds) {
+    Map<String, Collection<String>> knownValues = new HashMap<>();
+    if (rule.awsDimensionSelect != null) {
+      for (Map.Entry<String, List<String>> select : rule.awsDimensionSelect.entrySet()) {
+        knownValues.put(select.getKey(), new LinkedHashSet<>(select.getValue()));
+      }
+    }
+    if (rule.awsTagSelect != null && rule.awsTagSelect.tagSelections != null) {
+      Collection<String> selected = knownValues.get(rule.awsTagSelect.resourceIdDimension);
+      Set<String> values = new LinkedHashSet<>(tagBasedResourceIds);
+      if (selected != null) {
+        values.retainAll(selected);
+      }
+      if (values.isEmpty()) {
+        return Collections.emptyList();
+      }
+      if (rule.awsTagSelect.listByResourceId) {
+        knownValues.put(rule.awsTagSelect.resourceIdDimension, values);
+      }
     }
 
+    long combinations = 1;
+    for (String dimension : rule.awsDimensions) {
+      Collection<String> values = knownValues.get(dimension);
+      if (values != null) {
+        if (values.isEmpty()) {
+          return Collections.emptyList();
+        }
+        combinations = Math.min(combinations * values.size(), Integer.MAX_VALUE);
+      }
+    }
+    int maxPartitions =
+        rule.listMetricsPartitions > 0
+            ? rule.listMetricsPartitions
+            : DEFAULT_LIST_METRICS_PARTITIONS;
+    boolean partition = combinations <= maxPartitions;
+
+    List<List<DimensionFilter>> partitions = new ArrayList<>();
+    partitions.add(new ArrayList<>());
+    for (String dimension : rule.awsDimensions) {
+      Collection<String> values = knownValues.get(dimension);
+      if (values == null || (values.size() > 1 && !partition)) {
+        DimensionFilter filter = DimensionFilter.builder().name(dimension).build();
+        partitions.forEach(filters -> filters.add(filter));
+        continue;
+      }
+      List<List<DimensionFilter>> expanded = new ArrayList<>();
+      for (List<DimensionFilter> filters : partitions) {
+        for (String value : values) {
+          List<DimensionFilter> copy = new ArrayList<>(filters);
+          copy.add(DimensionFilter.builder().name(dimension).value(value).build());
+          expanded.add(copy);
+        }
+      }
+      partitions = expanded;
+    }
+    return partitions;
+  }
+
+  /**
+   * Lists the partitions of a rule in parallel, each pagination being sequential. Every pagination
+   * adds its series to the accumulator as they are listed, so that no partition is held in full.
+   */
+  private void listPartitions(
+      MetricRule rule,
+      List<List<DimensionFilter>> partitions,
+      Set<String> tagBasedResourceIds,
+      SeriesAccumulator series) {
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (List<DimensionFilter> partition : partitions) {
+        futures.add(
+            listMetricsExecutor.submit(
+                () -> listPartition(rule, partition, tagBasedResourceIds, series::add)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while listing CloudWatch metrics", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      // Partitions of a failed listing are not needed anymore.
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+
+  /** Pages through ListMetrics with the given filters, passing on the metrics the rule uses. */
+  private void listPartition(
+      MetricRule rule,
+      List<DimensionFilter> dimensionFilters,
+      Set<String> tagBasedResourceIds,
+      BiConsumer<List<Dimension>, String> listed) {
     ListMetricsRequest.Builder requestBuilder = ListMetricsRequest.builder();
     requestBuilder.namespace(rule.awsNamespace);
     requestBuilder.metricName(rule.awsMetricName);
@@ -79,43 +275,175 @@ final class DefaultDimensionSource implements DimensionSource {
       requestBuilder.recentlyActive("PT3H");
     }
 
-    List<DimensionFilter> dimensionFilters = new ArrayList<>();
-    for (String dimension : rule.awsDimensions) {
-      dimensionFilters.add(DimensionFilter.builder().name(dimension).build());
-    }
     requestBuilder.dimensions(dimensionFilters);
+    if (rule.includeLinkedAccounts) {
+      requestBuilder.includeLinkedAccounts(true);
+    }
 
     String nextToken = null;
     do {
       requestBuilder.nextToken(nextToken);
-      ListMetricsResponse response = cloudWatchClient.listMetrics(requestBuilder.build());
+      ListMetricsRequest request = requestBuilder.build();
+      ListMetricsResponse response =
+          apiCallRunner.call(
+              "listMetrics", rule.awsNamespace, () -> cloudWatchClient.listMetrics(request));
       cloudwatchRequests.labels("listMetrics", rule.awsNamespace).inc();
-      for (Metric metric : response.metrics()) {
+      for (int i = 0; i < response.metrics().size(); i++) {
+        Metric metric = response.metrics().get(i);
         if (metric.dimensions().size() != dimensionFilters.size()) {
           // AWS returns all the metrics with dimensions beyond the ones we ask for,
           // so filter them out.
           continue;
         }
-        if (useMetric(rule, tagBasedResourceIds, metric)) {
-          dimensions.add(metric.dimensions());
+        if (matchesFilterValues(dimensionFilters, metric)
+            && useMetric(rule, tagBasedResourceIds, metric)) {
+          listed.accept(
+              metric.dimensions(),
+              rule.includeLinkedAccounts ? response.owningAccounts().get(i) : null);
         }
       }
       nextToken = response.nextToken();
     } while (nextToken != null);
-    if (rule.warnOnEmptyListDimensions && dimensions.isEmpty()) {
-      LOGGER.warning(
-          String.format(
-              "(listDimensions) ignoring metric %s:%s due to dimensions mismatch",
-              rule.awsNamespace, rule.awsMetricName));
+  }
+
+  /**
+   * Checks the values pushed into a partition's filters again, so that a metric is never listed by
+   * two partitions even if ListMetrics returned more than asked for.
+   */
+  private static boolean matchesFilterValues(List<DimensionFilter> filters, Metric metric) {
+    for (DimensionFilter filter : filters) {
+      if (filter.value() != null
+          && metric.dimensions().stream()
+              .noneMatch(d -> d.name().equals(filter.name()) && d.value().equals(filter.value()))) {
+        return false;
+      }
     }
-    return dimensions;
+    return true;
+  }
+
+  /**
+   * Collects the dimension sets of a rule, keeping at most {@link MetricRule#maxSeries} of them
+   * while they are listed, so memory stays bounded whatever ListMetrics returns.
+   *
+   * <p>When there are too many, the ones kept are those that sort first by owning account and
+   * dimensions, which does not depend on the order ListMetrics returned them in. Partitions listed
+   * in parallel add to the same accumulator.
+   */
+  private static final class SeriesAccumulator {
+    private final MetricRule rule;
+    private final boolean withOwningAccounts;
+    private List<Series> series = new ArrayList<>();
+    private int total;
+
+    SeriesAccumulator(MetricRule rule, boolean withOwningAccounts) {
+      this.rule = rule;
+      this.withOwningAccounts = withOwningAccounts;
+    }
+
+    synchronized void add(List<Dimension> dimensions, String owningAccount) {
+      series.add(new Series(dimensions, owningAccount));
+      total++;
+      // Trimming once every maxSeries additions rather than on each one keeps sorting cheap.
+      if (rule.maxSeries > 0 && series.size() >= 2 * rule.maxSeries) {
+        truncate();
+      }
+    }
+
+    void sort() {
+      series.sort(Comparator.comparing(Series::key));
+    }
+
+    DimensionData toDimensionData() {
+      int dropped = 0;
+      if (rule.maxSeries > 0 && total > rule.maxSeries) {
+        truncate();
+        dropped = total - rule.maxSeries;
+        LOGGER.warning(
+            String.format(
+                "(listDimensions) %s:%s has %d series, dropping %d above max_series %d",
+                rule.awsNamespace, rule.awsMetricName, total, dropped, rule.maxSeries));
+      }
+      List<List<Dimension>> dimensions = new ArrayList<>(series.size());
+      List<String> owningAccounts = withOwningAccounts ? new ArrayList<>(series.size()) : null;
+      for (Series s : series) {
+        dimensions.add(s.dimensions);
+        if (owningAccounts != null) {
+          owningAccounts.add(s.owningAccount);
+        }
+      }
+      return new DimensionData(dimensions, owningAccounts, dropped);
+    }
+
+    private void truncate() {
+      sort();
+      series = new ArrayList<>(series.subList(0, Math.min(series.size(), rule.maxSeries)));
+    }
+  }
+
+  private static final class Series {
+    final List<Dimension> dimensions;
+    final String owningAccount;
+    private String key;
+
+    Series(List<Dimension> dimensions, String owningAccount) {
+      this.dimensions = dimensions;
+      this.owningAccount = owningAccount;
+    }
+
+    /** The sort key, only computed for rules that exceed their limit. */
+    String key() {
+      if (key == null) {
+        key = sortKey(owningAccount, dimensions);
+      }
+      return key;
+    }
+  }
+
+  /** Orders series by owning account, then by their dimensions sorted by name. */
+  static String sortKey(String owningAccount, List<Dimension> dimensions) {
+    StringBuilder builder = new StringBuilder(Objects.toString(owningAccount, ""));
+    dimensions.stream()
+        .sorted(Comparator.comparing(Dimension::name))
+        .forEach(d -> builder.append('\0').append(d.name()).append('=').append(d.value()));
+    return builder.toString();
+  }
+
+  /**
+   * Keeps the first {@link MetricRule#maxSeries} series in {@link #sortKey} order of those a
+   * GetMetricData based getter found, removing the others from both lists.
+   *
+   * @param owningAccounts the owning account of every series, or null
+   * @return the number of series removed
+   */
+  static int keepMaxSeries(
+      MetricRule rule, List<List<Dimension>> dimensions, List<String> owningAccounts) {
+    if (rule.maxSeries <= 0 || dimensions.size() <= rule.maxSeries) {
+      return 0;
+    }
+    List<Series> series = new ArrayList<>(dimensions.size());
+    for (int i = 0; i < dimensions.size(); i++) {
+      series.add(
+          new Series(dimensions.get(i), owningAccounts == null ? null : owningAccounts.get(i)));
+    }
+    series.sort(Comparator.comparing(Series::key));
+    dimensions.clear();
+    if (owningAccounts != null) {
+      owningAccounts.clear();
+    }
+    for (Series s : series.subList(0, rule.maxSeries)) {
+      dimensions.add(s.dimensions);
+      if (owningAccounts != null) {
+        owningAccounts.add(s.owningAccount);
+      }
+    }
+    return series.size() - rule.maxSeries;
   }
 
   /**
    * Check if a metric should be used according to `aws_dimension_select`,
    * `aws_dimension_select_regex` and dynamic `aws_tag_select`
    */
-  private boolean useMetric(MetricRule rule, List<String> tagBasedResourceIds, Metric metric) {
+  static boolean useMetric(MetricRule rule, Collection<String> tagBasedResourceIds, Metric metric) {
     if (rule.awsDimensionSelect != null && !metricsIsInAwsDimensionSelect(rule, metric)) {
       return false;
     }
@@ -129,50 +457,34 @@ final class DefaultDimensionSource implements DimensionSource {
   }
 
   /** Check if a metric is matched in `aws_dimension_select` */
-  private boolean metricsIsInAwsDimensionSelect(MetricRule rule, Metric metric) {
-    Set<String> dimensionSelectKeys = rule.awsDimensionSelect.keySet();
+  private static boolean metricsIsInAwsDimensionSelect(MetricRule rule, Metric metric) {
+    Map<String, Set<String>> dimensionSelectValues = rule.dimensionSelectValues();
     for (Dimension dimension : metric.dimensions()) {
-      String dimensionName = dimension.name();
-      String dimensionValue = dimension.value();
-      if (dimensionSelectKeys.contains(dimensionName)) {
-        List<String> allowedDimensionValues = rule.awsDimensionSelect.get(dimensionName);
-        if (!allowedDimensionValues.contains(dimensionValue)) {
-          return false;
-        }
+      Set<String> allowedDimensionValues = dimensionSelectValues.get(dimension.name());
+      if (allowedDimensionValues != null && !allowedDimensionValues.contains(dimension.value())) {
+        return false;
       }
     }
     return true;
   }
 
   /** Check if a metric is matched in `aws_dimension_select_regex` */
-  private boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, Metric metric) {
-    Set<String> dimensionSelectRegexKeys = rule.awsDimensionSelectRegex.keySet();
+  private static boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, Metric metric) {
+    Map<String, List<Pattern>> dimensionSelectPatterns = rule.dimensionSelectPatterns();
     for (Dimension dimension : metric.dimensions()) {
-      String dimensionName = dimension.name();
-      String dimensionValue = dimension.value();
-      if (dimensionSelectRegexKeys.contains(dimensionName)) {
-        List<String> allowedDimensionValues = rule.awsDimensionSelectRegex.get(dimensionName);
-        if (!regexListMatch(allowedDimensionValues, dimensionValue)) {
-          return false;
-        }
+      List<Pattern> allowedDimensionValues = dimensionSelectPatterns.get(dimension.name());
+      if (allowedDimensionValues != null
+          && allowedDimensionValues.stream()
+              .noneMatch(pattern -> pattern.matcher(dimension.value()).matches())) {
+        return false;
       }
     }
     return true;
   }
 
-  /** Check if any regex string in a list matches a given input value */
-  protected static boolean regexListMatch(List<String> regexList, String input) {
-    for (String regex : regexList) {
-      if (Pattern.matches(regex, input)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   /** Check if a metric is matched in `aws_tag_select` */
-  private boolean metricIsInAwsTagSelect(
-      MetricRule rule, List<String> tagBasedResourceIds, Metric metric) {
+  private static boolean metricIsInAwsTagSelect(
+      MetricRule rule, Collection<String> tagBasedResourceIds, Metric metric) {
     if (rule.awsTagSelect.tagSelections == null) {
       return true;
     }
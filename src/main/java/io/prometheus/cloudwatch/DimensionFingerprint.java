@@ -0,0 +1,108 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import org.apache.commons.codec.digest.MurmurHash3;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * Identifies a dimension set and its owning account, used instead of a string key to route
+ * GetMetricData results back to their series and to look series up in caches.
+ *
+ * <p>The dimensions are sorted by name once and hashed with 128-bit MurmurHash3, so the fingerprint
+ * does not depend on the order ListMetrics returned them in. The hash only makes lookups cheap: two
+ * fingerprints are equal when their account and dimensions are, so series whose hashes collide
+ * still never share an entry of a map keyed by fingerprint.
+ */
+final class DimensionFingerprint {
+
+  private static final Comparator<Dimension> BY_NAME =
+      Comparator.comparing(Dimension::name).thenComparing(Dimension::value);
+
+  private final String owningAccount;
+  private final List<Dimension> sortedDimensions;
+  private final long high;
+  private final long low;
+
+  private DimensionFingerprint(
+      String owningAccount, List<Dimension> sortedDimensions, long high, long low) {
+    this.owningAccount = owningAccount;
+    this.sortedDimensions = sortedDimensions;
+    this.high = high;
+    this.low = low;
+  }
+
+  /**
+   * @param owningAccount the linked account the series belongs to, or null
+   */
+  static DimensionFingerprint of(String owningAccount, List<Dimension> dimensions) {
+    List<Dimension> sorted = new ArrayList<>(dimensions);
+    sorted.sort(BY_NAME);
+    long[] hash = MurmurHash3.hash128x64(encode(owningAccount, sorted));
+    return new DimensionFingerprint(owningAccount, sorted, hash[0], hash[1]);
+  }
+
+  /** Only for tests, to make fingerprints of different series with the same hash. */
+  static DimensionFingerprint withHash(
+      String owningAccount, List<Dimension> dimensions, long high, long low) {
+    List<Dimension> sorted = new ArrayList<>(dimensions);
+    sorted.sort(BY_NAME);
+    return new DimensionFingerprint(owningAccount, sorted, high, low);
+  }
+
+  /**
+   * Every string is written with its length first, so that no two different accounts and dimension
+   * sets have the same encoding whatever characters their names and values contain.
+   */
+  private static byte[] encode(String owningAccount, List<Dimension> sorted) {
+    List<byte[]> parts = new ArrayList<>(1 + 2 * sorted.size());
+    parts.add(owningAccount == null ? null : owningAccount.getBytes(StandardCharsets.UTF_8));
+    for (Dimension dimension : sorted) {
+      parts.add(dimension.name().getBytes(StandardCharsets.UTF_8));
+      parts.add(dimension.value().getBytes(StandardCharsets.UTF_8));
+    }
+    int size = 0;
+    for (byte[] part : parts) {
+      size += Integer.BYTES + (part == null ? 0 : part.length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (byte[] part : parts) {
+      // -1 tells a missing account apart from an empty one.
+      buffer.putInt(part == null ? -1 : part.length);
+      if (part != null) {
+        buffer.put(part);
+      }
+    }
+    return buffer.array();
+  }
+
+  /** The hash as it is written in query labels, 32 hexadecimal digits. */
+  String hash() {
+    return String.format("%016x%016x", high, low);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    DimensionFingerprint that = (DimensionFingerprint) o;
+    return high == that.high
+        && low == that.low
+        && Objects.equals(owningAccount, that.owningAccount)
+        && sortedDimensions.equals(that.sortedDimensions);
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(low);
+  }
+
+  @Override
+  public String toString() {
+    return hash();
+  }
+}
@@ -9,13 +9,63 @@ interface DimensionSource {
 
   class DimensionData {
     private final List<List<Dimension>> dimensions;
+    private final List<String> owningAccounts;
+    private final int droppedSeries;
+    private volatile DimensionFingerprint[] fingerprints;
 
     DimensionData(List<List<Dimension>> dimensions) {
+      this(dimensions, null);
+    }
+
+    DimensionData(List<List<Dimension>> dimensions, List<String> owningAccounts) {
+      this(dimensions, owningAccounts, 0);
+    }
+
+    /**
+     * @param owningAccounts the account each dimension set belongs to, in the same order, or null
+     *     when all of them belong to the account the rule is scraped from
+     * @param droppedSeries the number of dimension sets left out to stay within the rule's {@code
+     *     max_series}
+     */
+    DimensionData(
+        List<List<Dimension>> dimensions, List<String> owningAccounts, int droppedSeries) {
       this.dimensions = dimensions;
+      this.owningAccounts = owningAccounts;
+      this.droppedSeries = droppedSeries;
     }
 
     List<List<Dimension>> getDimensions() {
       return dimensions;
     }
+
+    /** The account of the dimension set at {@code index}, or null for the scraped account. */
+    String getOwningAccount(int index) {
+      return owningAccounts == null ? null : owningAccounts.get(index);
+    }
+
+    /**
+     * The {@link DimensionFingerprint} of the dimension set at {@code index} and its owning
+     * account. They are computed on first use and kept for as long as the data, which dimension
+     * caches reuse across scrapes.
+     */
+    DimensionFingerprint getFingerprint(int index) {
+      DimensionFingerprint[] computed = fingerprints;
+      if (computed == null) {
+        computed = new DimensionFingerprint[dimensions.size()];
+        for (int i = 0; i < computed.length; i++) {
+          computed[i] = DimensionFingerprint.of(getOwningAccount(i), dimensions.get(i));
+        }
+        fingerprints = computed;
+      }
+      return computed[index];
+    }
+
+    List<String> getOwningAccounts() {
+      return owningAccounts;
+    }
+
+    int getDroppedSeries() {
+      return droppedSeries;
+    }
   }
 }
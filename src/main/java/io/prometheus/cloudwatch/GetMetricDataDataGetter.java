@@ -1,13 +1,16 @@
 package io.prometheus.cloudwatch;
 
 import io.prometheus.client.Counter;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
@@ -21,28 +24,23 @@ import software.amazon.awssdk.services.cloudwatch.model.ScanBy;
 import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 
 class GetMetricDataDataGetter implements DataGetter {
+  private static final Logger LOGGER = Logger.getLogger(GetMetricDataDataGetter.class.getName());
 
   private static final int MAX_QUERIES_PER_REQUEST = 500;
   // https://aws.amazon.com/cloudwatch/pricing/
   private final long start;
   private final MetricRule rule;
   private final CloudWatchClient client;
+  private final ApiCallRunner apiCallRunner;
   private final Counter apiRequestsCounter;
   private final Counter metricsRequestedCounter;
-  private final Map<String, MetricRuleData> results;
+  private final DimensionData dimensionData;
+  private final Map<DimensionFingerprint, MetricRuleData> previousResults;
+  // The series of the query labels by the hash they carry, to route the results back.
+  private final Map<String, DimensionFingerprint> seriesByHash = new HashMap<>();
+  private final Map<DimensionFingerprint, MetricRuleData> results;
   private double metricRequestedForBilling;
 
-  private static String dimensionToString(Dimension d) {
-    return String.format("%s=%s", d.name(), d.value());
-  }
-
-  private static String dimensionsToKey(List<Dimension> dimentions) {
-    return dimentions.stream()
-        .map(GetMetricDataDataGetter::dimensionToString)
-        .sorted()
-        .collect(Collectors.joining(","));
-  }
-
   private List<String> buildStatsList(MetricRule rule) {
     List<String> stats = new ArrayList<>();
     if (rule.awsStatistics != null) {
@@ -55,15 +53,17 @@ class GetMetricDataDataGetter implements DataGetter {
     return stats;
   }
 
-  private List<MetricDataQuery> buildMetricDataQueries(
-      MetricRule rule, List<List<Dimension>> dimensionsList) {
+  private List<MetricDataQuery> buildMetricDataQueries(MetricRule rule, List<Integer> indexes) {
     List<MetricDataQuery> queries = new ArrayList<>();
     List<String> stats = buildStatsList(rule);
     for (String stat : stats) {
-      for (List<Dimension> dl : dimensionsList) {
-        Metric metric = buildMetric(dl);
+      for (int i : indexes) {
+        List<Dimension> dl = dimensionData.getDimensions().get(i);
+        String owningAccount = dimensionData.getOwningAccount(i);
+        Metric metric = buildMetric(rule.awsMetricName, dl);
         MetricStat metricStat = buildMetricStat(stat, metric);
-        MetricDataQuery query = buildQuery(stat, dl, metricStat);
+        MetricDataQuery query =
+            buildQuery(stat, dimensionData.getFingerprint(i), owningAccount, metricStat);
         queries.add(query);
       }
     }
@@ -71,14 +71,87 @@ class GetMetricDataDataGetter implements DataGetter {
     return queries;
   }
 
-  private MetricDataQuery buildQuery(String stat, List<Dimension> dl, MetricStat metric) {
+  /**
+   * The metric math queries of every series, one group per series so that a request always holds
+   * the expressions together with the inputs they refer to. Only the expressions return data.
+   */
+  private List<List<MetricDataQuery>> buildMetricMathQueries(
+      MetricRule rule, List<Integer> indexes) {
+    List<List<MetricDataQuery>> groups = new ArrayList<>();
+    for (int i : indexes) {
+      List<Dimension> dl = dimensionData.getDimensions().get(i);
+      String owningAccount = dimensionData.getOwningAccount(i);
+      // Ids must be unique within a request, which holds many series.
+      String inputPrefix = "m" + i + "_";
+      List<MetricDataQuery> group = new ArrayList<>();
+      for (Map.Entry<String, MetricRule.MathInput> input : rule.metricMathInputs.entrySet()) {
+        MetricDataQuery.Builder builder = MetricDataQuery.builder();
+        builder.id(inputPrefix + input.getKey());
+        if (owningAccount != null) {
+          builder.accountId(owningAccount);
+        }
+        builder.metricStat(
+            buildMetricStat(
+                input.getValue().awsStatistic, buildMetric(input.getValue().awsMetricName, dl)));
+        builder.returnData(false);
+        group.add(builder.build());
+      }
+      int expressionIndex = 0;
+      for (Map.Entry<String, String> expression : rule.metricMath.entrySet()) {
+        MetricDataQuery.Builder builder = MetricDataQuery.builder();
+        builder.id("e" + i + "_" + expressionIndex++);
+        builder.expression(
+            qualifyIds(expression.getValue(), rule.metricMathInputs.keySet(), inputPrefix));
+        builder.label(MetricLabels.labelFor(expression.getKey(), dimensionData.getFingerprint(i)));
+        group.add(builder.build());
+      }
+      metricRequestedForBilling += rule.metricMathInputs.size();
+      groups.add(group);
+    }
+    return groups;
+  }
+
+  /** Prefixes the ids an expression refers to, leaving functions and quoted strings alone. */
+  static String qualifyIds(String expression, Set<String> ids, String prefix) {
+    StringBuilder qualified = new StringBuilder();
+    int i = 0;
+    while (i < expression.length()) {
+      char c = expression.charAt(i);
+      if (c == '"') {
+        int end = expression.indexOf('"', i + 1);
+        end = end < 0 ? expression.length() : end + 1;
+        qualified.append(expression, i, end);
+        i = end;
+      } else if (Character.isLetter(c) || c == '_') {
+        int end = i + 1;
+        while (end < expression.length()
+            && (Character.isLetterOrDigit(expression.charAt(end))
+                || expression.charAt(end) == '_')) {
+          end++;
+        }
+        String token = expression.substring(i, end);
+        qualified.append(ids.contains(token) ? prefix + token : token);
+        i = end;
+      } else {
+        qualified.append(c);
+        i++;
+      }
+    }
+    return qualified.toString();
+  }
+
+  private MetricDataQuery buildQuery(
+      String stat, DimensionFingerprint fingerprint, String owningAccount, MetricStat metric) {
     // random id - we don't care about it
     String id = "i" + UUID.randomUUID().toString().replace("-", "");
     MetricDataQuery.Builder builder = MetricDataQuery.builder();
     builder.id(id);
+    if (owningAccount != null) {
+      builder.accountId(owningAccount);
+    }
 
     // important - used to locate back the results
-    String label = MetricLabels.labelFor(stat, dl);
+    String label = MetricLabels.labelFor(stat, fingerprint);
     builder.label(label);
     builder.metricStat(metric);
     return builder.build();
@@ -92,14 +165,31 @@ class GetMetricDataDataGetter implements DataGetter {
     return builder.build();
   }
 
-  private Metric buildMetric(List<Dimension> dl) {
+  private Metric buildMetric(String metricName, List<Dimension> dl) {
     Metric.Builder builder = Metric.builder();
     builder.namespace(rule.awsNamespace);
-    builder.metricName(rule.awsMetricName);
+    builder.metricName(metricName);
     builder.dimensions(dl);
     return builder.build();
   }
 
+  /** Packs groups into partitions of at most the given size, without splitting any group. */
+  static <T> List<List<T>> packGroups(List<List<T>> groups, int maxPartitionSize) {
+    List<List<T>> partitions = new ArrayList<>();
+    List<T> partition = new ArrayList<>();
+    for (List<T> group : groups) {
+      if (!partition.isEmpty() && partition.size() + group.size() > maxPartitionSize) {
+        partitions.add(partition);
+        partition = new ArrayList<>();
+      }
+      partition.addAll(group);
+    }
+    if (!partition.isEmpty()) {
+      partitions.add(partition);
+    }
+    return partitions;
+  }
+
   public static <T> List<List<T>> partitionByMaxSize(List<T> list, int maxPartitionSize) {
     List<List<T>> partitions = new ArrayList<>();
     List<T> remaining = list;
@@ -115,45 +205,114 @@ class GetMetricDataDataGetter implements DataGetter {
     return partitions;
   }
 
-  private List<GetMetricDataRequest> buildMetricDataRequests(
-      MetricRule rule, List<List<Dimension>> dimensionsList) {
-    Date startDate = new Date(start - 1000L * rule.delaySeconds);
-    Date endDate = new Date(start - 1000L * (rule.delaySeconds + rule.rangeSeconds));
-    GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder();
-    builder.endTime(startDate.toInstant());
-    builder.startTime(endDate.toInstant());
-    builder.scanBy(ScanBy.TIMESTAMP_DESCENDING);
-    List<MetricDataQuery> queries = buildMetricDataQueries(rule, dimensionsList);
+  private List<GetMetricDataRequest> buildMetricDataRequests(MetricRule rule) {
+    long windowEnd = start - 1000L * rule.delaySeconds;
+    long windowStart = start - 1000L * (rule.delaySeconds + rule.rangeSeconds);
+
+    // Series are grouped by the start of the window they need, as a request has a single window.
+    Map<Long, List<Integer>> seriesByStart = new TreeMap<>();
+    for (int i = 0; i < dimensionData.getDimensions().size(); i++) {
+      DimensionFingerprint fingerprint = dimensionData.getFingerprint(i);
+      DimensionFingerprint routed = seriesByHash.putIfAbsent(fingerprint.hash(), fingerprint);
+      if (routed != null && !routed.equals(fingerprint)) {
+        LOGGER.warning(
+            String.format(
+                "(getMetricData) %s:%s skipping series %s, its hash collides with %s",
+                rule.awsNamespace,
+                rule.awsMetricName,
+                dimensionData.getDimensions().get(i),
+                fingerprint.hash()));
+        continue;
+      }
+      long seriesStart = windowStart;
+      if (previousResults != null) {
+        MetricRuleData previous = previousResults.get(dimensionData.getFingerprint(i));
+        if (previous != null) {
+          // Only datapoints after the last one seen are needed.
+          long next = previous.timestamp.toEpochMilli() + 1000L * rule.periodSeconds;
+          if (next >= windowEnd) {
+            continue;
+          }
+          seriesStart = Math.max(windowStart, next);
+        }
+      }
+      seriesByStart.computeIfAbsent(seriesStart, s -> new ArrayList<>()).add(i);
+    }
+
     List<GetMetricDataRequest> requests = new ArrayList<>();
-    for (List<MetricDataQuery> queriesPartition :
-        partitionByMaxSize(queries, MAX_QUERIES_PER_REQUEST)) {
-      requests.add(builder.metricDataQueries(queriesPartition).build());
+    for (Map.Entry<Long, List<Integer>> entry : seriesByStart.entrySet()) {
+      GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder();
+      builder.endTime(Instant.ofEpochMilli(windowEnd));
+      builder.startTime(Instant.ofEpochMilli(entry.getKey()));
+      builder.scanBy(ScanBy.TIMESTAMP_DESCENDING);
+      List<MetricDataQuery> queries = buildMetricDataQueries(rule, entry.getValue());
+      for (List<MetricDataQuery> queriesPartition :
+          partitionByMaxSize(queries, MAX_QUERIES_PER_REQUEST)) {
+        requests.add(builder.metricDataQueries(queriesPartition).build());
+      }
+      if (rule.metricMath != null) {
+        List<List<MetricDataQuery>> mathQueries = buildMetricMathQueries(rule, entry.getValue());
+        for (List<MetricDataQuery> queriesPartition :
+            packGroups(mathQueries, MAX_QUERIES_PER_REQUEST)) {
+          requests.add(builder.metricDataQueries(queriesPartition).build());
+        }
+      }
     }
     return requests;
   }
 
-  private Map<String, MetricRuleData> fetchAllDataPoints(List<List<Dimension>> dimensionsList) {
+  private Map<DimensionFingerprint, MetricRuleData> fetchAllDataPoints() {
     List<MetricDataResult> results = new ArrayList<>();
-    for (GetMetricDataRequest request : buildMetricDataRequests(rule, dimensionsList)) {
-      GetMetricDataResponse response = client.getMetricData(request);
+    for (GetMetricDataRequest request : buildMetricDataRequests(rule)) {
+      GetMetricDataResponse response =
+          apiCallRunner.call(
+              "getMetricData", rule.awsNamespace, () -> client.getMetricData(request));
       apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
       results.addAll(response.metricDataResults());
     }
     metricsRequestedCounter
         .labels(rule.awsMetricName, rule.awsNamespace)
         .inc(metricRequestedForBilling);
-    return toMap(results);
+    Map<DimensionFingerprint, MetricRuleData> fetched = toMap(results);
+    if (previousResults != null) {
+      mergePreviousResults(fetched);
+    }
+    return fetched;
   }
 
-  private Map<String, MetricRuleData> toMap(List<MetricDataResult> metricDataResults) {
-    Map<String, MetricRuleData> res = new HashMap<>();
+  /**
+   * Keeps the previous data of series without newer datapoints, as long as that data is still
+   * within {@code range_seconds}, so series disappear just as they would with full fetches.
+   */
+  private void mergePreviousResults(Map<DimensionFingerprint, MetricRuleData> fetched) {
+    long windowStart = start - 1000L * (rule.delaySeconds + rule.rangeSeconds);
+    for (int i = 0; i < dimensionData.getDimensions().size(); i++) {
+      DimensionFingerprint key = dimensionData.getFingerprint(i);
+      MetricRuleData previous = previousResults.get(key);
+      if (previous != null
+          && !fetched.containsKey(key)
+          && previous.timestamp.toEpochMilli() >= windowStart) {
+        fetched.put(key, previous);
+      }
+    }
+  }
+
+  private Map<DimensionFingerprint, MetricRuleData> toMap(
+      List<MetricDataResult> metricDataResults) {
+    if (rule.backfill) {
+      return toMapWithEarlierDatapoints(metricDataResults);
+    }
+    Map<DimensionFingerprint, MetricRuleData> res = new HashMap<>();
     for (MetricDataResult dataResult : metricDataResults) {
       if (dataResult.timestamps().isEmpty() || dataResult.values().isEmpty()) {
         continue;
       }
       StatAndDimensions statAndDimensions = MetricLabels.decode(dataResult.label());
       String statString = statAndDimensions.stat;
-      String labelsKey = statAndDimensions.dimetionsAsString;
+      DimensionFingerprint labelsKey = seriesByHash.get(statAndDimensions.dimetionsAsString);
+      if (labelsKey == null) {
+        throw new MetricLabels.UnexpectedLabel(dataResult.label());
+      }
       Instant timestamp = dataResult.timestamps().get(0);
       Double value = dataResult.values().get(0);
       MetricRuleData metricRuleData =
@@ -169,28 +328,135 @@ class GetMetricDataDataGetter implements DataGetter {
     return res;
   }
 
+  /**
+   * Groups every datapoint of the window by series and timestamp, the newest one of each series
+   * holding the earlier ones.
+   */
+  private Map<DimensionFingerprint, MetricRuleData> toMapWithEarlierDatapoints(
+      List<MetricDataResult> metricDataResults) {
+    Map<DimensionFingerprint, TreeMap<Instant, MetricRuleData>> datapoints = new HashMap<>();
+    for (MetricDataResult dataResult : metricDataResults) {
+      StatAndDimensions statAndDimensions = MetricLabels.decode(dataResult.label());
+      String statString = statAndDimensions.stat;
+      Statistic stat = Statistic.fromValue(statString);
+      DimensionFingerprint fingerprint = seriesByHash.get(statAndDimensions.dimetionsAsString);
+      if (fingerprint == null) {
+        throw new MetricLabels.UnexpectedLabel(dataResult.label());
+      }
+      TreeMap<Instant, MetricRuleData> series =
+          datapoints.computeIfAbsent(fingerprint, k -> new TreeMap<>());
+      int count = Math.min(dataResult.timestamps().size(), dataResult.values().size());
+      for (int i = 0; i < count; i++) {
+        Instant timestamp = dataResult.timestamps().get(i);
+        Double value = dataResult.values().get(i);
+        MetricRuleData metricRuleData =
+            series.computeIfAbsent(timestamp, t -> new MetricRuleData(t, "N/A"));
+        if (stat == Statistic.UNKNOWN_TO_SDK_VERSION) {
+          metricRuleData.extendedValues.put(statString, value);
+        } else {
+          metricRuleData.statisticValues.put(stat, value);
+        }
+      }
+    }
+    Map<DimensionFingerprint, MetricRuleData> res = new HashMap<>();
+    for (Map.Entry<DimensionFingerprint, TreeMap<Instant, MetricRuleData>> entry :
+        datapoints.entrySet()) {
+      if (entry.getValue().isEmpty()) {
+        continue;
+      }
+      MetricRuleData newest = entry.getValue().pollLastEntry().getValue();
+      newest.earlierDatapoints = new ArrayList<>(entry.getValue().values());
+      res.put(entry.getKey(), newest);
+    }
+    return res;
+  }
+
   GetMetricDataDataGetter(
       CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
       long start,
       MetricRule rule,
       Counter apiRequestsCounter,
       Counter metricsRequestedCounter,
       List<List<Dimension>> dimensionsList) {
+    this(
+        client,
+        apiCallRunner,
+        start,
+        rule,
+        apiRequestsCounter,
+        metricsRequestedCounter,
+        dimensionsList,
+        null);
+  }
+
+  GetMetricDataDataGetter(
+      CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      List<List<Dimension>> dimensionsList,
+      List<String> owningAccounts) {
+    this(
+        client,
+        apiCallRunner,
+        start,
+        rule,
+        apiRequestsCounter,
+        metricsRequestedCounter,
+        new DimensionData(dimensionsList, owningAccounts),
+        null);
+  }
+
+  /**
+   * @param dimensionData the dimension sets to fetch, whose fingerprints route the results back
+   * @param previousResults the {@link #getResults()} of the previous scrape of the rule, to only
+   *     fetch datapoints newer than those it had, or null to fetch the full {@code range_seconds}
+   */
+  GetMetricDataDataGetter(
+      CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      DimensionData dimensionData,
+      Map<DimensionFingerprint, MetricRuleData> previousResults) {
     this.client = client;
+    this.dimensionData = dimensionData;
+    this.previousResults = previousResults;
+    this.apiCallRunner = apiCallRunner;
     this.start = start;
     this.rule = rule;
     this.apiRequestsCounter = apiRequestsCounter;
     this.metricsRequestedCounter = metricsRequestedCounter;
     this.metricRequestedForBilling = 0d;
-    this.results = fetchAllDataPoints(dimensionsList);
+    this.results = fetchAllDataPoints();
+  }
+
+  /** The data of every series by fingerprint, to be passed to the next scrape of the rule. */
+  Map<DimensionFingerprint, MetricRuleData> getResults() {
+    return results;
   }
 
   @Override
   public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
-    return results.get(dimensionsToKey(dimensions));
+    return metricRuleDataFor(dimensions, null);
   }
 
-  private static class StatAndDimensions {
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions, String owningAccount) {
+    return results.get(DimensionFingerprint.of(owningAccount, dimensions));
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(DimensionData dimensionData, int index) {
+    return results.get(dimensionData.getFingerprint(index));
+  }
+
+  static class StatAndDimensions {
     String dimetionsAsString;
     String stat;
 
@@ -201,8 +467,12 @@ class GetMetricDataDataGetter implements DataGetter {
   }
 
   static class MetricLabels {
-    static String labelFor(String stat, List<Dimension> dimensions) {
-      return String.format("%s/%s", stat, dimensionsToKey(dimensions));
+    static String labelFor(String stat, DimensionFingerprint fingerprint) {
+      return labelFor(stat, fingerprint.hash());
+    }
+
+    static String labelFor(String stat, String resultKey) {
+      return String.format("%s/%s", stat, resultKey);
     }
 
     static StatAndDimensions decode(String label) {
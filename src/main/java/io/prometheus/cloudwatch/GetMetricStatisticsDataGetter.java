@@ -1,6 +1,8 @@
 package io.prometheus.cloudwatch;
 
 import io.prometheus.client.Counter;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -15,16 +17,19 @@ class GetMetricStatisticsDataGetter implements DataGetter {
   private long start;
   private MetricRule rule;
   private CloudWatchClient client;
+  private ApiCallRunner apiCallRunner;
   private Counter apiRequestsCounter;
   private Counter metricsRequestedCounter;
 
   GetMetricStatisticsDataGetter(
       CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
       long start,
       MetricRule rule,
       Counter apiRequestsCounter,
       Counter metricsRequestedCounter) {
     this.client = client;
+    this.apiCallRunner = apiCallRunner;
     this.start = start;
     this.rule = rule;
     this.apiRequestsCounter = apiRequestsCounter;
@@ -49,13 +54,33 @@ class GetMetricStatisticsDataGetter implements DataGetter {
   public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
     GetMetricStatisticsRequest.Builder builder = metricStatisticsRequestBuilder();
     builder.dimensions(dimensions);
-    GetMetricStatisticsResponse response = client.getMetricStatistics(builder.build());
+    GetMetricStatisticsRequest request = builder.build();
+    GetMetricStatisticsResponse response =
+        apiCallRunner.call(
+            "getMetricStatistics", rule.awsNamespace, () -> client.getMetricStatistics(request));
     apiRequestsCounter.labels("getMetricStatistics", rule.awsNamespace).inc();
     metricsRequestedCounter.labels(rule.awsMetricName, rule.awsNamespace).inc();
+    if (rule.backfill) {
+      return toMetricValuesWithEarlierDatapoints(response.datapoints());
+    }
     Datapoint latestDp = getNewestDatapoint(response.datapoints());
     return toMetricValues(latestDp);
   }
 
+  private MetricRuleData toMetricValuesWithEarlierDatapoints(List<Datapoint> datapoints) {
+    if (datapoints.isEmpty()) {
+      return null;
+    }
+    List<Datapoint> sorted = new ArrayList<>(datapoints);
+    sorted.sort(Comparator.comparing(Datapoint::timestamp));
+    MetricRuleData newest = toMetricValues(sorted.get(sorted.size() - 1));
+    newest.earlierDatapoints = new ArrayList<>(sorted.size() - 1);
+    for (Datapoint dp : sorted.subList(0, sorted.size() - 1)) {
+      newest.earlierDatapoints.add(toMetricValues(dp));
+    }
+    return newest;
+  }
+
   private Datapoint getNewestDatapoint(List<Datapoint> datapoints) {
     Datapoint newest = null;
     for (Datapoint d : datapoints) {
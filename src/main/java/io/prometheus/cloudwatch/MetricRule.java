@@ -1,9 +1,14 @@
 package io.prometheus.cloudwatch;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
 import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 
 class MetricRule {
@@ -23,6 +28,86 @@ class MetricRule {
   boolean useGetMetricData;
   Duration listMetricsCacheTtl;
   boolean warnOnEmptyListDimensions;
+  String region;
+  String accountId;
+  boolean includeLinkedAccounts;
+  boolean shardSeries;
+  int maxSeries;
+  // The most ListMetrics paginations a listing is split into by known dimension values, 0 for
+  // the default.
+  int listMetricsPartitions;
+  boolean incrementalFetch;
+  boolean backfill;
+  boolean searchDimensions;
+  String metricsInsightsQuery;
+  // The dimensions series are aggregated by before they are exported, or null to export them all.
+  List<String> aggregateBy;
+  SeriesAggregator.Function aggregateFunction;
+  // Metrics the metric math expressions refer to, by expression id.
+  Map<String, MathInput> metricMathInputs;
+  // Metric math expressions by the name they are exported under.
+  Map<String, String> metricMath;
+
+  // aws_dimension_select and aws_dimension_select_regex compiled for matching, on first use.
+  private volatile Map<String, Set<String>> dimensionSelectValues;
+  private volatile Map<String, List<Pattern>> dimensionSelectPatterns;
+
+  /**
+   * The values of {@code aws_dimension_select} by dimension name, as hash sets so that checking a
+   * listed metric does not depend on how many values are selected.
+   */
+  Map<String, Set<String>> dimensionSelectValues() {
+    Map<String, Set<String>> compiled = dimensionSelectValues;
+    if (compiled == null) {
+      compiled = new HashMap<>();
+      for (Map.Entry<String, List<String>> select : awsDimensionSelect.entrySet()) {
+        compiled.put(select.getKey(), new HashSet<>(select.getValue()));
+      }
+      dimensionSelectValues = compiled;
+    }
+    return compiled;
+  }
+
+  /** The patterns of {@code aws_dimension_select_regex} by dimension name. */
+  Map<String, List<Pattern>> dimensionSelectPatterns() {
+    Map<String, List<Pattern>> compiled = dimensionSelectPatterns;
+    if (compiled == null) {
+      compiled = new HashMap<>();
+      for (Map.Entry<String, List<String>> select : awsDimensionSelectRegex.entrySet()) {
+        List<Pattern> patterns = new ArrayList<>(select.getValue().size());
+        for (String regex : select.getValue()) {
+          patterns.add(Pattern.compile(regex));
+        }
+        compiled.put(select.getKey(), patterns);
+      }
+      dimensionSelectPatterns = compiled;
+    }
+    return compiled;
+  }
+
+  /** A metric of the rule's namespace and dimensions that metric math expressions refer to. */
+  static class MathInput {
+    final String awsMetricName;
+    final String awsStatistic;
+
+    MathInput(String awsMetricName, String awsStatistic) {
+      this.awsMetricName = awsMetricName;
+      this.awsStatistic = awsStatistic;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      MathInput that = (MathInput) o;
+      return awsMetricName.equals(that.awsMetricName) && awsStatistic.equals(that.awsStatistic);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * awsMetricName.hashCode() + awsStatistic.hashCode();
+    }
+  }
 
   @Override
   public boolean equals(Object o) {
@@ -36,6 +121,13 @@ class MetricRule {
     if (delaySeconds != that.delaySeconds) return false;
     if (cloudwatchTimestamp != that.cloudwatchTimestamp) return false;
     if (useGetMetricData != that.useGetMetricData) return false;
+    if (includeLinkedAccounts != that.includeLinkedAccounts) return false;
+    if (shardSeries != that.shardSeries) return false;
+    if (maxSeries != that.maxSeries) return false;
+    if (listMetricsPartitions != that.listMetricsPartitions) return false;
+    if (incrementalFetch != that.incrementalFetch) return false;
+    if (backfill != that.backfill) return false;
+    if (searchDimensions != that.searchDimensions) return false;
     if (!Objects.equals(awsNamespace, that.awsNamespace)) return false;
     if (!Objects.equals(awsMetricName, that.awsMetricName)) return false;
     if (!Objects.equals(awsStatistics, that.awsStatistics)) return false;
@@ -45,6 +137,13 @@ class MetricRule {
     if (!Objects.equals(awsDimensionSelectRegex, that.awsDimensionSelectRegex)) return false;
     if (!Objects.equals(awsTagSelect, that.awsTagSelect)) return false;
     if (!Objects.equals(help, that.help)) return false;
+    if (!Objects.equals(region, that.region)) return false;
+    if (!Objects.equals(accountId, that.accountId)) return false;
+    if (!Objects.equals(metricMathInputs, that.metricMathInputs)) return false;
+    if (!Objects.equals(metricMath, that.metricMath)) return false;
+    if (!Objects.equals(metricsInsightsQuery, that.metricsInsightsQuery)) return false;
+    if (!Objects.equals(aggregateBy, that.aggregateBy)) return false;
+    if (aggregateFunction != that.aggregateFunction) return false;
     return Objects.equals(listMetricsCacheTtl, that.listMetricsCacheTtl);
   }
 
@@ -63,8 +162,22 @@ class MetricRule {
         31 * result + (awsDimensionSelectRegex != null ? awsDimensionSelectRegex.hashCode() : 0);
     result = 31 * result + (awsTagSelect != null ? awsTagSelect.hashCode() : 0);
     result = 31 * result + (help != null ? help.hashCode() : 0);
+    result = 31 * result + (region != null ? region.hashCode() : 0);
+    result = 31 * result + (accountId != null ? accountId.hashCode() : 0);
     result = 31 * result + (cloudwatchTimestamp ? 1 : 0);
     result = 31 * result + (useGetMetricData ? 1 : 0);
+    result = 31 * result + (includeLinkedAccounts ? 1 : 0);
+    result = 31 * result + (shardSeries ? 1 : 0);
+    result = 31 * result + maxSeries;
+    result = 31 * result + listMetricsPartitions;
+    result = 31 * result + (incrementalFetch ? 1 : 0);
+    result = 31 * result + (backfill ? 1 : 0);
+    result = 31 * result + (searchDimensions ? 1 : 0);
+    result = 31 * result + (metricMathInputs != null ? metricMathInputs.hashCode() : 0);
+    result = 31 * result + (metricMath != null ? metricMath.hashCode() : 0);
+    result = 31 * result + (metricsInsightsQuery != null ? metricsInsightsQuery.hashCode() : 0);
+    result = 31 * result + (aggregateBy != null ? aggregateBy.hashCode() : 0);
+    result = 31 * result + (aggregateFunction != null ? aggregateFunction.hashCode() : 0);
     result = 31 * result + (listMetricsCacheTtl != null ? listMetricsCacheTtl.hashCode() : 0);
     return result;
   }
@@ -0,0 +1,360 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.MetricStreamStore.StreamedMetric;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Decodes the records CloudWatch Metric Streams deliver through Kinesis Data Firehose, in either of
+ * the output formats a stream can be configured with.
+ *
+ * <p>Malformed records are rejected with an {@link IllegalArgumentException}.
+ */
+final class MetricStreamDecoder {
+
+  /** The output format of a metric stream. */
+  enum Format {
+    JSON,
+    OPENTELEMETRY_0_7
+  }
+
+  private MetricStreamDecoder() {}
+
+  static List<StreamedMetric> decode(Format format, byte[] record) {
+    if (format == Format.JSON) {
+      return decodeJson(new String(record, StandardCharsets.UTF_8));
+    }
+    return decodeOpenTelemetry07(record);
+  }
+
+  /**
+   * Decodes newline delimited JSON objects such as:
+   *
+   * <pre>{@code
+   * {"account_id":"123456789012","region":"us-east-1","namespace":"AWS/EC2",
+   *  "metric_name":"CPUUtilization","dimensions":{"InstanceId":"i-123"},
+   *  "timestamp":1611929698000,"value":{"max":3.0,"min":1.0,"sum":4.0,"count":2.0},"unit":"Percent"}
+   * }</pre>
+   */
+  @SuppressWarnings("unchecked")
+  static List<StreamedMetric> decodeJson(String record) {
+    List<StreamedMetric> metrics = new ArrayList<>();
+    Yaml yaml = new Yaml(new SafeConstructor(new LoaderOptions()));
+    for (String line : record.split("\n")) {
+      if (line.isBlank()) {
+        continue;
+      }
+      Map<String, Object> json;
+      try {
+        json = (Map<String, Object>) yaml.load(line);
+      } catch (YAMLException | ClassCastException e) {
+        throw new IllegalArgumentException("Invalid Metric Streams JSON record", e);
+      }
+      if (json == null
+          || !(json.get("namespace") instanceof String)
+          || !(json.get("metric_name") instanceof String)
+          || !(json.get("value") instanceof Map)
+          || !(json.get("timestamp") instanceof Number)) {
+        throw new IllegalArgumentException(
+            "Metric Streams JSON record without namespace, metric_name, timestamp or value");
+      }
+
+      Map<Statistic, Double> statisticValues = new EnumMap<>(Statistic.class);
+      Map<String, Double> extendedValues = new HashMap<>();
+      for (Entry<String, Object> value : ((Map<String, Object>) json.get("value")).entrySet()) {
+        double number = toDouble(value.getValue());
+        switch (value.getKey()) {
+          case "sum":
+            statisticValues.put(Statistic.SUM, number);
+            break;
+          case "count":
+            statisticValues.put(Statistic.SAMPLE_COUNT, number);
+            break;
+          case "min":
+            statisticValues.put(Statistic.MINIMUM, number);
+            break;
+          case "max":
+            statisticValues.put(Statistic.MAXIMUM, number);
+            break;
+          default:
+            // Percentiles added to the stream as additional statistics, such as p99.
+            extendedValues.put(value.getKey(), number);
+        }
+      }
+      addAverage(statisticValues);
+
+      metrics.add(
+          new StreamedMetric(
+              (String) json.get("namespace"),
+              (String) json.get("metric_name"),
+              (String) json.get("account_id"),
+              (String) json.get("region"),
+              toStringMap(json.getOrDefault("dimensions", Collections.emptyMap())),
+              ((Number) json.get("timestamp")).longValue(),
+              (String) json.get("unit"),
+              statisticValues,
+              extendedValues));
+    }
+    return metrics;
+  }
+
+  /**
+   * Decodes length delimited OpenTelemetry 0.7 {@code ExportMetricsServiceRequest} messages. Every
+   * CloudWatch metric is a {@code DoubleSummary} whose data points are labelled with {@code
+   * Namespace}, {@code MetricName} and the JSON encoded {@code Dimensions}; minimum and maximum are
+   * the 0 and 1 quantiles.
+   */
+  static List<StreamedMetric> decodeOpenTelemetry07(byte[] record) {
+    List<StreamedMetric> metrics = new ArrayList<>();
+    ProtobufReader requests = new ProtobufReader(record, 0, record.length);
+    while (requests.hasRemaining()) {
+      ProtobufReader request = requests.readMessage();
+      while (request.hasRemaining()) {
+        int tag = request.readTag();
+        if (tag >>> 3 == 1) {
+          decodeResourceMetrics(request.readMessage(), metrics);
+        } else {
+          request.skip(tag);
+        }
+      }
+    }
+    return metrics;
+  }
+
+  private static void decodeResourceMetrics(ProtobufReader reader, List<StreamedMetric> metrics) {
+    Map<String, String> resource = new HashMap<>();
+    List<ProtobufReader> instrumentationLibraries = new ArrayList<>();
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      if (tag >>> 3 == 1) {
+        ProtobufReader attributes = reader.readMessage();
+        while (attributes.hasRemaining()) {
+          int attributeTag = attributes.readTag();
+          if (attributeTag >>> 3 == 1) {
+            decodeKeyValue(attributes.readMessage(), resource);
+          } else {
+            attributes.skip(attributeTag);
+          }
+        }
+      } else if (tag >>> 3 == 2) {
+        instrumentationLibraries.add(reader.readMessage());
+      } else {
+        reader.skip(tag);
+      }
+    }
+
+    for (ProtobufReader library : instrumentationLibraries) {
+      while (library.hasRemaining()) {
+        int tag = library.readTag();
+        if (tag >>> 3 == 2) {
+          decodeMetric(library.readMessage(), resource, metrics);
+        } else {
+          library.skip(tag);
+        }
+      }
+    }
+  }
+
+  private static void decodeMetric(
+      ProtobufReader reader, Map<String, String> resource, List<StreamedMetric> metrics) {
+    String unit = null;
+    List<ProtobufReader> summaries = new ArrayList<>();
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case 3:
+          unit = reader.readString();
+          break;
+        case 11:
+          summaries.add(reader.readMessage());
+          break;
+        default:
+          reader.skip(tag);
+      }
+    }
+
+    for (ProtobufReader summary : summaries) {
+      while (summary.hasRemaining()) {
+        int tag = summary.readTag();
+        if (tag >>> 3 == 1) {
+          metrics.add(decodeDataPoint(summary.readMessage(), resource, unit));
+        } else {
+          summary.skip(tag);
+        }
+      }
+    }
+  }
+
+  private static StreamedMetric decodeDataPoint(
+      ProtobufReader reader, Map<String, String> resource, String unit) {
+    Map<String, String> labels = new HashMap<>();
+    long timeUnixNano = 0;
+    Map<Statistic, Double> statisticValues = new EnumMap<>(Statistic.class);
+    Map<String, Double> extendedValues = new HashMap<>();
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case 1:
+          decodeStringKeyValue(reader.readMessage(), labels);
+          break;
+        case 3:
+          timeUnixNano = reader.readFixed64();
+          break;
+        case 4:
+          statisticValues.put(Statistic.SAMPLE_COUNT, (double) reader.readFixed64());
+          break;
+        case 5:
+          statisticValues.put(Statistic.SUM, reader.readDouble());
+          break;
+        case 6:
+          decodeQuantile(reader.readMessage(), statisticValues, extendedValues);
+          break;
+        default:
+          reader.skip(tag);
+      }
+    }
+    addAverage(statisticValues);
+
+    if (!labels.containsKey("Namespace") || !labels.containsKey("MetricName")) {
+      throw new IllegalArgumentException(
+          "Metric Streams OpenTelemetry data point without Namespace or MetricName");
+    }
+    Map<String, String> dimensions = Collections.emptyMap();
+    if (labels.containsKey("Dimensions")) {
+      try {
+        dimensions =
+            toStringMap(
+                new Yaml(new SafeConstructor(new LoaderOptions())).load(labels.get("Dimensions")));
+      } catch (YAMLException e) {
+        throw new IllegalArgumentException("Invalid Metric Streams dimensions", e);
+      }
+    }
+    return new StreamedMetric(
+        labels.get("Namespace"),
+        labels.get("MetricName"),
+        resource.get("cloud.account.id"),
+        resource.get("cloud.region"),
+        dimensions,
+        timeUnixNano / 1_000_000,
+        unit,
+        statisticValues,
+        extendedValues);
+  }
+
+  private static void decodeQuantile(
+      ProtobufReader reader,
+      Map<Statistic, Double> statisticValues,
+      Map<String, Double> extendedValues) {
+    double quantile = 0;
+    double value = 0;
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case 1:
+          quantile = reader.readDouble();
+          break;
+        case 2:
+          value = reader.readDouble();
+          break;
+        default:
+          reader.skip(tag);
+      }
+    }
+    if (quantile == 0) {
+      statisticValues.put(Statistic.MINIMUM, value);
+    } else if (quantile == 1) {
+      statisticValues.put(Statistic.MAXIMUM, value);
+    } else {
+      extendedValues.put(
+          "p" + BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString(),
+          value);
+    }
+  }
+
+  private static void decodeKeyValue(ProtobufReader reader, Map<String, String> into) {
+    String key = null;
+    String value = null;
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      if (tag >>> 3 == 1) {
+        key = reader.readString();
+      } else if (tag >>> 3 == 2) {
+        // AnyValue, of which only string_value is used for resource attributes.
+        ProtobufReader anyValue = reader.readMessage();
+        while (anyValue.hasRemaining()) {
+          int valueTag = anyValue.readTag();
+          if (valueTag >>> 3 == 1) {
+            value = anyValue.readString();
+          } else {
+            anyValue.skip(valueTag);
+          }
+        }
+      } else {
+        reader.skip(tag);
+      }
+    }
+    if (key != null && value != null) {
+      into.put(key, value);
+    }
+  }
+
+  private static void decodeStringKeyValue(ProtobufReader reader, Map<String, String> into) {
+    String key = null;
+    String value = null;
+    while (reader.hasRemaining()) {
+      int tag = reader.readTag();
+      if (tag >>> 3 == 1) {
+        key = reader.readString();
+      } else if (tag >>> 3 == 2) {
+        value = reader.readString();
+      } else {
+        reader.skip(tag);
+      }
+    }
+    if (key != null && value != null) {
+      into.put(key, value);
+    }
+  }
+
+  private static void addAverage(Map<Statistic, Double> statisticValues) {
+    Double sum = statisticValues.get(Statistic.SUM);
+    Double count = statisticValues.get(Statistic.SAMPLE_COUNT);
+    if (sum != null && count != null && count > 0) {
+      statisticValues.put(Statistic.AVERAGE, sum / count);
+    }
+  }
+
+  private static double toDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    try {
+      return Double.parseDouble(String.valueOf(value));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid Metric Streams value " + value, e);
+    }
+  }
+
+  private static Map<String, String> toStringMap(Object value) {
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("Invalid Metric Streams dimensions " + value);
+    }
+    Map<String, String> map = new HashMap<>();
+    for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+      map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+    }
+    return map;
+  }
+}
@@ -0,0 +1,164 @@
+package io.prometheus.cloudwatch;
+
+import static io.prometheus.cloudwatch.CloudWatchCollector.safeLabelName;
+import static io.prometheus.cloudwatch.CloudWatchCollector.safeName;
+import static io.prometheus.cloudwatch.CloudWatchCollector.sampleLabelSuffixBy;
+import static io.prometheus.cloudwatch.CloudWatchCollector.toSnakeCase;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Keeps the latest value of every series received from CloudWatch Metric Streams, and exports them
+ * with the same names and labels as the series {@link CloudWatchCollector} polls.
+ */
+final class MetricStreamStore {
+
+  /** One data point of a metric stream, holding every statistic the stream sent for it. */
+  static final class StreamedMetric {
+    final String namespace;
+    final String metricName;
+    final String accountId;
+    final String region;
+    final SortedMap<String, String> dimensions;
+    final long timestampMillis;
+    final String unit;
+    final Map<Statistic, Double> statisticValues;
+    final Map<String, Double> extendedValues;
+
+    StreamedMetric(
+        String namespace,
+        String metricName,
+        String accountId,
+        String region,
+        Map<String, String> dimensions,
+        long timestampMillis,
+        String unit,
+        Map<Statistic, Double> statisticValues,
+        Map<String, Double> extendedValues) {
+      this.namespace = namespace;
+      this.metricName = metricName;
+      this.accountId = accountId;
+      this.region = region;
+      this.dimensions = new TreeMap<>(dimensions);
+      this.timestampMillis = timestampMillis;
+      this.unit = unit;
+      this.statisticValues = statisticValues;
+      this.extendedValues = extendedValues;
+    }
+
+    private List<Object> seriesKey() {
+      return Arrays.asList(namespace, metricName, accountId, region, dimensions);
+    }
+  }
+
+  private final Map<List<Object>, StreamedMetric> series = new ConcurrentHashMap<>();
+
+  /**
+   * Records a data point, unless a newer one of the same series was already received.
+   *
+   * @param maxSeries the most series held at once, 0 for no limit
+   * @return false when the data point starts a new series and {@code maxSeries} are already held
+   */
+  synchronized boolean record(StreamedMetric metric, int maxSeries) {
+    List<Object> key = metric.seriesKey();
+    // Only recording adds series, so holding the lock keeps the store within the limit.
+    if (maxSeries > 0 && series.size() >= maxSeries && !series.containsKey(key)) {
+      return false;
+    }
+    series.merge(
+        key,
+        metric,
+        (previous, current) ->
+            current.timestampMillis >= previous.timestampMillis ? current : previous);
+    return true;
+  }
+
+  int size() {
+    return series.size();
+  }
+
+  /**
+   * Drops the series that were not updated within {@code seriesTtl} and returns the others.
+   *
+   * @param setTimestamp whether samples carry the timestamp of their data point
+   */
+  List<MetricFamilySamples> collect(long nowMillis, Duration seriesTtl, boolean setTimestamp) {
+    long oldest = nowMillis - seriesTtl.toMillis();
+    series.values().removeIf(metric -> metric.timestampMillis < oldest);
+
+    Map<String, List<MetricFamilySamples.Sample>> samples = new TreeMap<>();
+    Map<String, String> help = new TreeMap<>();
+    for (StreamedMetric metric : series.values()) {
+      String baseName =
+          safeName(metric.namespace.toLowerCase() + "_" + toSnakeCase(metric.metricName));
+      if (metric.namespace.equals("AWS/DynamoDB")
+          && metric.dimensions.containsKey("GlobalSecondaryIndexName")
+          && CloudWatchCollector.brokenDynamoMetrics.contains(metric.metricName)) {
+        baseName += "_index";
+      }
+
+      List<String> labelNames = new ArrayList<>();
+      List<String> labelValues = new ArrayList<>();
+      labelNames.add("job");
+      labelValues.add(safeName(metric.namespace.toLowerCase()));
+      labelNames.add("instance");
+      labelValues.add("");
+      if (metric.accountId != null) {
+        labelNames.add("account_id");
+        labelValues.add(metric.accountId);
+      }
+      if (metric.region != null) {
+        labelNames.add("region");
+        labelValues.add(metric.region);
+      }
+      for (Entry<String, String> dimension : metric.dimensions.entrySet()) {
+        labelNames.add(safeLabelName(toSnakeCase(dimension.getKey())));
+        labelValues.add(dimension.getValue());
+      }
+      Long timestamp = setTimestamp ? metric.timestampMillis : null;
+
+      for (Entry<Statistic, Double> entry : metric.statisticValues.entrySet()) {
+        String name = baseName + sampleLabelSuffixBy(entry.getKey());
+        samples
+            .computeIfAbsent(name, n -> new ArrayList<>())
+            .add(
+                new MetricFamilySamples.Sample(
+                    name, labelNames, labelValues, entry.getValue(), timestamp));
+        help.putIfAbsent(name, help(metric, entry.getKey().toString()));
+      }
+      for (Entry<String, Double> entry : metric.extendedValues.entrySet()) {
+        String name = baseName + "_" + safeName(toSnakeCase(entry.getKey()));
+        samples
+            .computeIfAbsent(name, n -> new ArrayList<>())
+            .add(
+                new MetricFamilySamples.Sample(
+                    name, labelNames, labelValues, entry.getValue(), timestamp));
+        help.putIfAbsent(name, help(metric, entry.getKey()));
+      }
+    }
+
+    List<MetricFamilySamples> mfs = new ArrayList<>();
+    for (Entry<String, List<MetricFamilySamples.Sample>> entry : samples.entrySet()) {
+      mfs.add(
+          new MetricFamilySamples(
+              entry.getKey(), Type.GAUGE, help.get(entry.getKey()), entry.getValue()));
+    }
+    return mfs;
+  }
+
+  private static String help(StreamedMetric metric, String statistic) {
+    return CloudWatchCollector.help(
+        metric.namespace, metric.metricName, metric.dimensions.keySet(), statistic, metric.unit);
+  }
+}
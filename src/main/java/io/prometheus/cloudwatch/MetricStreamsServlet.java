@@ -0,0 +1,154 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.MetricStreamsConfig;
+import io.prometheus.cloudwatch.MetricStreamStore.StreamedMetric;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * Servlet endpoint that receives CloudWatch Metric Streams through a Kinesis Data Firehose HTTP
+ * endpoint destination, and records the delivered metrics in the collector's {@link
+ * MetricStreamStore}.
+ */
+public class MetricStreamsServlet extends HttpServlet {
+  private static final long serialVersionUID = 3546920175307184822L;
+  private static final Logger LOGGER = Logger.getLogger(MetricStreamsServlet.class.getName());
+
+  // Firehose delivers up to 64 MiB per request, base64 encoded.
+  private static final int MAX_REQUEST_CODE_POINTS = 96 * 1024 * 1024;
+
+  static final String CONTENT_TYPE = "application/json";
+
+  /** The CloudWatchCollector whose store receives the streamed metrics. */
+  private final CloudWatchCollector collector;
+
+  /**
+   * Constructs a MetricStreamsServlet.
+   *
+   * @param collector the CloudWatchCollector exporting the streamed metrics
+   */
+  public MetricStreamsServlet(CloudWatchCollector collector) {
+    this.collector = collector;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    String requestId = req.getHeader("X-Amz-Firehose-Request-Id");
+    MetricStreamsConfig config = collector.activeConfig.get().metricStreams;
+    if (config == null) {
+      respond(resp, HttpServletResponse.SC_NOT_FOUND, requestId, "Metric Streams are not enabled");
+      return;
+    }
+    if (config.accessKey != null && !accessKeyMatches(config.accessKey, req)) {
+      respond(resp, HttpServletResponse.SC_UNAUTHORIZED, requestId, "Invalid access key");
+      return;
+    }
+
+    int recorded = 0;
+    int dropped = 0;
+    try (Reader body = new InputStreamReader(body(req), StandardCharsets.UTF_8)) {
+      LoaderOptions options = new LoaderOptions();
+      options.setCodePointLimit(MAX_REQUEST_CODE_POINTS);
+      Map<String, Object> envelope =
+          (Map<String, Object>) new Yaml(new SafeConstructor(options)).load(body);
+      if (envelope == null || !(envelope.get("records") instanceof List)) {
+        throw new IllegalArgumentException("Request without records");
+      }
+      for (Map<String, Object> record : (List<Map<String, Object>>) envelope.get("records")) {
+        if (!(record.get("data") instanceof String)) {
+          throw new IllegalArgumentException("Record without data");
+        }
+        byte[] data = Base64.getDecoder().decode((String) record.get("data"));
+        for (StreamedMetric metric : MetricStreamDecoder.decode(config.format, data)) {
+          if (collector.metricStreamStore.record(metric, config.maxSeries)) {
+            recorded++;
+          } else {
+            CloudWatchCollector.droppedSeries
+                .labels(metric.namespace, metric.metricName, "max_streamed_series")
+                .inc();
+            dropped++;
+          }
+        }
+      }
+    } catch (IllegalArgumentException | YAMLException | ClassCastException e) {
+      LOGGER.log(Level.WARNING, "Rejected Metric Streams delivery " + requestId, e);
+      respond(resp, HttpServletResponse.SC_BAD_REQUEST, requestId, "Invalid request body");
+      return;
+    }
+    LOGGER.log(Level.FINE, "Recorded {0} streamed metrics", recorded);
+    if (dropped > 0) {
+      LOGGER.log(
+          Level.WARNING,
+          "Dropped {0} streamed metrics of new series, max_streamed_series {1} are already held",
+          new Object[] {dropped, config.maxSeries});
+    }
+    respond(resp, HttpServletResponse.SC_OK, requestId, null);
+  }
+
+  private static InputStream body(HttpServletRequest req) throws IOException {
+    if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+      return new GZIPInputStream(req.getInputStream());
+    }
+    return req.getInputStream();
+  }
+
+  private static boolean accessKeyMatches(String accessKey, HttpServletRequest req) {
+    String header = req.getHeader("X-Amz-Firehose-Access-Key");
+    return header != null
+        && MessageDigest.isEqual(
+            accessKey.getBytes(StandardCharsets.UTF_8), header.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Writes the response Firehose expects, echoing the request id. */
+  private static void respond(
+      HttpServletResponse resp, int status, String requestId, String errorMessage) {
+    resp.setStatus(status);
+    resp.setContentType(CONTENT_TYPE);
+    StringBuilder json = new StringBuilder("{\"requestId\":\"");
+    json.append(escape(requestId == null ? "" : requestId));
+    json.append("\",\"timestamp\":").append(System.currentTimeMillis());
+    if (errorMessage != null) {
+      json.append(",\"errorMessage\":\"").append(escape(errorMessage)).append('"');
+    }
+    json.append('}');
+    try {
+      resp.getWriter().print(json);
+    } catch (IOException e) {
+      // Ignored
+    }
+  }
+
+  private static String escape(String s) {
+    StringBuilder escaped = new StringBuilder();
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      } else if (c < 0x20) {
+        escaped.append(String.format("\\u%04x", (int) c));
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
@@ -0,0 +1,198 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.ScanBy;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Runs the CloudWatch Metrics Insights query of a rule through GetMetricData. The query aggregates
+ * server side, so no dimension sets are listed: every result is a series whose dimensions are the
+ * {@code GROUP BY} keys of the query, with the values CloudWatch labels the result with.
+ */
+final class MetricsInsightsDataGetter implements DataGetter {
+  private static final Logger LOGGER = Logger.getLogger(MetricsInsightsDataGetter.class.getName());
+
+  private static final Pattern AGGREGATE =
+      Pattern.compile("^\\s*SELECT\\s+(\\w+)\\s*\\(", Pattern.CASE_INSENSITIVE);
+  private static final Pattern GROUP_BY =
+      Pattern.compile(
+          "\\bGROUP\\s+BY\\s+(.+?)(?:\\s+ORDER\\s+BY\\b|\\s+LIMIT\\b|$)",
+          Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  private static final Map<String, Statistic> AGGREGATE_STATISTICS =
+      Map.of(
+          "AVG", Statistic.AVERAGE,
+          "SUM", Statistic.SUM,
+          "MIN", Statistic.MINIMUM,
+          "MAX", Statistic.MAXIMUM,
+          "COUNT", Statistic.SAMPLE_COUNT);
+
+  private final MetricRule rule;
+  private final Map<DimensionFingerprint, MetricRuleData> results = new HashMap<>();
+  private final List<List<Dimension>> dimensions = new ArrayList<>();
+  private final int droppedSeries;
+
+  MetricsInsightsDataGetter(
+      CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter) {
+    this.rule = rule;
+    Statistic statistic = statisticOf(rule.metricsInsightsQuery);
+    List<String> groupBy = groupByOf(rule.metricsInsightsQuery);
+
+    GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder();
+    builder.endTime(Instant.ofEpochMilli(start - 1000L * rule.delaySeconds));
+    builder.startTime(
+        Instant.ofEpochMilli(start - 1000L * (rule.delaySeconds + rule.rangeSeconds)));
+    builder.scanBy(ScanBy.TIMESTAMP_DESCENDING);
+    builder.metricDataQueries(
+        MetricDataQuery.builder()
+            .id("insights")
+            .expression(rule.metricsInsightsQuery)
+            .period(rule.periodSeconds)
+            .build());
+
+    // A series may continue on the next page, its newest datapoint comes first.
+    Set<String> seenLabels = new HashSet<>();
+    String nextToken = null;
+    do {
+      GetMetricDataRequest request = builder.nextToken(nextToken).build();
+      GetMetricDataResponse response =
+          apiCallRunner.call(
+              "getMetricData", rule.awsNamespace, () -> client.getMetricData(request));
+      apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
+      for (MetricDataResult result : response.metricDataResults()) {
+        if (!result.timestamps().isEmpty()
+            && !result.values().isEmpty()
+            && seenLabels.add(result.label())) {
+          addResult(result, statistic, groupBy);
+        }
+      }
+      nextToken = response.nextToken();
+      // Once more series than max_series were found some are dropped anyway, the other pages are
+      // not worth fetching.
+    } while (nextToken != null && (rule.maxSeries <= 0 || dimensions.size() <= rule.maxSeries));
+    boolean truncated = nextToken != null;
+
+    int found = dimensions.size();
+    droppedSeries = DefaultDimensionSource.keepMaxSeries(rule, dimensions, null);
+    if (droppedSeries > 0) {
+      Set<DimensionFingerprint> kept = new HashSet<>();
+      for (List<Dimension> seriesDimensions : dimensions) {
+        kept.add(DimensionFingerprint.of(null, seriesDimensions));
+      }
+      results.keySet().retainAll(kept);
+      LOGGER.warning(
+          String.format(
+              "(metricsInsights) %s:%s found %s%d series, dropping %d above max_series %d",
+              rule.awsNamespace,
+              rule.awsMetricName,
+              truncated ? "at least " : "",
+              found,
+              droppedSeries,
+              rule.maxSeries));
+    }
+    // Metrics Insights is billed per metric the query analyzes, which it does not report.
+    metricsRequestedCounter.labels(rule.awsMetricName, rule.awsNamespace).inc(found);
+  }
+
+  /** A series per result, with the GROUP BY keys of the query as dimensions. */
+  DimensionData getDimensionData() {
+    return new DimensionData(dimensions, null, droppedSeries);
+  }
+
+  private void addResult(MetricDataResult result, Statistic statistic, List<String> groupBy) {
+    List<String> values = groupValues(result.label(), groupBy.size());
+    if (values == null) {
+      LOGGER.warning(
+          String.format(
+              "(metricsInsights) %s:%s ignoring result %s not matching GROUP BY %s",
+              rule.awsNamespace, rule.awsMetricName, result.label(), groupBy));
+      return;
+    }
+    List<Dimension> seriesDimensions = new ArrayList<>(groupBy.size());
+    for (int i = 0; i < groupBy.size(); i++) {
+      seriesDimensions.add(Dimension.builder().name(groupBy.get(i)).value(values.get(i)).build());
+    }
+    MetricRuleData data = new MetricRuleData(result.timestamps().get(0), "N/A");
+    data.statisticValues.put(statistic, result.values().get(0));
+    results.put(DimensionFingerprint.of(null, seriesDimensions), data);
+    dimensions.add(seriesDimensions);
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    return results.get(DimensionFingerprint.of(null, dimensions));
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(DimensionData dimensionData, int index) {
+    return results.get(dimensionData.getFingerprint(index));
+  }
+
+  /** The statistic the aggregate function of a query is exported as. */
+  static Statistic statisticOf(String query) {
+    Matcher matcher = AGGREGATE.matcher(query);
+    Statistic statistic =
+        matcher.find() ? AGGREGATE_STATISTICS.get(matcher.group(1).toUpperCase(Locale.ROOT)) : null;
+    if (statistic == null) {
+      throw new IllegalArgumentException(
+          "metrics_insights_query must select AVG, SUM, MIN, MAX or COUNT: " + query);
+    }
+    return statistic;
+  }
+
+  /** The GROUP BY keys of a query, unquoted, or an empty list when it does not group. */
+  static List<String> groupByOf(String query) {
+    Matcher matcher = GROUP_BY.matcher(query);
+    if (!matcher.find()) {
+      return Collections.emptyList();
+    }
+    return Arrays.stream(matcher.group(1).split(","))
+        .map(String::trim)
+        .map(
+            key ->
+                key.length() > 1 && key.startsWith("\"") && key.endsWith("\"")
+                    ? key.substring(1, key.length() - 1)
+                    : key)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * The GROUP BY values of a result, which CloudWatch labels with the values separated by spaces,
+   * or null when the label does not split into one value per key.
+   */
+  static List<String> groupValues(String label, int keys) {
+    if (keys == 0) {
+      return Collections.emptyList();
+    }
+    if (keys == 1) {
+      return Collections.singletonList(label);
+    }
+    String[] values = label.split(" ", -1);
+    return values.length == keys ? Arrays.asList(values) : null;
+  }
+}
@@ -0,0 +1,103 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.charset.StandardCharsets;
+
+/** Reads the protobuf wire format, just enough of it for the messages of Metric Streams. */
+final class ProtobufReader {
+  private final byte[] buffer;
+  private final int limit;
+  private int position;
+
+  ProtobufReader(byte[] buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.position = offset;
+    this.limit = offset + length;
+  }
+
+  boolean hasRemaining() {
+    return position < limit;
+  }
+
+  int readTag() {
+    return (int) readVarint();
+  }
+
+  long readVarint() {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = readByte();
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IllegalArgumentException("Malformed protobuf varint");
+  }
+
+  long readFixed64() {
+    long result = 0;
+    for (int i = 0; i < 8; i++) {
+      result |= (long) (readByte() & 0xFF) << (8 * i);
+    }
+    return result;
+  }
+
+  double readDouble() {
+    return Double.longBitsToDouble(readFixed64());
+  }
+
+  String readString() {
+    int length = readLength();
+    String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+    position += length;
+    return value;
+  }
+
+  ProtobufReader readMessage() {
+    int length = readLength();
+    ProtobufReader message = new ProtobufReader(buffer, position, length);
+    position += length;
+    return message;
+  }
+
+  void skip(int tag) {
+    switch (tag & 0x7) {
+      case 0:
+        readVarint();
+        break;
+      case 1:
+        advance(8);
+        break;
+      case 2:
+        advance(readLength());
+        break;
+      case 5:
+        advance(4);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported protobuf wire type " + (tag & 0x7));
+    }
+  }
+
+  private int readLength() {
+    long length = readVarint();
+    if (length < 0 || length > limit - position) {
+      throw new IllegalArgumentException("Truncated protobuf message");
+    }
+    return (int) length;
+  }
+
+  private void advance(int bytes) {
+    if (bytes > limit - position) {
+      throw new IllegalArgumentException("Truncated protobuf message");
+    }
+    position += bytes;
+  }
+
+  private byte readByte() {
+    if (position >= limit) {
+      throw new IllegalArgumentException("Truncated protobuf message");
+    }
+    return buffer[position++];
+  }
+}
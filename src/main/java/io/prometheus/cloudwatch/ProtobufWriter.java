@@ -0,0 +1,80 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Writes the protobuf wire format, just enough of it for the messages of remote write. */
+final class ProtobufWriter {
+  private byte[] buffer;
+  private int size;
+
+  ProtobufWriter() {
+    this(64);
+  }
+
+  ProtobufWriter(int initialCapacity) {
+    this.buffer = new byte[initialCapacity];
+  }
+
+  void writeString(int field, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeBytes(field, bytes, bytes.length);
+  }
+
+  void writeDouble(int field, double value) {
+    writeTag(field, 1);
+    long bits = Double.doubleToRawLongBits(value);
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      buffer[size++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  void writeInt64(int field, long value) {
+    writeTag(field, 0);
+    writeVarint(value);
+  }
+
+  void writeMessage(int field, ProtobufWriter message) {
+    writeBytes(field, message.buffer, message.size);
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  int size() {
+    return size;
+  }
+
+  void reset() {
+    size = 0;
+  }
+
+  private void writeBytes(int field, byte[] bytes, int length) {
+    writeTag(field, 2);
+    writeVarint(length);
+    ensureCapacity(length);
+    System.arraycopy(bytes, 0, buffer, size, length);
+    size += length;
+  }
+
+  private void writeTag(int field, int wireType) {
+    writeVarint((field << 3) | wireType);
+  }
+
+  private void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte) value;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (size + bytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+    }
+  }
+}
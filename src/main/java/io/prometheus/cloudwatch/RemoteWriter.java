@@ -0,0 +1,335 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.cloudwatch.CloudWatchCollector.RemoteWriteConfig;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the samples of the collector to a Prometheus remote write endpoint every push interval,
+ * instead of waiting to be scraped.
+ *
+ * <p>Samples are spread over shards by series. Each shard has a bounded queue and a thread sending
+ * batches from it, so the samples of a series are sent in order while shards send concurrently. A
+ * batch failing with a recoverable error is retried with backoff while new samples keep queueing
+ * behind it; samples that do not fit in their queue are dropped. A batch the endpoint rejects is
+ * split and its halves sent on their own, so that only the samples it refuses are dropped.
+ *
+ * <p>A sample is only queued when it is newer than the last one queued for its series, so that a
+ * CloudWatch datapoint exported by consecutive pushes is sent once.
+ *
+ * <p>A push queues the samples of every rule as soon as the rule is scraped, rather than collecting
+ * all of them first, so only the samples still queued are held at any time.
+ */
+final class RemoteWriter implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(RemoteWriter.class.getName());
+
+  private static final long MIN_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+
+  private static final Counter sentSamples =
+      Counter.build()
+          .name("cloudwatch_exporter_remote_write_sent_samples_total")
+          .help("Samples sent to the remote write endpoint")
+          .register();
+
+  private static final Counter droppedSamples =
+      Counter.build()
+          .labelNames("reason")
+          .name("cloudwatch_exporter_remote_write_dropped_samples_total")
+          .help("Samples not sent to the remote write endpoint, by reason")
+          .register();
+
+  private static final Counter retries =
+      Counter.build()
+          .name("cloudwatch_exporter_remote_write_retries_total")
+          .help("Remote write requests retried after a recoverable error")
+          .register();
+
+  private static final Gauge pendingSamples =
+      Gauge.build()
+          .name("cloudwatch_exporter_remote_write_pending_samples")
+          .help("Samples queued for remote write after the last push")
+          .register();
+
+  /** A sample with the labels of its series, sorted by name and including __name__. */
+  static final class PendingSample {
+    final String[] labels;
+    final double value;
+    final long timestampMillis;
+
+    PendingSample(String[] labels, double value, long timestampMillis) {
+      this.labels = labels;
+      this.value = value;
+      this.timestampMillis = timestampMillis;
+    }
+  }
+
+  private enum Outcome {
+    SENT,
+    RETRY,
+    REJECTED
+  }
+
+  private final RemoteWriteConfig config;
+  // Scrapes once, handing every metric family to the consumer it is given.
+  private final Consumer<Consumer<MetricFamilySamples>> source;
+  private final HttpClient httpClient;
+  private final List<BlockingQueue<PendingSample>> queues = new ArrayList<>();
+  private final List<Thread> threads = new ArrayList<>();
+  private volatile boolean running = true;
+
+  // The timestamp of the last sample queued for every series of the previous push, only used by
+  // the thread pushing.
+  private Map<List<String>, Long> newestQueued = new HashMap<>();
+
+  RemoteWriter(RemoteWriteConfig config, Consumer<Consumer<MetricFamilySamples>> source) {
+    this.config = config;
+    this.source = source;
+    this.httpClient = HttpClient.newBuilder().connectTimeout(config.timeout).build();
+    for (int i = 0; i < config.shards; i++) {
+      queues.add(new ArrayBlockingQueue<>(config.capacity));
+    }
+  }
+
+  RemoteWriteConfig config() {
+    return config;
+  }
+
+  /** Starts pushing, then sending from every shard, each on a thread of its own. */
+  RemoteWriter start() {
+    threads.add(daemon("cloudwatch-exporter-remote-write-push", this::pushLoop));
+    for (int i = 0; i < queues.size(); i++) {
+      BlockingQueue<PendingSample> queue = queues.get(i);
+      threads.add(daemon("cloudwatch-exporter-remote-write-shard-" + i, () -> sendLoop(queue)));
+    }
+    threads.forEach(Thread::start);
+    return this;
+  }
+
+  /** Stops all threads, dropping the samples still queued. */
+  @Override
+  public void close() {
+    running = false;
+    threads.forEach(Thread::interrupt);
+  }
+
+  /** Collects the samples once, queueing them in their shards as they are collected. */
+  void push() {
+    long now = System.currentTimeMillis();
+    int[] dropped = {0};
+    Map<List<String>, Long> previous = newestQueued;
+    Map<List<String>, Long> queued = new HashMap<>();
+    source.accept(
+        family -> {
+          for (MetricFamilySamples.Sample sample : family.samples) {
+            PendingSample pending =
+                new PendingSample(
+                    labels(sample),
+                    sample.value,
+                    sample.timestampMs == null ? now : sample.timestampMs);
+            List<String> series = Arrays.asList(pending.labels);
+            Long newest = queued.containsKey(series) ? queued.get(series) : previous.get(series);
+            if (newest != null && pending.timestampMillis <= newest) {
+              queued.put(series, newest);
+              continue;
+            }
+            int shard = Math.floorMod(Arrays.hashCode(pending.labels), queues.size());
+            if (queues.get(shard).offer(pending)) {
+              queued.put(series, pending.timestampMillis);
+            } else {
+              dropped[0]++;
+              if (newest != null) {
+                queued.put(series, newest);
+              }
+            }
+          }
+        });
+    // Series the push did not see are forgotten, so that the map does not grow forever.
+    newestQueued = queued;
+    if (dropped[0] > 0) {
+      droppedSamples.labels("queue_full").inc(dropped[0]);
+      LOGGER.warning(
+          String.format(
+              "(remoteWrite) dropped %d samples, queues of %d samples are full",
+              dropped[0], config.capacity));
+    }
+    pendingSamples.set(queues.stream().mapToInt(BlockingQueue::size).sum());
+  }
+
+  private void pushLoop() {
+    while (running) {
+      long begin = System.nanoTime();
+      try {
+        push();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Remote write push failed", e);
+      }
+      long remaining = config.pushInterval.toNanos() - (System.nanoTime() - begin);
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, remaining));
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void sendLoop(BlockingQueue<PendingSample> queue) {
+    List<PendingSample> batch = new ArrayList<>(config.maxSamplesPerSend);
+    while (running) {
+      try {
+        PendingSample first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, config.maxSamplesPerSend - 1);
+        send(batch);
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void send(List<PendingSample> batch) throws InterruptedException {
+    byte[] body = Snappy.compress(encode(batch));
+    long backoff = MIN_BACKOFF_MILLIS;
+    for (int attempt = 0; ; attempt++) {
+      Outcome outcome = post(body);
+      if (outcome == Outcome.SENT) {
+        sentSamples.inc(batch.size());
+        return;
+      }
+      if (outcome == Outcome.REJECTED) {
+        if (batch.size() == 1) {
+          droppedSamples.labels("rejected").inc();
+          LOGGER.warning(
+              String.format(
+                  "(remoteWrite) %s rejected sample of %s at %d",
+                  config.url, Arrays.toString(batch.get(0).labels), batch.get(0).timestampMillis));
+          return;
+        }
+        // Valid samples sharing a batch with a refused one are still sent.
+        int half = batch.size() / 2;
+        send(batch.subList(0, half));
+        send(batch.subList(half, batch.size()));
+        return;
+      }
+      if (attempt >= config.maxRetries) {
+        droppedSamples.labels("retries_exhausted").inc(batch.size());
+        LOGGER.warning(
+            String.format(
+                "(remoteWrite) dropped %d samples after %d retries",
+                batch.size(), config.maxRetries));
+        return;
+      }
+      retries.inc();
+      Thread.sleep(backoff);
+      backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  private Outcome post(byte[] body) throws InterruptedException {
+    HttpRequest request =
+        HttpRequest.newBuilder(config.url)
+            .timeout(config.timeout)
+            .header("Content-Encoding", "snappy")
+            .header("Content-Type", "application/x-protobuf")
+            .header("User-Agent", "cloudwatch_exporter")
+            .header("X-Prometheus-Remote-Write-Version", "0.1.0")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+    int status;
+    try {
+      status = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Remote write request failed", e);
+      return Outcome.RETRY;
+    }
+    if (status / 100 == 2) {
+      return Outcome.SENT;
+    }
+    if (status == 429 || status / 100 == 5) {
+      return Outcome.RETRY;
+    }
+    LOGGER.fine(String.format("(remoteWrite) %s rejected samples with %d", config.url, status));
+    return Outcome.REJECTED;
+  }
+
+  /**
+   * Encodes a remote write {@code WriteRequest}, with one {@code TimeSeries} per series holding its
+   * samples in the order they were queued.
+   */
+  static byte[] encode(List<PendingSample> batch) {
+    Map<List<String>, List<PendingSample>> bySeries = new LinkedHashMap<>();
+    for (PendingSample sample : batch) {
+      bySeries.computeIfAbsent(Arrays.asList(sample.labels), k -> new ArrayList<>()).add(sample);
+    }
+    ProtobufWriter request = new ProtobufWriter(64 * batch.size());
+    ProtobufWriter series = new ProtobufWriter();
+    ProtobufWriter message = new ProtobufWriter();
+    for (List<PendingSample> samples : bySeries.values()) {
+      series.reset();
+      String[] labels = samples.get(0).labels;
+      for (int i = 0; i < labels.length; i += 2) {
+        message.reset();
+        message.writeString(1, labels[i]);
+        message.writeString(2, labels[i + 1]);
+        series.writeMessage(1, message);
+      }
+      for (PendingSample sample : samples) {
+        message.reset();
+        message.writeDouble(1, sample.value);
+        message.writeInt64(2, sample.timestampMillis);
+        series.writeMessage(2, message);
+      }
+      request.writeMessage(1, series);
+    }
+    return request.toByteArray();
+  }
+
+  /** The label pairs of a sample sorted by name, leaving out empty values as Prometheus does. */
+  private static String[] labels(MetricFamilySamples.Sample sample) {
+    List<String[]> pairs = new ArrayList<>(sample.labelNames.size() + 1);
+    pairs.add(new String[] {"__name__", sample.name});
+    for (int i = 0; i < sample.labelNames.size(); i++) {
+      String value = sample.labelValues.get(i);
+      if (!value.isEmpty()) {
+        pairs.add(new String[] {sample.labelNames.get(i), value});
+      }
+    }
+    pairs.sort(Comparator.comparing(pair -> pair[0]));
+    String[] labels = new String[2 * pairs.size()];
+    for (int i = 0; i < pairs.size(); i++) {
+      labels[2 * i] = pairs.get(i)[0];
+      labels[2 * i + 1] = pairs.get(i)[1];
+    }
+    return labels;
+  }
+
+  private static Thread daemon(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+}
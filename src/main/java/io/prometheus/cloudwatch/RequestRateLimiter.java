@@ -0,0 +1,64 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps requests within a requests-per-second budget, allowing bursts of up to one second worth of
+ * requests after a quiet period but never more than that within any second.
+ *
+ * <p>The times of the last permits granted are kept in a ring, and a permit is only granted one
+ * window after the permit as many places back. Each caller reserves the next free slot under the
+ * lock and then sleeps outside of it, so waiting callers are served in the order they arrived and
+ * none of them can be starved.
+ */
+final class RequestRateLimiter {
+
+  private final long windowNanos;
+  private final LongSupplier nanoClock;
+
+  // The times of the last permits, the oldest one at next.
+  private final long[] granted;
+  private int next;
+
+  RequestRateLimiter(double permitsPerSecond) {
+    this(permitsPerSecond, System::nanoTime);
+  }
+
+  RequestRateLimiter(double permitsPerSecond, LongSupplier nanoClock) {
+    if (!(permitsPerSecond > 0)) {
+      throw new IllegalArgumentException(
+          "Requests per second must be positive, got " + permitsPerSecond);
+    }
+    // Budgets below one request per second allow a single request per 1 / permitsPerSecond.
+    int permitsPerWindow = (int) Math.max(1, Math.floor(permitsPerSecond));
+    this.windowNanos = (long) (TimeUnit.SECONDS.toNanos(1) * permitsPerWindow / permitsPerSecond);
+    this.nanoClock = nanoClock;
+    this.granted = new long[permitsPerWindow];
+    Arrays.fill(granted, nanoClock.getAsLong() - windowNanos);
+  }
+
+  /** Waits until a request may be made, returning how long that took in nanoseconds. */
+  long acquire() {
+    long waitNanos = reserve();
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the API rate limit", e);
+      }
+    }
+    return waitNanos;
+  }
+
+  /** Claims the next free slot and returns how long the caller has to wait for it. */
+  synchronized long reserve() {
+    long now = nanoClock.getAsLong();
+    long slot = Math.max(now, granted[next] + windowNanos);
+    granted[next] = slot;
+    next = (next + 1) % granted.length;
+    return slot - now;
+  }
+}
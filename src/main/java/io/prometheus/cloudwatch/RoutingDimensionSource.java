@@ -0,0 +1,37 @@
+package io.prometheus.cloudwatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Sends each rule to the {@link DimensionSource} of the account and region it is scraped from,
+ * using the default one for rules of the default account and region.
+ */
+final class RoutingDimensionSource implements DimensionSource {
+
+  private final DimensionSource defaultSource;
+  private final Map<String, DimensionSource> sources;
+  private final Function<MetricRule, String> route;
+
+  /**
+   * @param defaultSource source for rules routed to a key without a source of its own
+   * @param sources sources by key
+   * @param route maps a rule to the key of its source
+   */
+  RoutingDimensionSource(
+      DimensionSource defaultSource,
+      Map<String, DimensionSource> sources,
+      Function<MetricRule, String> route) {
+    this.defaultSource = defaultSource;
+    this.sources = sources;
+    this.route = route;
+  }
+
+  @Override
+  public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
+    return sources
+        .getOrDefault(route.apply(rule), defaultSource)
+        .getDimensions(rule, tagBasedResourceIds);
+  }
+}
@@ -0,0 +1,228 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import java.util.Optional;
+import java.util.Set;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
+
+/**
+ * Exports what the AWS SDK does underneath each logical API call: every HTTP attempt including
+ * retries, throttled attempts, HTTP status codes, request and response sizes and latency.
+ *
+ * <p>{@code cloudwatch_requests_total} only counts the calls made by the exporter; this interceptor
+ * is registered on the SDK clients built by {@link CloudWatchCollector} so that the retries and
+ * throttling hidden behind those calls become visible as well. Throttled attempts also back off the
+ * {@link AdaptiveConcurrencyLimiter} of the call they belong to.
+ */
+class SdkMetricsInterceptor implements ExecutionInterceptor {
+
+  // Error codes AWS services use to signal throttling. The JSON protocols report them in the
+  // x-amzn-ErrorType header, query-compatible services additionally in x-amzn-query-error.
+  private static final Set<String> THROTTLING_ERROR_CODES =
+      Set.of(
+          "Throttling",
+          "ThrottlingException",
+          "ThrottledException",
+          "RequestThrottledException",
+          "TooManyRequestsException",
+          "RequestLimitExceeded",
+          "RequestThrottled",
+          "LimitExceededException");
+
+  private static final ExecutionAttribute<Long> CALL_START =
+      new ExecutionAttribute<>("cloudwatch_exporter.CallStart");
+  private static final ExecutionAttribute<Long> ATTEMPT_START =
+      new ExecutionAttribute<>("cloudwatch_exporter.AttemptStart");
+  private static final ExecutionAttribute<Integer> ATTEMPTS =
+      new ExecutionAttribute<>("cloudwatch_exporter.Attempts");
+
+  private static final Counter attempts =
+      Counter.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_attempts_total")
+          .help("HTTP attempts made by the AWS SDK, including retries")
+          .register();
+
+  private static final Counter retries =
+      Counter.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_retries_total")
+          .help("HTTP attempts made by the AWS SDK to retry a failed attempt")
+          .register();
+
+  private static final Counter throttledAttempts =
+      Counter.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_throttled_attempts_total")
+          .help("HTTP attempts made by the AWS SDK that were rejected by throttling")
+          .register();
+
+  private static final Counter httpResponses =
+      Counter.build()
+          .labelNames("service", "operation", "code")
+          .name("cloudwatch_exporter_sdk_http_responses_total")
+          .help("HTTP responses received by the AWS SDK, by status code")
+          .register();
+
+  private static final Counter callErrors =
+      Counter.build()
+          .labelNames("service", "operation", "error_code")
+          .name("cloudwatch_exporter_sdk_api_call_errors_total")
+          .help("AWS SDK API calls that failed after all retries, by error code")
+          .register();
+
+  private static final Counter requestBytes =
+      Counter.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_request_bytes_total")
+          .help("Size of the HTTP request bodies sent by the AWS SDK")
+          .register();
+
+  private static final Counter responseBytes =
+      Counter.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_response_bytes_total")
+          .help("Size of the HTTP response bodies received by the AWS SDK")
+          .register();
+
+  private static final Histogram attemptDuration =
+      Histogram.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_attempt_duration_seconds")
+          .help("Time taken by a single HTTP attempt of the AWS SDK, in seconds")
+          .register();
+
+  private static final Histogram callDuration =
+      Histogram.build()
+          .labelNames("service", "operation")
+          .name("cloudwatch_exporter_sdk_api_call_duration_seconds")
+          .help("Time taken by an AWS SDK API call including retries and backoff, in seconds")
+          .register();
+
+  @Override
+  public void beforeExecution(
+      Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+    executionAttributes.putAttribute(CALL_START, System.nanoTime());
+    executionAttributes.putAttribute(ATTEMPTS, 0);
+  }
+
+  @Override
+  public void beforeTransmission(
+      Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+    String service = service(executionAttributes);
+    String operation = operation(executionAttributes);
+    int attempt = executionAttributes.getOptionalAttribute(ATTEMPTS).orElse(0) + 1;
+    executionAttributes.putAttribute(ATTEMPTS, attempt);
+    executionAttributes.putAttribute(ATTEMPT_START, System.nanoTime());
+
+    attempts.labels(service, operation).inc();
+    if (attempt > 1) {
+      retries.labels(service, operation).inc();
+    }
+    Optional<Long> contentLength =
+        contentLength(context.httpRequest().firstMatchingHeader("Content-Length"));
+    if (contentLength.isEmpty()) {
+      contentLength = context.requestBody().flatMap(RequestBody::optionalContentLength);
+    }
+    contentLength.ifPresent(bytes -> requestBytes.labels(service, operation).inc(bytes));
+  }
+
+  @Override
+  public void afterTransmission(
+      Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+    String service = service(executionAttributes);
+    String operation = operation(executionAttributes);
+    SdkHttpResponse response = context.httpResponse();
+
+    Long attemptStart = executionAttributes.getAttribute(ATTEMPT_START);
+    if (attemptStart != null) {
+      attemptDuration
+          .labels(service, operation)
+          .observe((System.nanoTime() - attemptStart) / 1.0E9);
+    }
+    httpResponses.labels(service, operation, Integer.toString(response.statusCode())).inc();
+    if (isThrottled(response)) {
+      throttledAttempts.labels(service, operation).inc();
+      AdaptiveConcurrencyLimiter.throttledAttempt(operation);
+    }
+    contentLength(response.firstMatchingHeader("Content-Length"))
+        .ifPresent(bytes -> responseBytes.labels(service, operation).inc(bytes));
+  }
+
+  @Override
+  public void afterExecution(
+      Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+    observeCallDuration(executionAttributes);
+  }
+
+  @Override
+  public void onExecutionFailure(
+      Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+    observeCallDuration(executionAttributes);
+    callErrors
+        .labels(
+            service(executionAttributes),
+            operation(executionAttributes),
+            errorCode(context.exception()))
+        .inc();
+  }
+
+  private void observeCallDuration(ExecutionAttributes executionAttributes) {
+    Long callStart = executionAttributes.getAttribute(CALL_START);
+    if (callStart != null) {
+      callDuration
+          .labels(service(executionAttributes), operation(executionAttributes))
+          .observe((System.nanoTime() - callStart) / 1.0E9);
+    }
+  }
+
+  static boolean isThrottled(SdkHttpResponse response) {
+    if (response.statusCode() == 429) {
+      return true;
+    }
+    return response
+        .firstMatchingHeader("x-amzn-query-error")
+        .or(() -> response.firstMatchingHeader("x-amzn-ErrorType"))
+        .map(header -> THROTTLING_ERROR_CODES.contains(header.split("[;:]", 2)[0]))
+        .orElse(false);
+  }
+
+  private static String errorCode(Throwable exception) {
+    if (exception instanceof AwsServiceException) {
+      AwsServiceException serviceException = (AwsServiceException) exception;
+      if (serviceException.awsErrorDetails() != null
+          && serviceException.awsErrorDetails().errorCode() != null) {
+        return serviceException.awsErrorDetails().errorCode();
+      }
+    }
+    return exception.getClass().getSimpleName();
+  }
+
+  private static Optional<Long> contentLength(Optional<String> header) {
+    try {
+      return header.map(Long::parseLong);
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static String service(ExecutionAttributes executionAttributes) {
+    return executionAttributes
+        .getOptionalAttribute(SdkExecutionAttribute.SERVICE_NAME)
+        .orElse("unknown");
+  }
+
+  private static String operation(ExecutionAttributes executionAttributes) {
+    return executionAttributes
+        .getOptionalAttribute(SdkExecutionAttribute.OPERATION_NAME)
+        .orElse("unknown");
+  }
+}
@@ -0,0 +1,271 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
+import io.prometheus.cloudwatch.GetMetricDataDataGetter.MetricLabels;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.ScanBy;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Finds the dimension sets of a rule and fetches their data in a single GetMetricData pass, with
+ * one SEARCH expression per statistic, instead of listing them with ListMetrics first.
+ *
+ * <p>The label of every result carries the dimension values of its series through dynamic labels,
+ * from which the dimension sets are rebuilt. CloudWatch returns at most {@value
+ * #MAX_SERIES_PER_SEARCH} series per SEARCH; values in {@code aws_dimension_select} narrow the
+ * search itself so that large namespaces can stay below that.
+ */
+final class SearchDataGetter implements DataGetter {
+  private static final Logger LOGGER = Logger.getLogger(SearchDataGetter.class.getName());
+
+  static final int MAX_SERIES_PER_SEARCH = 500;
+
+  private final MetricRule rule;
+  private final List<String> dimensionNames;
+  private final Map<DimensionFingerprint, MetricRuleData> results = new HashMap<>();
+  private final List<List<Dimension>> dimensions = new ArrayList<>();
+  private final List<String> owningAccounts;
+  private final int droppedSeries;
+
+  SearchDataGetter(
+      CloudWatchClient client,
+      ApiCallRunner apiCallRunner,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      List<String> tagBasedResourceIds) {
+    this.rule = rule;
+    this.dimensionNames = rule.awsDimensions.stream().sorted().collect(Collectors.toList());
+    this.owningAccounts = rule.includeLinkedAccounts ? new ArrayList<>() : null;
+
+    GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder();
+    builder.endTime(Instant.ofEpochMilli(start - 1000L * rule.delaySeconds));
+    builder.startTime(
+        Instant.ofEpochMilli(start - 1000L * (rule.delaySeconds + rule.rangeSeconds)));
+    builder.scanBy(ScanBy.TIMESTAMP_DESCENDING);
+    builder.metricDataQueries(buildQueries());
+
+    // Results of a series may continue on the next page, its newest datapoint comes first.
+    Set<String> seenLabels = new HashSet<>();
+    Map<String, Integer> seriesPerStat = new HashMap<>();
+    String nextToken = null;
+    do {
+      GetMetricDataRequest request = builder.nextToken(nextToken).build();
+      GetMetricDataResponse response =
+          apiCallRunner.call(
+              "getMetricData", rule.awsNamespace, () -> client.getMetricData(request));
+      apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
+      for (MetricDataResult result : response.metricDataResults()) {
+        if (!result.timestamps().isEmpty()
+            && !result.values().isEmpty()
+            && seenLabels.add(result.label())) {
+          seriesPerStat.merge(MetricLabels.decode(result.label()).stat, 1, Integer::sum);
+          addResult(result, tagBasedResourceIds);
+        }
+      }
+      nextToken = response.nextToken();
+      // Once more series than max_series were found some are dropped anyway, the other pages are
+      // not worth fetching.
+    } while (nextToken != null && (rule.maxSeries <= 0 || dimensions.size() <= rule.maxSeries));
+    boolean truncated = nextToken != null;
+
+    int found = dimensions.size();
+    droppedSeries = DefaultDimensionSource.keepMaxSeries(rule, dimensions, owningAccounts);
+    if (droppedSeries > 0) {
+      Set<DimensionFingerprint> kept = new HashSet<>();
+      for (int i = 0; i < dimensions.size(); i++) {
+        kept.add(
+            DimensionFingerprint.of(
+                owningAccounts == null ? null : owningAccounts.get(i), dimensions.get(i)));
+      }
+      results.keySet().retainAll(kept);
+      LOGGER.warning(
+          String.format(
+              "(searchDimensions) %s:%s found %s%d series, dropping %d above max_series %d",
+              rule.awsNamespace,
+              rule.awsMetricName,
+              truncated ? "at least " : "",
+              found,
+              droppedSeries,
+              rule.maxSeries));
+    }
+    for (Map.Entry<String, Integer> entry : seriesPerStat.entrySet()) {
+      if (entry.getValue() >= MAX_SERIES_PER_SEARCH) {
+        LOGGER.warning(
+            String.format(
+                "(searchDimensions) %s:%s %s reached the limit of %d series per SEARCH, narrow it"
+                    + " with aws_dimension_select",
+                rule.awsNamespace, rule.awsMetricName, entry.getKey(), MAX_SERIES_PER_SEARCH));
+      }
+    }
+    // SEARCH is billed per metric it returns.
+    metricsRequestedCounter
+        .labels(rule.awsMetricName, rule.awsNamespace)
+        .inc(seriesPerStat.values().stream().mapToInt(Integer::intValue).sum());
+  }
+
+  /** The dimension sets the searches found, of series passing the rule's selections. */
+  DimensionData getDimensionData() {
+    return new DimensionData(dimensions, owningAccounts, droppedSeries);
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    return metricRuleDataFor(dimensions, null);
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions, String owningAccount) {
+    return results.get(DimensionFingerprint.of(owningAccount, dimensions));
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(DimensionData dimensionData, int index) {
+    return results.get(dimensionData.getFingerprint(index));
+  }
+
+  private List<MetricDataQuery> buildQueries() {
+    List<String> stats = new ArrayList<>();
+    if (rule.awsStatistics != null) {
+      rule.awsStatistics.forEach(s -> stats.add(s.toString()));
+    }
+    if (rule.awsExtendedStatistics != null) {
+      stats.addAll(rule.awsExtendedStatistics);
+    }
+    StringBuilder labelTemplate = new StringBuilder();
+    if (rule.includeLinkedAccounts) {
+      labelTemplate.append("${PROP('AccountId')}|");
+    }
+    labelTemplate.append(
+        dimensionNames.stream()
+            .map(name -> name + "=${PROP('Dim." + name + "')}")
+            .collect(Collectors.joining(",")));
+
+    List<MetricDataQuery> queries = new ArrayList<>();
+    for (int i = 0; i < stats.size(); i++) {
+      String stat = stats.get(i);
+      queries.add(
+          MetricDataQuery.builder()
+              .id("search" + i)
+              .expression(searchExpression(rule, stat))
+              .label(MetricLabels.labelFor(stat, labelTemplate.toString()))
+              .build());
+    }
+    return queries;
+  }
+
+  /**
+   * The SEARCH expression of a statistic, limited to metrics with exactly the rule's dimensions and
+   * to the values of {@code aws_dimension_select}.
+   */
+  static String searchExpression(MetricRule rule, String stat) {
+    StringBuilder search = new StringBuilder("{").append(quote(rule.awsNamespace));
+    for (String name : rule.awsDimensions) {
+      search.append(',').append(quote(name));
+    }
+    search.append("} MetricName=").append(quote(rule.awsMetricName));
+    if (rule.awsDimensionSelect != null) {
+      for (Map.Entry<String, List<String>> select : rule.awsDimensionSelect.entrySet()) {
+        search.append(" (");
+        search.append(
+            select.getValue().stream()
+                .map(value -> quote(select.getKey()) + "=" + quote(value))
+                .collect(Collectors.joining(" OR ")));
+        search.append(')');
+      }
+    }
+    return String.format(
+        "SEARCH('%s', '%s', %d)", search.toString().replace("'", "\\'"), stat, rule.periodSeconds);
+  }
+
+  private static String quote(String term) {
+    return '"' + term.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+
+  private void addResult(MetricDataResult result, List<String> tagBasedResourceIds) {
+    GetMetricDataDataGetter.StatAndDimensions statAndDimensions =
+        MetricLabels.decode(result.label());
+    String key = statAndDimensions.dimetionsAsString;
+    String owningAccount = null;
+    if (rule.includeLinkedAccounts) {
+      int separator = key.indexOf('|');
+      owningAccount = key.substring(0, Math.max(separator, 0));
+      key = key.substring(separator + 1);
+    }
+    List<Dimension> seriesDimensions = parseDimensions(key);
+    if (seriesDimensions == null) {
+      LOGGER.warning(
+          String.format(
+              "(searchDimensions) %s:%s ignoring result with unexpected label %s",
+              rule.awsNamespace, rule.awsMetricName, result.label()));
+      return;
+    }
+    Metric metric = Metric.builder().dimensions(seriesDimensions).build();
+    if (!DefaultDimensionSource.useMetric(rule, tagBasedResourceIds, metric)) {
+      return;
+    }
+
+    DimensionFingerprint fingerprint = DimensionFingerprint.of(owningAccount, seriesDimensions);
+    MetricRuleData data = results.get(fingerprint);
+    if (data == null) {
+      data = new MetricRuleData(result.timestamps().get(0), "N/A");
+      results.put(fingerprint, data);
+      dimensions.add(seriesDimensions);
+      if (owningAccounts != null) {
+        owningAccounts.add(owningAccount);
+      }
+    }
+    String statString = statAndDimensions.stat;
+    Statistic stat = Statistic.fromValue(statString);
+    if (stat == Statistic.UNKNOWN_TO_SDK_VERSION) {
+      data.extendedValues.put(statString, result.values().get(0));
+    } else {
+      data.statisticValues.put(stat, result.values().get(0));
+    }
+  }
+
+  /**
+   * Rebuilds the dimensions of a result from its label, {@code name=value} pairs in the order of
+   * {@link #dimensionNames}, or returns null when the label does not have that form.
+   */
+  private List<Dimension> parseDimensions(String key) {
+    List<Dimension> parsed = new ArrayList<>(dimensionNames.size());
+    int position = 0;
+    for (int i = 0; i < dimensionNames.size(); i++) {
+      String name = dimensionNames.get(i);
+      if (!key.startsWith(name + "=", position)) {
+        return null;
+      }
+      int valueStart = position + name.length() + 1;
+      int valueEnd;
+      if (i == dimensionNames.size() - 1) {
+        valueEnd = key.length();
+      } else {
+        valueEnd = key.indexOf("," + dimensionNames.get(i + 1) + "=", valueStart);
+        if (valueEnd < 0) {
+          return null;
+        }
+      }
+      parsed.add(Dimension.builder().name(name).value(key.substring(valueStart, valueEnd)).build());
+      position = valueEnd + 1;
+    }
+    return parsed;
+  }
+}
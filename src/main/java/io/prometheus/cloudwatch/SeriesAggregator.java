@@ -0,0 +1,144 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Aggregates the series of a rule by a subset of their dimensions before they are exported, for
+ * rules with {@code aggregate_by}. Every statistic is aggregated on its own, across the series of a
+ * group that have it.
+ *
+ * <p>The function is applied to the value each series has for a statistic, not to the datapoints
+ * behind it: {@code sum} of {@code Average} adds up the averages of the series, and {@code avg} of
+ * {@code Average} weighs every series the same whatever its sample count. Aggregate {@code Sum} and
+ * {@code SampleCount} to get the average over all datapoints of a group.
+ */
+final class SeriesAggregator {
+
+  enum Function {
+    SUM,
+    MIN,
+    MAX,
+    AVG,
+    COUNT;
+
+    double apply(double aggregated, double value) {
+      switch (this) {
+        case MIN:
+          return Math.min(aggregated, value);
+        case MAX:
+          return Math.max(aggregated, value);
+        default:
+          return aggregated + value;
+      }
+    }
+  }
+
+  private static final Comparator<Dimension> BY_NAME = Comparator.comparing(Dimension::name);
+
+  /** A group of series, with the dimensions it is exported with. */
+  static final class Group {
+    final String owningAccount;
+    final List<Dimension> dimensions;
+    final MetricRuleData data;
+
+    private Group(String owningAccount, List<Dimension> dimensions, MetricRuleData data) {
+      this.owningAccount = owningAccount;
+      this.dimensions = dimensions;
+      this.data = data;
+    }
+  }
+
+  /** The running aggregate of a group, with how many series each statistic was seen in. */
+  private static final class Accumulator {
+    final Group group;
+    final Map<Object, Integer> counts = new HashMap<>();
+
+    Accumulator(Group group) {
+      this.group = group;
+    }
+  }
+
+  private final Set<String> dimensionNames;
+  private final Function function;
+  private final Map<List<Object>, Accumulator> groups = new LinkedHashMap<>();
+
+  SeriesAggregator(Set<String> dimensionNames, Function function) {
+    this.dimensionNames = dimensionNames;
+    this.function = function;
+  }
+
+  /** Adds the data of a series to its group. */
+  void add(String owningAccount, List<Dimension> dimensions, MetricRuleData values) {
+    List<Dimension> kept = new ArrayList<>(dimensionNames.size());
+    for (Dimension dimension : dimensions) {
+      if (dimensionNames.contains(dimension.name())) {
+        kept.add(dimension);
+      }
+    }
+    // Series listing the same dimensions in another order still fall into the same group.
+    kept.sort(BY_NAME);
+    Accumulator accumulator =
+        groups.computeIfAbsent(
+            Arrays.asList(owningAccount, kept),
+            k ->
+                new Accumulator(
+                    new Group(
+                        owningAccount, kept, new MetricRuleData(values.timestamp, values.unit))));
+    MetricRuleData data = accumulator.group.data;
+    // The group is as recent as its most recent series.
+    if (values.timestamp.isAfter(data.timestamp)) {
+      data.timestamp = values.timestamp;
+    }
+    for (Map.Entry<Statistic, Double> entry : values.statisticValues.entrySet()) {
+      aggregate(accumulator, data.statisticValues, entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, Double> entry : values.extendedValues.entrySet()) {
+      aggregate(accumulator, data.extendedValues, entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * The groups, with their aggregated data, in the order their first series were added. Every call
+   * returns new groups, so series can still be added afterwards.
+   */
+  List<Group> groups() {
+    List<Group> result = new ArrayList<>(groups.size());
+    for (Accumulator accumulator : groups.values()) {
+      Group group = accumulator.group;
+      MetricRuleData data = new MetricRuleData(group.data.timestamp, group.data.unit);
+      group.data.statisticValues.forEach(
+          (k, v) -> data.statisticValues.put(k, finish(v, accumulator.counts.get(k))));
+      group.data.extendedValues.forEach(
+          (k, v) -> data.extendedValues.put(k, finish(v, accumulator.counts.get(k))));
+      result.add(new Group(group.owningAccount, group.dimensions, data));
+    }
+    return result;
+  }
+
+  private double finish(double aggregated, int count) {
+    switch (function) {
+      case AVG:
+        return aggregated / count;
+      case COUNT:
+        return count;
+      default:
+        return aggregated;
+    }
+  }
+
+  private <K> void aggregate(
+      Accumulator accumulator, Map<K, Double> aggregated, K key, double value) {
+    accumulator.counts.merge(key, 1, Integer::sum);
+    aggregated.merge(key, value, function::apply);
+  }
+}
@@ -0,0 +1,93 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the label names and values built for every series of the last scrape of each rule, so that
+ * the series a scrape finds again reuse them instead of building them anew.
+ *
+ * <p>{@code MetricFamilySamples.Sample} is immutable, so samples themselves are still created per
+ * scrape; what is reused are the label lists they point to, whose names are derived from the
+ * dimension names with regular expressions. Series missing from a scrape of their rule are
+ * forgotten.
+ */
+final class SeriesLabelCache {
+
+  /** The label names and values of a series, never modified once built. */
+  static final class SeriesLabels {
+    final List<String> names;
+    final List<String> values;
+
+    /**
+     * The timestamp of the newest datapoint exported for the series by rules with backfill. It
+     * moves on once the samples are collected, whether or not the scrape or remote write push
+     * carrying them is delivered, so earlier datapoints of a lost delivery are not exported again.
+     */
+    volatile long exportedUntil = Long.MIN_VALUE;
+
+    SeriesLabels(List<String> names, List<String> values) {
+      this.names = Collections.unmodifiableList(names);
+      this.values = Collections.unmodifiableList(values);
+    }
+  }
+
+  /**
+   * The series seen by one scrape of a rule. Not thread safe, every scrape of a rule uses its own.
+   */
+  final class RuleSeries {
+    private final MetricRule rule;
+    private final Map<DimensionFingerprint, SeriesLabels> previous;
+    private final Map<DimensionFingerprint, SeriesLabels> current = new HashMap<>();
+
+    private RuleSeries(MetricRule rule, Map<DimensionFingerprint, SeriesLabels> previous) {
+      this.rule = rule;
+      this.previous = previous;
+    }
+
+    /**
+     * The labels of a series, built with {@code build} unless the previous scrape had them.
+     *
+     * <p>Series are looked up by their {@link DimensionFingerprint}, whose equality compares the
+     * owning account and dimensions, so series with colliding hashes never share labels.
+     */
+    SeriesLabels labels(DimensionFingerprint fingerprint, Supplier<SeriesLabels> build) {
+      SeriesLabels labels = previous.get(fingerprint);
+      if (labels == null) {
+        labels = build.get();
+      }
+      current.put(fingerprint, labels);
+      return labels;
+    }
+
+    /** Replaces the series kept for the rule with the ones seen by this scrape. */
+    void commit() {
+      series.put(rule, current);
+    }
+  }
+
+  private final Map<MetricRule, Map<DimensionFingerprint, SeriesLabels>> series =
+      new ConcurrentHashMap<>();
+
+  RuleSeries begin(MetricRule rule) {
+    return new RuleSeries(rule, series.getOrDefault(rule, Collections.emptyMap()));
+  }
+
+  /** Forgets the series of rules that are no longer configured. */
+  void retainRules(Collection<MetricRule> rules) {
+    Set<MetricRule> configured = new HashSet<>(rules);
+    series.keySet().removeIf(rule -> !configured.contains(rule));
+  }
+
+  /** The number of series kept across all rules. */
+  int size() {
+    return series.values().stream().mapToInt(Map::size).sum();
+  }
+}
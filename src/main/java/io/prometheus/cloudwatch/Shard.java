@@ -0,0 +1,70 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import org.apache.commons.codec.digest.MurmurHash3;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * The part of the configured rules and series one exporter replica is responsible for.
+ *
+ * <p>Rules and series are assigned to shards by hashing what identifies them, so every replica
+ * running the same configuration with the same {@code shard_count} reaches the same assignment
+ * without coordinating, and the replicas together fetch every series exactly once.
+ */
+final class Shard {
+
+  private final int index;
+  private final int count;
+
+  Shard(int index, int count) {
+    if (count < 1 || index < 0 || index >= count) {
+      throw new IllegalArgumentException(
+          "shard_index must satisfy 0 <= shard_index < shard_count, got "
+              + index
+              + " and "
+              + count);
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  boolean isAll() {
+    return count == 1;
+  }
+
+  /** Whether this shard scrapes a rule, rules sharded by series are scraped by every shard. */
+  boolean ownsRule(MetricRule rule) {
+    return count == 1 || rule.shardSeries || owns(ruleKey(rule).toString());
+  }
+
+  /** Whether this shard fetches the series of a rule sharded by series. */
+  boolean ownsSeries(MetricRule rule, List<Dimension> dimensions, String owningAccount) {
+    if (count == 1 || !rule.shardSeries) {
+      return true;
+    }
+    StringBuilder key = ruleKey(rule).append('\0').append(Objects.toString(owningAccount, ""));
+    dimensions.stream()
+        .sorted(Comparator.comparing(Dimension::name))
+        .forEach(d -> key.append('\0').append(d.name()).append('=').append(d.value()));
+    return owns(key.toString());
+  }
+
+  private boolean owns(String key) {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    return Math.floorMod(MurmurHash3.hash32x86(bytes, 0, bytes.length, 0), count) == index;
+  }
+
+  private static StringBuilder ruleKey(MetricRule rule) {
+    return new StringBuilder()
+        .append(rule.awsNamespace)
+        .append('\0')
+        .append(rule.awsMetricName)
+        .append('\0')
+        .append(Objects.toString(rule.accountId, ""))
+        .append('\0')
+        .append(Objects.toString(rule.region, ""));
+  }
+}
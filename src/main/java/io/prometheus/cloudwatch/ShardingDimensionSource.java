@@ -0,0 +1,41 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * Keeps only the dimension sets of rules sharded by series that belong to this replica's {@link
+ * Shard}, so that the data of a large rule is fetched by all replicas together rather than by each
+ * of them.
+ */
+final class ShardingDimensionSource implements DimensionSource {
+
+  private final DimensionSource delegate;
+  private final Shard shard;
+
+  ShardingDimensionSource(DimensionSource delegate, Shard shard) {
+    this.delegate = delegate;
+    this.shard = shard;
+  }
+
+  @Override
+  public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
+    DimensionData data = delegate.getDimensions(rule, tagBasedResourceIds);
+    if (!rule.shardSeries) {
+      return data;
+    }
+    List<List<Dimension>> dimensions = new ArrayList<>();
+    List<String> owningAccounts = data.getOwningAccounts() == null ? null : new ArrayList<>();
+    for (int i = 0; i < data.getDimensions().size(); i++) {
+      List<Dimension> series = data.getDimensions().get(i);
+      if (shard.ownsSeries(rule, series, data.getOwningAccount(i))) {
+        dimensions.add(series);
+        if (owningAccounts != null) {
+          owningAccounts.add(data.getOwningAccount(i));
+        }
+      }
+    }
+    return new DimensionData(dimensions, owningAccounts, data.getDroppedSeries());
+  }
+}
@@ -0,0 +1,169 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Arrays;
+
+/**
+ * The Snappy block format remote write bodies are compressed with.
+ *
+ * <p>Compression looks for matches of at least 4 bytes with a single hash table probe per position,
+ * which compresses exposition-like data well enough without a dependency.
+ */
+final class Snappy {
+  // Copies are limited to offsets a 2 byte copy can express, so input is compressed in fragments.
+  private static final int FRAGMENT_SIZE = 1 << 16;
+  private static final int HASH_TABLE_BITS = 14;
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_COPY_LENGTH = 64;
+
+  private Snappy() {}
+
+  static byte[] compress(byte[] input) {
+    byte[] output = new byte[32 + input.length + input.length / 6];
+    int op = writeVarint(output, 0, input.length);
+    int[] table = new int[1 << HASH_TABLE_BITS];
+    for (int fragmentStart = 0; fragmentStart < input.length; fragmentStart += FRAGMENT_SIZE) {
+      int fragmentEnd = Math.min(input.length, fragmentStart + FRAGMENT_SIZE);
+      Arrays.fill(table, -1);
+      int literalStart = fragmentStart;
+      int i = fragmentStart;
+      while (i + MIN_MATCH <= fragmentEnd) {
+        int bytes = readInt(input, i);
+        int hash = (bytes * 0x1E35A7BD) >>> (32 - HASH_TABLE_BITS);
+        int candidate = table[hash];
+        table[hash] = i;
+        if (candidate < fragmentStart || readInt(input, candidate) != bytes) {
+          i++;
+          continue;
+        }
+        int length = MIN_MATCH;
+        while (i + length < fragmentEnd && input[candidate + length] == input[i + length]) {
+          length++;
+        }
+        op = writeLiteral(input, literalStart, i, output, op);
+        op = writeCopy(i - candidate, length, output, op);
+        i += length;
+        literalStart = i;
+      }
+      op = writeLiteral(input, literalStart, fragmentEnd, output, op);
+    }
+    return Arrays.copyOf(output, op);
+  }
+
+  static byte[] uncompress(byte[] input) {
+    int ip = 0;
+    long length = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (ip >= input.length || shift > 28) {
+        throw new IllegalArgumentException("Malformed snappy length");
+      }
+      byte b = input[ip++];
+      length |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Snappy block too large");
+    }
+    byte[] output = new byte[(int) length];
+    int op = 0;
+    try {
+      while (ip < input.length) {
+        int tag = input[ip++] & 0xFF;
+        int count;
+        int offset;
+        switch (tag & 0x3) {
+          case 0:
+            count = tag >>> 2;
+            if (count >= 60) {
+              int lengthBytes = count - 59;
+              count = 0;
+              for (int k = 0; k < lengthBytes; k++) {
+                count |= (input[ip++] & 0xFF) << (8 * k);
+              }
+            }
+            count += 1;
+            System.arraycopy(input, ip, output, op, count);
+            ip += count;
+            op += count;
+            continue;
+          case 1:
+            count = ((tag >>> 2) & 0x7) + 4;
+            offset = ((tag & 0xE0) << 3) | (input[ip++] & 0xFF);
+            break;
+          case 2:
+            count = (tag >>> 2) + 1;
+            offset = (input[ip] & 0xFF) | (input[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            break;
+          default:
+            count = (tag >>> 2) + 1;
+            offset = readInt(input, ip);
+            ip += 4;
+            break;
+        }
+        if (offset <= 0 || offset > op) {
+          throw new IllegalArgumentException("Invalid snappy copy offset " + offset);
+        }
+        for (int k = 0; k < count; k++) {
+          output[op] = output[op - offset];
+          op++;
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated snappy block", e);
+    }
+    if (op != output.length) {
+      throw new IllegalArgumentException("Truncated snappy block");
+    }
+    return output;
+  }
+
+  private static int writeLiteral(byte[] input, int start, int end, byte[] output, int op) {
+    int length = end - start;
+    if (length == 0) {
+      return op;
+    }
+    int n = length - 1;
+    if (n < 60) {
+      output[op++] = (byte) (n << 2);
+    } else {
+      int lengthBytes = n < (1 << 8) ? 1 : n < (1 << 16) ? 2 : n < (1 << 24) ? 3 : 4;
+      output[op++] = (byte) ((59 + lengthBytes) << 2);
+      for (int k = 0; k < lengthBytes; k++) {
+        output[op++] = (byte) (n >>> (8 * k));
+      }
+    }
+    System.arraycopy(input, start, output, op, length);
+    return op + length;
+  }
+
+  private static int writeCopy(int offset, int length, byte[] output, int op) {
+    while (length > 0) {
+      // Never leave a remainder shorter than a match, so every copy stays worth its 3 bytes.
+      int count = length > MAX_COPY_LENGTH && length < MAX_COPY_LENGTH + MIN_MATCH ? 60 : length;
+      count = Math.min(count, MAX_COPY_LENGTH);
+      output[op++] = (byte) (((count - 1) << 2) | 0x2);
+      output[op++] = (byte) offset;
+      output[op++] = (byte) (offset >>> 8);
+      length -= count;
+    }
+    return op;
+  }
+
+  private static int writeVarint(byte[] output, int op, int value) {
+    while ((value & ~0x7F) != 0) {
+      output[op++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output[op++] = (byte) value;
+    return op;
+  }
+
+  private static int readInt(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF)
+        | (bytes[i + 1] & 0xFF) << 8
+        | (bytes[i + 2] & 0xFF) << 16
+        | (bytes[i + 3] & 0xFF) << 24;
+  }
+}
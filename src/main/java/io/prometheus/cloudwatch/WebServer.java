@@ -54,6 +54,7 @@ public class WebServer {
     context.setContextPath("/");
     context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
     context.addServlet(new ServletHolder(new DynamicReloadServlet(collector)), "/-/reload");
+    context.addServlet(new ServletHolder(new MetricStreamsServlet(collector)), "/metric-streams");
     context.addServlet(new ServletHolder(new HealthServlet()), "/-/healthy");
     context.addServlet(new ServletHolder(new HealthServlet()), "/-/ready");
     context.addServlet(new ServletHolder(new HomePageServlet()), "/");
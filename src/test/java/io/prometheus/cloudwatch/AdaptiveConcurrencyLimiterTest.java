@@ -0,0 +1,137 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+
+class AdaptiveConcurrencyLimiterTest {
+
+  @Test
+  void rejectsInvalidLimits() {
+    assertThatThrownBy(() -> new AdaptiveConcurrencyLimiter(0, 1))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new AdaptiveConcurrencyLimiter(3, 2))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void fixedLimiterNeverExceedsItsLimit() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 2);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(2);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] futures = new Future<?>[4];
+      for (int i = 0; i < futures.length; i++) {
+        futures[i] =
+            executor.submit(
+                () ->
+                    limiter.call(
+                        "listMetrics",
+                        () -> {
+                          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                          started.countDown();
+                          try {
+                            started.await(5, TimeUnit.SECONDS);
+                            Thread.sleep(10);
+                          } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                          }
+                          inFlight.decrementAndGet();
+                          return null;
+                        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(5, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(maxInFlight.get()).isEqualTo(2);
+    assertThat(limiter.getLimit()).isEqualTo(2);
+    assertThat(limiter.getInFlight()).isZero();
+  }
+
+  @Test
+  void growsWhileSaturatedAndBacksOffOnThrottling() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8);
+
+    // Saturated requests with stable latency grow the limit one step per window.
+    for (int i = 0; i < 40; i++) {
+      saturate(limiter, limiter.getLimit());
+    }
+    assertThat(limiter.getLimit()).isEqualTo(8);
+
+    AwsServiceException throttled =
+        AwsServiceException.builder()
+            .statusCode(400)
+            .awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").build())
+            .build();
+    assertThatThrownBy(
+            () ->
+                limiter.call(
+                    "listMetrics",
+                    () -> {
+                      throw throttled;
+                    }))
+        .isSameAs(throttled);
+    assertThat(limiter.getLimit()).isEqualTo(4);
+  }
+
+  @Test
+  void backsOffOnAThrottledAttemptBeforeTheCallReturns() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8);
+    for (int i = 0; i < 40; i++) {
+      saturate(limiter, limiter.getLimit());
+    }
+
+    int limitDuringCall =
+        limiter.call(
+            "listMetrics",
+            () -> {
+              // A throttled credential refresh made during the call is not the call's.
+              AdaptiveConcurrencyLimiter.throttledAttempt("AssumeRole");
+              assertThat(limiter.getLimit()).isEqualTo(8);
+              // Two attempts throttled before the SDK's retry succeeds back off only once.
+              AdaptiveConcurrencyLimiter.throttledAttempt("ListMetrics");
+              AdaptiveConcurrencyLimiter.throttledAttempt("ListMetrics");
+              return limiter.getLimit();
+            });
+
+    assertThat(limitDuringCall).isEqualTo(4);
+    assertThat(limiter.getLimit()).isEqualTo(4);
+    // Outside of a call there is no limiter to back off.
+    AdaptiveConcurrencyLimiter.throttledAttempt("ListMetrics");
+    assertThat(limiter.getLimit()).isEqualTo(4);
+  }
+
+  /** Nests calls until as many requests are in flight as the limiter currently allows. */
+  private void saturate(AdaptiveConcurrencyLimiter limiter, int depth) {
+    limiter.call(
+        "listMetrics",
+        () -> {
+          if (depth > 1) {
+            saturate(limiter, depth - 1);
+          } else {
+            try {
+              Thread.sleep(2);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return null;
+        });
+  }
+}
@@ -0,0 +1,105 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ApiCallRunnerTest {
+
+  @Test
+  void recordsDurationOfSuccessfulCalls() {
+    CollectorRegistry registry = new CollectorRegistry();
+    ApiCallRunner runner =
+        new ApiCallRunner(histogram(registry), new AdaptiveConcurrencyLimiter(1, 1));
+
+    assertThat(runner.call("listMetrics", "AWS/ELB", () -> "result")).isEqualTo("result");
+
+    assertThat(count(registry, "listMetrics", "AWS/ELB")).isEqualTo(1.0);
+  }
+
+  @Test
+  void recordsDurationOfFailedCalls() {
+    CollectorRegistry registry = new CollectorRegistry();
+    ApiCallRunner runner =
+        new ApiCallRunner(histogram(registry), new AdaptiveConcurrencyLimiter(1, 1));
+
+    assertThatThrownBy(
+            () ->
+                runner.call(
+                    "getMetricData",
+                    "AWS/EC2",
+                    () -> {
+                      throw new IllegalStateException("boom");
+                    }))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("boom");
+
+    assertThat(count(registry, "getMetricData", "AWS/EC2")).isEqualTo(1.0);
+  }
+
+  @Test
+  void waitsForRateLimitedActionsOnly() {
+    CollectorRegistry registry = new CollectorRegistry();
+    Histogram wait =
+        Histogram.build()
+            .name("api_call_runner_test_rate_limit_wait_seconds")
+            .help("wait")
+            .labelNames("action")
+            .register(registry);
+    Gauge queued =
+        Gauge.build()
+            .name("api_call_runner_test_rate_limit_queued")
+            .help("queued")
+            .labelNames("action")
+            .register(registry);
+    ApiCallRunner runner =
+        new ApiCallRunner(
+            histogram(registry),
+            new AdaptiveConcurrencyLimiter(1, 1),
+            Map.of("listMetrics", new RequestRateLimiter(1000)),
+            wait,
+            queued);
+
+    runner.call("listMetrics", "AWS/ELB", () -> "result");
+    runner.call("getMetricData", "AWS/ELB", () -> "result");
+
+    assertThat(
+            registry.getSampleValue(
+                "api_call_runner_test_rate_limit_wait_seconds_count",
+                new String[] {"action"},
+                new String[] {"listMetrics"}))
+        .isEqualTo(1.0);
+    assertThat(
+            registry.getSampleValue(
+                "api_call_runner_test_rate_limit_wait_seconds_count",
+                new String[] {"action"},
+                new String[] {"getMetricData"}))
+        .isNull();
+    assertThat(
+            registry.getSampleValue(
+                "api_call_runner_test_rate_limit_queued",
+                new String[] {"action"},
+                new String[] {"listMetrics"}))
+        .isEqualTo(0.0);
+  }
+
+  private Histogram histogram(CollectorRegistry registry) {
+    return Histogram.build()
+        .name("api_call_runner_test_duration_seconds")
+        .help("duration")
+        .labelNames("action", "namespace")
+        .register(registry);
+  }
+
+  private Double count(CollectorRegistry registry, String action, String namespace) {
+    return registry.getSampleValue(
+        "api_call_runner_test_duration_seconds_count",
+        new String[] {"action", "namespace"},
+        new String[] {action, namespace});
+  }
+}
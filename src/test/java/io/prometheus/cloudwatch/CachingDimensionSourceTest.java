@@ -28,6 +28,26 @@ public class CachingDimensionSourceTest {
     assertThat(expected.getDimensions().get(0).get(0)).isEqualTo(dimension);
   }
 
+  @Test
+  public void carriesOverEntriesOfUnchangedRules() {
+    FakeDimensionSource previousSource = new FakeDimensionSource();
+    CachingDimensionSource previous =
+        new CachingDimensionSource(
+            previousSource, new DimensionCacheConfig(Duration.ofSeconds(60)));
+    previous.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), Collections.emptyList());
+    previous.getDimensions(createMetricRule("AWS/Redshift", "ReadIOPS"), Collections.emptyList());
+
+    FakeDimensionSource source = new FakeDimensionSource();
+    CachingDimensionSource sut =
+        new CachingDimensionSource(source, new DimensionCacheConfig(Duration.ofSeconds(60)));
+    sut.carryOver(previous, List.of(createMetricRule("AWS/Redshift", "WriteIOPS")));
+
+    sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), Collections.emptyList());
+    assertThat(source.called).isEqualTo(0);
+    sut.getDimensions(createMetricRule("AWS/Redshift", "ReadIOPS"), Collections.emptyList());
+    assertThat(source.called).isEqualTo(1);
+  }
+
   private MetricRule createMetricRule(String namespace, String name) {
     MetricRule metricRule = new MetricRule();
     metricRule.awsNamespace = namespace;
@@ -12,20 +12,27 @@ import static org.mockito.hamcrest.MockitoHamcrest.argThat;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import io.prometheus.cloudwatch.RequestsMatchers.*;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -236,27 +243,27 @@ public class CloudWatchCollectorTest {
                 .metricDataResults(
                     List.of(
                         MetricDataResult.builder()
-                            .label("Average/")
+                            .label(label("Average"))
                             .values(List.of(Double.valueOf(1.0)))
                             .timestamps(timestamps)
                             .build(),
                         MetricDataResult.builder()
-                            .label("Maximum/")
+                            .label(label("Maximum"))
                             .values(List.of(Double.valueOf(2.0)))
                             .timestamps(timestamps)
                             .build(),
                         MetricDataResult.builder()
-                            .label("Minimum/")
+                            .label(label("Minimum"))
                             .values(List.of(Double.valueOf(3.0)))
                             .timestamps(timestamps)
                             .build(),
                         MetricDataResult.builder()
-                            .label("SampleCount/")
+                            .label(label("SampleCount"))
                             .values(List.of(Double.valueOf(4.0)))
                             .timestamps(timestamps)
                             .build(),
                         MetricDataResult.builder()
-                            .label("Sum/")
+                            .label(label("Sum"))
                             .values(List.of(Double.valueOf(5.0)))
                             .timestamps(timestamps)
                             .build()))
@@ -379,6 +386,133 @@ public class CloudWatchCollectorTest {
         .isCloseTo(3.0, within(.01));
   }
 
+  @Test
+  public void backfillExportsEveryDatapointOnce() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  backfill: true",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date(1000).toInstant()).average(1.0).build(),
+                    Datapoint.builder().timestamp(new Date(3000).toInstant()).average(3.0).build(),
+                    Datapoint.builder().timestamp(new Date(2000).toInstant()).average(2.0).build())
+                .build())
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date(2000).toInstant()).average(2.0).build(),
+                    Datapoint.builder().timestamp(new Date(3000).toInstant()).average(3.0).build(),
+                    Datapoint.builder().timestamp(new Date(4000).toInstant()).average(4.0).build())
+                .build());
+
+    assertThat(averageSamples(collector)).containsExactly(1000L, 2000L, 3000L);
+    assertThat(averageSamples(collector)).containsExactly(4000L);
+  }
+
+  private static List<Long> averageSamples(CloudWatchCollector collector) {
+    return collector.collect().stream()
+        .filter(mfs -> mfs.name.equals("aws_elb_request_count_average"))
+        .flatMap(mfs -> mfs.samples.stream())
+        .map(sample -> sample.timestampMs)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void adaptiveConcurrencyRequiresRoomToAdapt() {
+    assertThatThrownBy(
+            () ->
+                new CloudWatchCollector(
+                    "---\nadaptive_concurrency: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                    cloudWatchClient,
+                    taggingClient))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("adaptive_concurrency needs max_concurrency above 1 to have a limit to adapt");
+  }
+
+  @Test
+  public void backfillRequiresSetTimestamp() {
+    assertThatThrownBy(
+            () ->
+                new CloudWatchCollector(
+                    "---\nbackfill: true\nset_timestamp: false\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                    cloudWatchClient,
+                    taggingClient))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void aggregateByExportsOneSeriesPerGroup() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  aws_dimensions:\n  - AvailabilityZone\n  - LoadBalancerName\n  aggregate_by:\n    dimensions: [AvailabilityZone]\n    function: sum",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(elbMetric("a", "lb1"), elbMetric("a", "lb2"), elbMetric("b", "lb3"))
+                .build());
+    Map<String, Double> sums = Map.of("lb1", 2.0, "lb2", 3.0, "lb3", 5.0);
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenAnswer(
+            invocation -> {
+              GetMetricStatisticsRequest request = invocation.getArgument(0);
+              String loadBalancer =
+                  request.dimensions().stream()
+                      .filter(d -> d.name().equals("LoadBalancerName"))
+                      .findFirst()
+                      .get()
+                      .value();
+              return GetMetricStatisticsResponse.builder()
+                  .datapoints(
+                      Datapoint.builder()
+                          .timestamp(new Date().toInstant())
+                          .sum(sums.get(loadBalancer))
+                          .build())
+                  .build();
+            });
+
+    String[] labelNames = new String[] {"job", "instance", "availability_zone"};
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum", labelNames, new String[] {"aws_elb", "", "a"}))
+        .isCloseTo(5.0, within(.01));
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum", labelNames, new String[] {"aws_elb", "", "b"}))
+        .isCloseTo(5.0, within(.01));
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum",
+                new String[] {"job", "instance", "availability_zone", "load_balancer_name"},
+                new String[] {"aws_elb", "", "a", "lb1"}))
+        .isNull();
+  }
+
+  /** The label GetMetricData results of a series carry, from alternating names and values. */
+  private static String label(String stat, String... dimensions) {
+    List<Dimension> parsed = new ArrayList<>();
+    for (int i = 0; i < dimensions.length; i += 2) {
+      parsed.add(Dimension.builder().name(dimensions[i]).value(dimensions[i + 1]).build());
+    }
+    return GetMetricDataDataGetter.MetricLabels.labelFor(
+        stat, DimensionFingerprint.of(null, parsed));
+  }
+
+  private static Metric elbMetric(String availabilityZone, String loadBalancerName) {
+    return Metric.builder()
+        .dimensions(
+            Dimension.builder().name("AvailabilityZone").value(availabilityZone).build(),
+            Dimension.builder().name("LoadBalancerName").value(loadBalancerName).build())
+        .build();
+  }
+
   @Test
   public void testDimensions() throws Exception {
     new CloudWatchCollector(
@@ -559,6 +693,32 @@ public class CloudWatchCollectorTest {
         .isNull();
   }
 
+  @Test
+  public void testDimensionSelectIsPushedIntoListMetrics() {
+    new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - AvailabilityZone\n  - LoadBalancerName\n  aws_dimension_select:\n    LoadBalancerName:\n    - myLB\n    - myOtherLB",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(ListMetricsResponse.builder().build());
+
+    registry.getSampleValue("cloudwatch_exporter_scrape_error");
+
+    for (String loadBalancer : List.of("myLB", "myOtherLB")) {
+      Mockito.verify(cloudWatchClient)
+          .listMetrics(
+              (ListMetricsRequest)
+                  argThat(
+                      new ListMetricsRequestMatcher()
+                          .Namespace("AWS/ELB")
+                              .MetricName("RequestCount")
+                              .Dimensions("AvailabilityZone", "LoadBalancerName")
+                              .DimensionValue("LoadBalancerName", loadBalancer)));
+    }
+    Mockito.verify(cloudWatchClient, times(2)).listMetrics(any(ListMetricsRequest.class));
+  }
+
   @Test
   public void testAllSelectDimensionsKnown() throws Exception {
     new CloudWatchCollector(
@@ -658,12 +818,16 @@ public class CloudWatchCollectorTest {
                 .metricDataResults(
                     List.of(
                         MetricDataResult.builder()
-                            .label("Average/AvailabilityZone=a,LoadBalancerName=myLB")
+                            .label(
+                                label(
+                                    "Average", "AvailabilityZone", "a", "LoadBalancerName", "myLB"))
                             .values(List.of(Double.valueOf(2.0)))
                             .timestamps(timestamps)
                             .build(),
                         MetricDataResult.builder()
-                            .label("Average/AvailabilityZone=b,LoadBalancerName=myLB")
+                            .label(
+                                label(
+                                    "Average", "AvailabilityZone", "b", "LoadBalancerName", "myLB"))
                             .values(List.of(Double.valueOf(3.0)))
                             .timestamps(timestamps)
                             .build()))
@@ -2172,7 +2336,7 @@ public class CloudWatchCollectorTest {
             cloudWatchClient,
             taggingClient);
 
-    MetricRule rule = collector.activeConfig.rules.get(0);
+    MetricRule rule = collector.activeConfig.get().rules.get(0);
 
     assertThat(rule.periodSeconds).isEqualTo(15);
     assertThat(rule.rangeSeconds).isEqualTo(30);
@@ -2195,7 +2359,7 @@ public class CloudWatchCollectorTest {
             cloudWatchClient,
             taggingClient);
 
-    assertThat(collector.activeConfig.rules).hasSize(1);
+    assertThat(collector.activeConfig.get().rules).hasSize(1);
   }
 
   @Test
@@ -2205,9 +2369,9 @@ public class CloudWatchCollectorTest {
             new StringReader(
                 "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n"));
 
-    assertThat(collector.activeConfig.rules).hasSize(1);
-    assertThat(collector.activeConfig.cloudWatchClient).isNotNull();
-    assertThat(collector.activeConfig.taggingClient).isNotNull();
+    assertThat(collector.activeConfig.get().rules).hasSize(1);
+    assertThat(collector.activeConfig.get().cloudWatchClient).isNotNull();
+    assertThat(collector.activeConfig.get().taggingClient).isNotNull();
   }
 
   @Test
@@ -2285,9 +2449,9 @@ public class CloudWatchCollectorTest {
         new CloudWatchCollector(
             "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n");
 
-    assertThat(collector.activeConfig.rules).hasSize(1);
-    assertThat(collector.activeConfig.cloudWatchClient).isNotNull();
-    assertThat(collector.activeConfig.taggingClient).isNotNull();
+    assertThat(collector.activeConfig.get().rules).hasSize(1);
+    assertThat(collector.activeConfig.get().cloudWatchClient).isNotNull();
+    assertThat(collector.activeConfig.get().taggingClient).isNotNull();
   }
 
   @Test
@@ -2304,7 +2468,7 @@ public class CloudWatchCollectorTest {
             cloudWatchClient,
             taggingClient);
 
-    MetricRule rule = collector.activeConfig.rules.get(0);
+    MetricRule rule = collector.activeConfig.get().rules.get(0);
 
     assertThat(rule.awsStatistics).containsExactly(Statistic.SUM, Statistic.AVERAGE);
     assertThat(rule.warnOnEmptyListDimensions).isTrue();
@@ -2324,19 +2488,465 @@ public class CloudWatchCollectorTest {
               "---\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n",
               cloudWatchClient,
               taggingClient);
+      CloudWatchCollector.ActiveConfig previous = collector.activeConfig.get();
 
       collector.reloadConfig();
 
-      assertThat(collector.activeConfig.rules).hasSize(1);
-      assertThat(collector.activeConfig.rules.get(0).awsNamespace).isEqualTo("AWS/ELB");
-      assertThat(collector.activeConfig.cloudWatchClient).isSameAs(cloudWatchClient);
-      assertThat(collector.activeConfig.taggingClient).isSameAs(taggingClient);
+      assertThat(collector.activeConfig.get().rules).hasSize(1);
+      assertThat(collector.activeConfig.get().rules.get(0).awsNamespace).isEqualTo("AWS/ELB");
+      // Scrapes still holding the previous snapshot keep seeing the previous rules.
+      assertThat(previous.rules.get(0).awsNamespace).isEqualTo("AWS/EC2");
+      assertThat(collector.activeConfig.get().cloudWatchClient).isSameAs(cloudWatchClient);
+      assertThat(collector.activeConfig.get().taggingClient).isSameAs(taggingClient);
     } finally {
       WebServer.configFilePath = previousConfigFilePath;
       Files.deleteIfExists(config);
     }
   }
 
+  @Test
+  public void reloadConfigKeepsListMetricsCacheOfUnchangedRules() throws Exception {
+    String unchangedRule =
+        "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions: [LoadBalancerName]\n";
+    Path config =
+        Files.writeString(
+            Files.createTempFile("cloudwatch-exporter-reload", ".yml"),
+            "---\nlist_metrics_cache_ttl: 600\nmetrics:\n"
+                + unchangedRule
+                + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions: [LoadBalancerName]\n");
+    String previousConfigFilePath = WebServer.configFilePath;
+    WebServer.configFilePath = config.toString();
+    try {
+      Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+          .thenReturn(ListMetricsResponse.builder().build());
+      CloudWatchCollector collector =
+          new CloudWatchCollector(
+              "---\nlist_metrics_cache_ttl: 600\nmetrics:\n" + unchangedRule,
+              cloudWatchClient,
+              taggingClient);
+      collector.collect();
+
+      collector.reloadConfig();
+      collector.collect();
+
+      Mockito.verify(cloudWatchClient)
+          .listMetrics(
+              argThat(
+                  new ListMetricsRequestMatcher()
+                      .Namespace("AWS/ELB").MetricName("Latency").Dimensions("LoadBalancerName")));
+      Mockito.verify(cloudWatchClient)
+          .listMetrics(
+              argThat(
+                  new ListMetricsRequestMatcher()
+                      .Namespace("AWS/ELB")
+                          .MetricName("RequestCount")
+                          .Dimensions("LoadBalancerName")));
+    } finally {
+      WebServer.configFilePath = previousConfigFilePath;
+      Files.deleteIfExists(config);
+    }
+  }
+
+  @Test
+  public void reloadConfigKeepsListMetricsCacheOfUnchangedRulesWhenSharded() throws Exception {
+    String rules =
+        "---\nshard_count: 2\nshard_index: 0\nlist_metrics_cache_ttl: 600\nmetrics:\n"
+            + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n"
+            + "  aws_dimensions: [LoadBalancerName]\n  shard_series: true\n";
+    Path config =
+        Files.writeString(Files.createTempFile("cloudwatch-exporter-reload", ".yml"), rules);
+    String previousConfigFilePath = WebServer.configFilePath;
+    WebServer.configFilePath = config.toString();
+    try {
+      Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+          .thenReturn(ListMetricsResponse.builder().build());
+      CloudWatchCollector collector =
+          new CloudWatchCollector(rules, cloudWatchClient, taggingClient);
+      collector.collect();
+
+      collector.reloadConfig();
+      collector.collect();
+
+      Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+    } finally {
+      WebServer.configFilePath = previousConfigFilePath;
+      Files.deleteIfExists(config);
+    }
+  }
+
+  @Test
+  public void reloadConfigKeepsListMetricsCacheOfUnchangedTagSelectRules() throws Exception {
+    String rules =
+        "---\nlist_metrics_cache_ttl: 600\nmetrics:\n"
+            + "- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions: [InstanceId]\n"
+            + "  aws_tag_select:\n    tag_selections:\n      Monitoring: [enabled]\n"
+            + "    resource_type_selection: ec2:instance\n    resource_id_dimension: InstanceId\n"
+            + "    arn_resource_id_regexp: '(i-[0-9a-f]+)$'\n";
+    Path config =
+        Files.writeString(Files.createTempFile("cloudwatch-exporter-reload", ".yml"), rules);
+    String previousConfigFilePath = WebServer.configFilePath;
+    WebServer.configFilePath = config.toString();
+    try {
+      Mockito.when(taggingClient.getResources(any(GetResourcesRequest.class)))
+          .thenReturn(
+              GetResourcesResponse.builder()
+                  .resourceTagMappingList(
+                      ResourceTagMapping.builder()
+                          .resourceARN("arn:aws:ec2:us-east-1:121212121212:instance/i-1")
+                          .build())
+                  .build());
+      Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+          .thenReturn(ListMetricsResponse.builder().build());
+      CloudWatchCollector collector =
+          new CloudWatchCollector(rules, cloudWatchClient, taggingClient);
+      collector.collect();
+
+      collector.reloadConfig();
+      collector.collect();
+
+      Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+    } finally {
+      WebServer.configFilePath = previousConfigFilePath;
+      Files.deleteIfExists(config);
+    }
+  }
+
+  @Test
+  public void reloadRebuildsTheClientsOfAccountsWhoseSettingsChanged() {
+    String rules = "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n";
+    String account = "- account_id: '111111111111'\n  role_arn: arn:aws:iam::111111111111:role/";
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: us-east-1\naccounts:\n" + account + "exporter\n" + rules,
+            cloudWatchClient,
+            taggingClient);
+    CloudWatchCollector.AwsClients clients =
+        collector.activeConfig.get().additionalClients.get("111111111111/us-east-1");
+
+    collector.loadConfig(
+        new StringReader("---\nregion: us-east-1\naccounts:\n" + account + "exporter\n" + rules),
+        cloudWatchClient,
+        taggingClient,
+        collector.activeConfig.get().additionalClients);
+    assertThat(collector.activeConfig.get().additionalClients.get("111111111111/us-east-1"))
+        .isSameAs(clients);
+
+    collector.loadConfig(
+        new StringReader("---\nregion: us-east-1\naccounts:\n" + account + "other\n" + rules),
+        cloudWatchClient,
+        taggingClient,
+        collector.activeConfig.get().additionalClients);
+    CloudWatchCollector.AwsClients rebuilt =
+        collector.activeConfig.get().additionalClients.get("111111111111/us-east-1");
+    assertThat(rebuilt).isNotSameAs(clients);
+    assertThat(rebuilt.connection).isNotSameAs(clients.connection);
+
+    collector.loadConfig(
+        new StringReader(
+            "---\nregion: us-east-1\nhttp_client:\n  max_connections: 100\naccounts:\n"
+                + account
+                + "other\n"
+                + rules),
+        cloudWatchClient,
+        taggingClient,
+        collector.activeConfig.get().additionalClients);
+    assertThat(collector.activeConfig.get().additionalClients.get("111111111111/us-east-1"))
+        .isNotSameAs(rebuilt);
+  }
+
+  @Test
+  public void httpClientSettingsAreParsed() {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: us-east-1\nhttp_client:\n  max_connections: 200\n"
+                + "  connection_ttl_seconds: 300\n  connection_max_idle_seconds: 1.5\n"
+                + "  connection_acquisition_timeout_seconds: 20\n  tcp_keep_alive: true\n"
+                + "accounts:\n- account_id: '111111111111'\n"
+                + "  role_arn: arn:aws:iam::111111111111:role/exporter\n"
+                + "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+            cloudWatchClient,
+            taggingClient);
+    CloudWatchCollector.HttpClientSettings settings =
+        collector
+            .activeConfig
+            .get()
+            .additionalClients
+            .get("111111111111/us-east-1")
+            .connection
+            .settings
+            .httpClient;
+
+    assertThat(settings.maxConnections).isEqualTo(200);
+    assertThat(settings.connectionTtl).isEqualTo(Duration.ofSeconds(300));
+    assertThat(settings.connectionMaxIdle).isEqualTo(Duration.ofMillis(1500));
+    assertThat(settings.connectionAcquisitionTimeout).isEqualTo(Duration.ofSeconds(20));
+    assertThat(settings.tcpKeepAlive).isTrue();
+  }
+
+  @Test
+  public void httpClientSettingsDefaultToTheSdk() {
+    CloudWatchCollector.HttpClientSettings settings =
+        CloudWatchCollector.HttpClientSettings.parse(Collections.emptyMap());
+
+    assertThat(settings.maxConnections).isNull();
+    assertThat(settings.connectionTtl).isNull();
+    assertThat(settings.connectionMaxIdle).isNull();
+    assertThat(settings.connectionAcquisitionTimeout).isNull();
+    assertThat(settings.tcpKeepAlive).isNull();
+  }
+
+  @Test
+  public void invalidHttpClientSettingsAreRejected() {
+    for (String setting :
+        Arrays.asList(
+            "max_connections: 0",
+            "max_connections: 1.5",
+            "max_connections: many",
+            "connection_ttl_seconds: -1",
+            "connection_max_idle_seconds: 0",
+            "connection_acquisition_timeout_seconds: soon",
+            "tcp_keep_alive: 'yes please'",
+            "max_conections: 10")) {
+      assertThatThrownBy(
+              () ->
+                  new CloudWatchCollector(
+                      "---\nhttp_client:\n  "
+                          + setting
+                          + "\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                      cloudWatchClient,
+                      taggingClient))
+          .as(setting)
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test
+  public void replacedConfigClosesDroppedClientsOnceItsScrapesAreDone() {
+    CloudWatchCollector.ActiveConfig config =
+        new CloudWatchCollector(
+                "---\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                cloudWatchClient,
+                taggingClient)
+            .activeConfig.get();
+    List<String> closed = new ArrayList<>();
+
+    assertThat(config.beginScrape()).isTrue();
+    config.retire(() -> closed.add("clients"));
+    assertThat(closed).isEmpty();
+    // Scrapes starting after the reload pick up the new config instead.
+    assertThat(config.beginScrape()).isFalse();
+    config.endScrape();
+
+    assertThat(closed).containsExactly("clients");
+  }
+
+  @Test
+  public void scrapesEveryConfiguredRegionWithItsOwnClients() throws IOException {
+    CloudWatchClient euCloudWatchClient = Mockito.mock(CloudWatchClient.class);
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: us-east-1\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+            cloudWatchClient,
+            taggingClient);
+    collector.loadConfig(
+        new StringReader(
+            "---\nregion: us-east-1\nregions: [us-east-1, eu-west-1]\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n"),
+        cloudWatchClient,
+        taggingClient,
+        Map.of(
+            "eu-west-1",
+            new CloudWatchCollector.AwsClients(
+                euCloudWatchClient, Mockito.mock(ResourceGroupsTaggingApiClient.class))));
+    collector.register(registry);
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(Instant.now()).sum(1.0).build())
+                .build());
+    Mockito.when(euCloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(Instant.now()).sum(2.0).build())
+                .build());
+
+    assertThat(collector.activeConfig.get().rules).hasSize(2);
+    assertThat(collector.activeConfig.get().maxConcurrency).isEqualTo(2);
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum",
+                new String[] {"job", "instance", "region"},
+                new String[] {"aws_elb", "", "us-east-1"}))
+        .isEqualTo(1.0);
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum",
+                new String[] {"job", "instance", "region"},
+                new String[] {"aws_elb", "", "eu-west-1"}))
+        .isEqualTo(2.0);
+    assertThat(exposition())
+        .containsOnlyOnce("# TYPE aws_elb_request_count_sum gauge")
+        .contains("aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\",region=\"us-east-1\",}")
+        .contains("aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\",region=\"eu-west-1\",}");
+  }
+
+  /** The registry in the text format, as Prometheus scrapes it. */
+  private String exposition() throws IOException {
+    StringWriter writer = new StringWriter();
+    TextFormat.write004(writer, registry.metricFamilySamples());
+    return writer.toString();
+  }
+
+  @Test
+  public void scrapesEveryAccountWithItsOwnClients() throws IOException {
+    CloudWatchClient firstClient = Mockito.mock(CloudWatchClient.class);
+    CloudWatchClient secondClient = Mockito.mock(CloudWatchClient.class);
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+            cloudWatchClient,
+            taggingClient);
+    collector.loadConfig(
+        new StringReader(
+            "---\naccounts:\n"
+                + "- account_id: '111111111111'\n  role_arn: arn:aws:iam::111111111111:role/exporter\n"
+                + "- account_id: '222222222222'\n  role_arn: arn:aws:iam::222222222222:role/exporter\n"
+                + "  api_requests_per_second:\n    get_metric_statistics: 5\n"
+                + "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n"),
+        cloudWatchClient,
+        taggingClient,
+        Map.of(
+            "111111111111/",
+            new CloudWatchCollector.AwsClients(
+                firstClient, Mockito.mock(ResourceGroupsTaggingApiClient.class)),
+            "222222222222/",
+            new CloudWatchCollector.AwsClients(
+                secondClient, Mockito.mock(ResourceGroupsTaggingApiClient.class))));
+    collector.register(registry);
+    Mockito.when(firstClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(Instant.now()).sum(1.0).build())
+                .build());
+    Mockito.when(secondClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(Instant.now()).sum(2.0).build())
+                .build());
+
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum",
+                new String[] {"job", "instance", "account_id"},
+                new String[] {"aws_elb", "", "111111111111"}))
+        .isEqualTo(1.0);
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_sum",
+                new String[] {"job", "instance", "account_id"},
+                new String[] {"aws_elb", "", "222222222222"}))
+        .isEqualTo(2.0);
+    assertThat(exposition())
+        .containsOnlyOnce("# TYPE aws_elb_request_count_sum gauge")
+        .contains(
+            "aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\",account_id=\"111111111111\",}")
+        .contains(
+            "aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\",account_id=\"222222222222\",}");
+    Mockito.verify(cloudWatchClient, never())
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+    assertThat(collector.activeConfig.get().accountRunners.get("111111111111"))
+        .isNotSameAs(collector.activeConfig.get().accountRunners.get("222222222222"));
+    assertThat(
+            registry.getSampleValue(
+                "cloudwatch_exporter_api_concurrency_limit",
+                new String[] {"account_id"},
+                new String[] {"222222222222"}))
+        .isEqualTo(3.0);
+  }
+
+  @Test
+  public void accountIdMustBeQuoted() {
+    assertThatThrownBy(
+            () ->
+                new CloudWatchCollector(
+                    "---\naccounts:\n- account_id: 111111111111\n  role_arn: arn:aws:iam::111111111111:role/exporter\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                    cloudWatchClient,
+                    taggingClient))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void shardsSplitRulesBetweenReplicas() {
+    StringBuilder config = new StringBuilder("---\nshard_count: 2\nmetrics:\n");
+    for (int i = 0; i < 20; i++) {
+      config.append("- aws_namespace: AWS/ELB\n  aws_metric_name: Metric").append(i).append('\n');
+    }
+    config.append("- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n");
+    config.append("  shard_series: true\n");
+
+    List<MetricRule> shard0 =
+        new CloudWatchCollector(config + "shard_index: 0\n", cloudWatchClient, taggingClient)
+            .activeConfig.get().rules;
+    List<MetricRule> shard1 =
+        new CloudWatchCollector(config + "shard_index: 1\n", cloudWatchClient, taggingClient)
+            .activeConfig.get().rules;
+
+    assertThat(shard0)
+        .isNotEmpty()
+        .doesNotContainAnyElementsOf(shard1.subList(0, shard1.size() - 1));
+    assertThat(shard0.size() + shard1.size()).isEqualTo(22);
+    assertThat(shard0.get(shard0.size() - 1).shardSeries).isTrue();
+    assertThat(shard1.get(shard1.size() - 1).shardSeries).isTrue();
+  }
+
+  @Test
+  public void maxTotalSeriesKeepsTheSeriesOfEarlierRules() {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmax_total_series: 1\nmetrics:\n"
+                + "- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n"
+                + "- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Sum]\n",
+            cloudWatchClient,
+            taggingClient);
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(new Date().toInstant()).sum(5.0).build())
+                .build());
+
+    List<String> names =
+        collector.collect().stream().map(mfs -> mfs.name).collect(Collectors.toList());
+
+    assertThat(names).contains("aws_elb_request_count_sum").doesNotContain("aws_elb_latency_sum");
+    assertThat(
+            CollectorRegistry.defaultRegistry.getSampleValue(
+                "cloudwatch_exporter_dropped_series_total",
+                new String[] {"namespace", "metric_name", "limit"},
+                new String[] {"AWS/ELB", "Latency", "max_total_series"}))
+        .isEqualTo(1.0);
+  }
+
+  @Test
+  public void includeLinkedAccountsRequiresGetMetricData() {
+    assertThatThrownBy(
+            () ->
+                new CloudWatchCollector(
+                    "---\ninclude_linked_accounts: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                    cloudWatchClient,
+                    taggingClient))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void remoteWriteRequiresUrl() {
+    assertThatThrownBy(
+            () ->
+                new CloudWatchCollector(
+                    "---\nremote_write:\n  shards: 2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+                    cloudWatchClient,
+                    taggingClient))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
   @Test
   public void customHelpIsUsedForMetricFamily() {
     CloudWatchCollector collector =
@@ -2361,6 +2971,27 @@ public class CloudWatchCollectorTest {
     assertThat(average.help).isEqualTo("Custom metric help");
   }
 
+  @Test
+  public void helpListsNoDimensionsAsEmpty() {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n",
+            cloudWatchClient,
+            taggingClient);
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    Collector.MetricFamilySamples average =
+        metricFamily(collector.collect(), "aws_elb_request_count_average");
+
+    assertThat(average.help)
+        .startsWith("CloudWatch metric AWS/ELB RequestCount Dimensions: [] Statistic: Average");
+  }
+
   @Test
   public void resourceInfoIsEmittedOnceForDuplicateTagMappings() {
     CloudWatchCollector collector =
@@ -2406,6 +3037,99 @@ public class CloudWatchCollectorTest {
     assertThat(info.samples.get(0).labelValues).contains("i-1", "example");
   }
 
+  @Test
+  public void recordsRuleStageAndApiRequestDurations() {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nmetrics:\n- aws_namespace: AWS/Stages\n  aws_metric_name: StageMetric\n  aws_dimensions: [Name]\n",
+            cloudWatchClient,
+            taggingClient);
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(Dimension.builder().name("Name").value("a").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    collector.collect();
+
+    for (String stage :
+        Arrays.asList("tag_lookup", "dimension_listing", "data_fetch", "sample_building")) {
+      assertThat(
+              CollectorRegistry.defaultRegistry.getSampleValue(
+                  "cloudwatch_exporter_rule_stage_duration_seconds_count",
+                  new String[] {"namespace", "metric_name", "stage"},
+                  new String[] {"AWS/Stages", "StageMetric", stage}))
+          .isEqualTo(1.0);
+    }
+    for (String action : Arrays.asList("listMetrics", "getMetricStatistics")) {
+      assertThat(
+              CollectorRegistry.defaultRegistry.getSampleValue(
+                  "cloudwatch_exporter_api_request_duration_seconds_count",
+                  new String[] {"action", "namespace"},
+                  new String[] {action, "AWS/Stages"}))
+          .isEqualTo(1.0);
+    }
+  }
+
+  @Test
+  public void scrapesRulesConcurrentlyWithinMaxConcurrency() {
+    new CloudWatchCollector(
+            "---\nregion: reg\nmax_concurrency: 2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+    Mockito.when(cloudWatchClient.getMetricStatistics(any(GetMetricStatisticsRequest.class)))
+        .thenAnswer(
+            invocation ->
+                GetMetricStatisticsResponse.builder()
+                    .datapoints(
+                        Datapoint.builder()
+                            .timestamp(new Date().toInstant())
+                            .average(
+                                invocation
+                                        .getArgument(0, GetMetricStatisticsRequest.class)
+                                        .metricName()
+                                        .length()
+                                    * 1.0)
+                            .build())
+                    .build());
+
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_request_count_average",
+                new String[] {"job", "instance"},
+                new String[] {"aws_elb", ""}))
+        .isEqualTo(12.0);
+    assertThat(
+            registry.getSampleValue(
+                "aws_elb_latency_average",
+                new String[] {"job", "instance"},
+                new String[] {"aws_elb", ""}))
+        .isEqualTo(7.0);
+    assertThat(
+            registry.getSampleValue(
+                "aws_ec2_cpuutilization_average",
+                new String[] {"job", "instance"},
+                new String[] {"aws_ec2", ""}))
+        .isEqualTo(14.0);
+    assertThat(
+            registry.getSampleValue(
+                "cloudwatch_exporter_api_concurrency_limit",
+                new String[] {"account_id"},
+                new String[] {""}))
+        .isEqualTo(2.0);
+    assertThat(registry.getSampleValue("cloudwatch_exporter_scrape_error")).isEqualTo(0.0);
+  }
+
   private Collector.MetricFamilySamples metricFamily(
       List<Collector.MetricFamilySamples> samples, String name) {
     return samples.stream().filter(sample -> sample.name.equals(name)).findFirst().orElseThrow();
@@ -2,17 +2,26 @@ package io.prometheus.cloudwatch;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.DimensionFilter;
 import software.amazon.awssdk.services.cloudwatch.model.ListMetricsRequest;
 import software.amazon.awssdk.services.cloudwatch.model.ListMetricsResponse;
 
@@ -118,9 +127,237 @@ class DefaultDimensionSourceTest {
     verify(client).listMetrics(any(ListMetricsRequest.class));
   }
 
+  @Test
+  void listsLinkedAccountsWithTheirOwningAccount() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+                        .dimensions(dimension("LoadBalancerName", "lb-a"))
+                        .build(),
+                    software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+                        .dimensions(dimension("LoadBalancerName", "lb-a"))
+                        .build())
+                .owningAccounts("111111111111", "222222222222")
+                .build());
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName");
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("lb-a"));
+    rule.includeLinkedAccounts = true;
+
+    DimensionSource.DimensionData data = source(client).getDimensions(rule, List.of());
+
+    assertThat(data.getDimensions()).hasSize(2);
+    assertThat(data.getOwningAccounts()).containsExactly("111111111111", "222222222222");
+    verify(client)
+        .listMetrics(argThat((ListMetricsRequest request) -> request.includeLinkedAccounts()));
+  }
+
+  @Test
+  void keepsTheSameSeriesWhateverTheListingOrderWhenOverMaxSeries() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    metric("lb-d"), metric("lb-b"), metric("lb-e"), metric("lb-a"), metric("lb-c"))
+                .build());
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName");
+    rule.maxSeries = 2;
+
+    DimensionSource.DimensionData data = source(client).getDimensions(rule, List.of());
+
+    assertThat(data.getDimensions())
+        .containsExactly(
+            List.of(dimension("LoadBalancerName", "lb-a")),
+            List.of(dimension("LoadBalancerName", "lb-b")));
+    assertThat(data.getDroppedSeries()).isEqualTo(3);
+  }
+
+  @Test
+  void selectsThousandsOfValuesOutOfALargeListing() {
+    List<software.amazon.awssdk.services.cloudwatch.model.Metric> metrics = new ArrayList<>();
+    List<String> selected = new ArrayList<>();
+    for (int i = 0; i < 200_000; i++) {
+      metrics.add(metric("lb-" + i));
+      if (i % 40 == 0) {
+        selected.add("lb-" + i);
+      }
+    }
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(ListMetricsResponse.builder().metrics(metrics).build());
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName");
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", selected);
+
+    DimensionSource.DimensionData data = source(client).getDimensions(rule, List.of());
+
+    assertThat(data.getDimensions()).hasSize(5_000);
+    assertThat(data.getDimensions().get(1)).containsExactly(dimension("LoadBalancerName", "lb-40"));
+  }
+
+  @Test
+  void pushesSelectedValuesIntoListMetricsAndFansOutOverFewValues() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenAnswer(
+            invocation -> {
+              ListMetricsRequest request = invocation.getArgument(0);
+              return ListMetricsResponse.builder()
+                  .metrics(
+                      software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+                          .dimensions(
+                              dimension("LoadBalancerName", request.dimensions().get(0).value()),
+                              dimension("AvailabilityZone", "us-a"))
+                          .build())
+                  .build();
+            });
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName", "AvailabilityZone");
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("lb-a", "lb-b"));
+
+    DimensionSource.DimensionData data = source(client).getDimensions(rule, List.of());
+
+    assertThat(data.getDimensions())
+        .containsExactly(
+            List.of(dimension("LoadBalancerName", "lb-a"), dimension("AvailabilityZone", "us-a")),
+            List.of(dimension("LoadBalancerName", "lb-b"), dimension("AvailabilityZone", "us-a")));
+    verify(client, times(2)).listMetrics(any(ListMetricsRequest.class));
+    verify(client)
+        .listMetrics(
+            argThat(
+                (ListMetricsRequest request) ->
+                    request
+                        .dimensions()
+                        .equals(
+                            List.of(
+                                DimensionFilter.builder()
+                                    .name("LoadBalancerName")
+                                    .value("lb-b")
+                                    .build(),
+                                DimensionFilter.builder().name("AvailabilityZone").build()))));
+  }
+
+  @Test
+  void onlyPushesDownSingleValuesWhenFanningOutWouldTakeTooManyListings() {
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName", "AvailabilityZone");
+    List<String> loadBalancers = new ArrayList<>();
+    for (int i = 0; i <= DefaultDimensionSource.DEFAULT_LIST_METRICS_PARTITIONS; i++) {
+      loadBalancers.add("lb-" + i);
+    }
+    rule.awsDimensionSelect =
+        Map.of("LoadBalancerName", loadBalancers, "AvailabilityZone", List.of("us-a"));
+
+    assertThat(DefaultDimensionSource.dimensionFilterPartitions(rule, List.of()))
+        .containsExactly(
+            List.of(
+                DimensionFilter.builder().name("LoadBalancerName").build(),
+                DimensionFilter.builder().name("AvailabilityZone").value("us-a").build()));
+  }
+
+  @Test
+  void partitionsListingsByTaggedResourcesOnlyWhenAskedAndSkipsThemWhenNoneIsSelected() {
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName");
+    rule.awsTagSelect = new CloudWatchCollector.AWSTagSelect();
+    rule.awsTagSelect.resourceIdDimension = "LoadBalancerName";
+    rule.awsTagSelect.tagSelections = Map.of("Monitoring", List.of("enabled"));
+
+    assertThat(DefaultDimensionSource.dimensionFilterPartitions(rule, List.of("lb-a", "lb-b")))
+        .containsExactly(List.of(DimensionFilter.builder().name("LoadBalancerName").build()));
+
+    rule.awsTagSelect.listByResourceId = true;
+    assertThat(DefaultDimensionSource.dimensionFilterPartitions(rule, List.of("lb-a", "lb-b")))
+        .containsExactly(
+            List.of(DimensionFilter.builder().name("LoadBalancerName").value("lb-a").build()),
+            List.of(DimensionFilter.builder().name("LoadBalancerName").value("lb-b").build()));
+
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("lb-c"));
+    CloudWatchClient client = mock(CloudWatchClient.class);
+
+    DimensionSource.DimensionData data =
+        source(client).getDimensions(rule, List.of("lb-a", "lb-b"));
+
+    assertThat(data.getDimensions()).isEmpty();
+    verify(client, never()).listMetrics(any(ListMetricsRequest.class));
+  }
+
+  @Test
+  void listsPartitionsInParallelWhenTheRunnerAllowsIt() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    CountDownLatch bothListing = new CountDownLatch(2);
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    // Every partition gets the whole listing back, each series must still be listed once.
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenAnswer(
+            invocation -> {
+              threads.add(Thread.currentThread());
+              bothListing.countDown();
+              bothListing.await(5, TimeUnit.SECONDS);
+              return ListMetricsResponse.builder()
+                  .metrics(zonal("lb-a"), zonal("lb-b"), zonal("lb-c"))
+                  .build();
+            });
+    MetricRule rule = metricRule();
+    rule.awsDimensions = List.of("LoadBalancerName", "AvailabilityZone");
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("lb-a", "lb-b"));
+
+    DimensionSource.DimensionData data =
+        source(client, new AdaptiveConcurrencyLimiter(4, 4)).getDimensions(rule, List.of());
+
+    assertThat(data.getDimensions())
+        .containsExactly(
+            List.of(dimension("LoadBalancerName", "lb-a"), dimension("AvailabilityZone", "us-a")),
+            List.of(dimension("LoadBalancerName", "lb-b"), dimension("AvailabilityZone", "us-a")));
+    assertThat(bothListing.getCount()).isZero();
+    assertThat(threads).hasSize(2).doesNotContain(Thread.currentThread());
+
+    // With a single request allowed in flight partitions are listed on the scraping thread.
+    threads.clear();
+    when(client.listMetrics(any(ListMetricsRequest.class)))
+        .thenAnswer(
+            invocation -> {
+              threads.add(Thread.currentThread());
+              return ListMetricsResponse.builder().metrics(zonal("lb-a"), zonal("lb-b")).build();
+            });
+
+    assertThat(source(client).getDimensions(rule, List.of()).getDimensions()).hasSize(2);
+    assertThat(threads).containsExactly(Thread.currentThread());
+  }
+
+  private software.amazon.awssdk.services.cloudwatch.model.Metric zonal(String loadBalancer) {
+    return software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+        .dimensions(
+            dimension("LoadBalancerName", loadBalancer), dimension("AvailabilityZone", "us-a"))
+        .build();
+  }
+
+  private software.amazon.awssdk.services.cloudwatch.model.Metric metric(String loadBalancer) {
+    return software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+        .dimensions(dimension("LoadBalancerName", loadBalancer))
+        .build();
+  }
+
   private DefaultDimensionSource source(CloudWatchClient client) {
+    return source(client, new AdaptiveConcurrencyLimiter(1, 1));
+  }
+
+  private DefaultDimensionSource source(
+      CloudWatchClient client, AdaptiveConcurrencyLimiter concurrencyLimiter) {
     return new DefaultDimensionSource(
         client,
+        new ApiCallRunner(
+            Histogram.build()
+                .name("default_dimension_source_test_api_request_duration")
+                .help("duration")
+                .labelNames("action", "namespace")
+                .create(),
+            concurrencyLimiter),
         Counter.build()
             .name("default_dimension_source_test_cloudwatch_requests")
             .help("requests")
@@ -0,0 +1,69 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+class DimensionFingerprintTest {
+
+  @Test
+  void doesNotDependOnTheOrderOfDimensions() {
+    Dimension instance = dimension("InstanceId", "i-123");
+    Dimension group = dimension("AutoScalingGroupName", "asg");
+
+    assertThat(DimensionFingerprint.of(null, List.of(instance, group)))
+        .isEqualTo(DimensionFingerprint.of(null, List.of(group, instance)));
+  }
+
+  @Test
+  void tellsApartAccountsAndWhereNamesEndAndValuesBegin() {
+    List<Dimension> dimensions = List.of(dimension("InstanceId", "i-123"));
+
+    assertThat(DimensionFingerprint.of(null, dimensions))
+        .isNotEqualTo(DimensionFingerprint.of("111111111111", dimensions))
+        .isNotEqualTo(DimensionFingerprint.of(null, List.of(dimension("InstanceIdi", "-123"))))
+        .isNotEqualTo(DimensionFingerprint.of(null, List.of()));
+    assertThat(DimensionFingerprint.of("111111111111", dimensions))
+        .isNotEqualTo(DimensionFingerprint.of("222222222222", dimensions));
+  }
+
+  @Test
+  void hashesEveryCombinationOfTwoDimensionsDifferently() {
+    Set<DimensionFingerprint> fingerprints = new HashSet<>();
+    Set<String> hashes = new HashSet<>();
+    for (int cluster = 0; cluster < 30; cluster++) {
+      for (int service = 0; service < 30; service++) {
+        DimensionFingerprint fingerprint =
+            DimensionFingerprint.of(
+                null,
+                List.of(
+                    dimension("ClusterName", "cluster-" + cluster),
+                    dimension("ServiceName", "service-" + service)));
+        fingerprints.add(fingerprint);
+        hashes.add(fingerprint.hash());
+      }
+    }
+
+    assertThat(fingerprints).hasSize(900);
+    assertThat(hashes).hasSize(900);
+  }
+
+  @Test
+  void isNotEqualToADifferentSeriesWithTheSameHash() {
+    List<Dimension> first = List.of(dimension("ClusterName", "a"));
+    List<Dimension> second = List.of(dimension("ClusterName", "b"));
+
+    assertThat(DimensionFingerprint.withHash(null, first, 1, 2))
+        .isEqualTo(DimensionFingerprint.withHash(null, first, 1, 2))
+        .isNotEqualTo(DimensionFingerprint.withHash(null, second, 1, 2))
+        .isNotEqualTo(DimensionFingerprint.withHash("111111111111", first, 1, 2));
+  }
+
+  private static Dimension dimension(String name, String value) {
+    return Dimension.builder().name(name).value(value).build();
+  }
+}
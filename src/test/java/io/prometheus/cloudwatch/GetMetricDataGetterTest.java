@@ -3,20 +3,31 @@ package io.prometheus.cloudwatch;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
 import java.time.Instant;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 
 public class GetMetricDataGetterTest {
   @Test
@@ -45,15 +56,20 @@ public class GetMetricDataGetterTest {
   }
 
   @Test
-  public void metricLabelsEncodeStatAndSortedDimensions() {
-    String label =
-        GetMetricDataDataGetter.MetricLabels.labelFor(
-            "Average",
+  public void metricLabelsEncodeStatAndFingerprint() {
+    DimensionFingerprint fingerprint =
+        DimensionFingerprint.of(
+            null,
             List.of(
                 Dimension.builder().name("InstanceId").value("i-123").build(),
                 Dimension.builder().name("AutoScalingGroupName").value("asg").build()));
 
-    assertThat(label).isEqualTo("Average/AutoScalingGroupName=asg,InstanceId=i-123");
+    GetMetricDataDataGetter.StatAndDimensions decoded =
+        GetMetricDataDataGetter.MetricLabels.decode(
+            GetMetricDataDataGetter.MetricLabels.labelFor("Average", fingerprint));
+
+    assertThat(decoded.stat).isEqualTo("Average");
+    assertThat(decoded.dimetionsAsString).isEqualTo(fingerprint.hash());
   }
 
   @Test
@@ -71,17 +87,17 @@ public class GetMetricDataGetterTest {
             GetMetricDataResponse.builder()
                 .metricDataResults(
                     MetricDataResult.builder()
-                        .label("p99/InstanceId=i-123")
+                        .label(label("p99", null, "InstanceId", "i-123"))
                         .timestamps(List.of(Instant.parse("2024-01-01T00:00:00Z")))
                         .values(List.of(99.0))
                         .build(),
                     MetricDataResult.builder()
-                        .label("p95/InstanceId=i-123")
+                        .label(label("p95", null, "InstanceId", "i-123"))
                         .timestamps(List.of())
                         .values(List.of(95.0))
                         .build(),
                     MetricDataResult.builder()
-                        .label("p90/InstanceId=i-123")
+                        .label(label("p90", null, "InstanceId", "i-123"))
                         .timestamps(List.of(Instant.parse("2024-01-01T00:00:00Z")))
                         .values(List.of())
                         .build())
@@ -98,6 +114,13 @@ public class GetMetricDataGetterTest {
     DataGetter.MetricRuleData data =
         new GetMetricDataDataGetter(
                 client,
+                new ApiCallRunner(
+                    Histogram.build()
+                        .name("get_metric_data_api_request_duration")
+                        .help("duration")
+                        .labelNames("action", "namespace")
+                        .create(),
+                    new AdaptiveConcurrencyLimiter(1, 1)),
                 1_704_067_200_000L,
                 rule,
                 counter("get_metric_data_api_requests"),
@@ -110,6 +133,196 @@ public class GetMetricDataGetterTest {
     assertThat(data.statisticValues).isEmpty();
   }
 
+  @Test
+  public void queriesLinkedAccountsAndKeepsTheirResultsApart() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    MetricDataResult.builder()
+                        .label(label("Sum", "111111111111", "InstanceId", "i-123"))
+                        .timestamps(List.of(Instant.parse("2024-01-01T00:00:00Z")))
+                        .values(List.of(1.0))
+                        .build(),
+                    MetricDataResult.builder()
+                        .label(label("Sum", "222222222222", "InstanceId", "i-123"))
+                        .timestamps(List.of(Instant.parse("2024-01-01T00:00:00Z")))
+                        .values(List.of(2.0))
+                        .build())
+                .build());
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = "CPUUtilization";
+    rule.awsStatistics = List.of(Statistic.SUM);
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 120;
+    rule.delaySeconds = 30;
+    Dimension dimension = Dimension.builder().name("InstanceId").value("i-123").build();
+
+    DataGetter getter =
+        new GetMetricDataDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("get_metric_data_linked_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            1_704_067_200_000L,
+            rule,
+            counter("get_metric_data_linked_api_requests"),
+            counter("get_metric_data_linked_metrics_requested"),
+            List.of(List.of(dimension), List.of(dimension)),
+            List.of("111111111111", "222222222222"));
+
+    assertThat(getter.metricRuleDataFor(List.of(dimension), "111111111111").statisticValues)
+        .containsOnly(Map.entry(Statistic.SUM, 1.0));
+    assertThat(getter.metricRuleDataFor(List.of(dimension), "222222222222").statisticValues)
+        .containsOnly(Map.entry(Statistic.SUM, 2.0));
+    verify(client)
+        .getMetricData(
+            argThat(
+                (GetMetricDataRequest request) ->
+                    request.metricDataQueries().stream()
+                        .map(MetricDataQuery::accountId)
+                        .collect(Collectors.toList())
+                        .equals(List.of("111111111111", "222222222222"))));
+  }
+
+  @Test
+  public void incrementalFetchOnlyRequestsDatapointsAfterThePreviousOnes() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(GetMetricDataResponse.builder().build());
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = "CPUUtilization";
+    rule.awsStatistics = List.of(Statistic.SUM);
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 600;
+    rule.delaySeconds = 0;
+    Instant start = Instant.parse("2024-01-01T00:00:00Z");
+    List<Dimension> behind = List.of(Dimension.builder().name("InstanceId").value("i-1").build());
+    List<Dimension> upToDate = List.of(Dimension.builder().name("InstanceId").value("i-2").build());
+    List<Dimension> unseen = List.of(Dimension.builder().name("InstanceId").value("i-3").build());
+    DataGetter.MetricRuleData behindData =
+        new DataGetter.MetricRuleData(start.minusSeconds(120), "N/A");
+    DataGetter.MetricRuleData upToDateData =
+        new DataGetter.MetricRuleData(start.minusSeconds(60), "N/A");
+
+    GetMetricDataDataGetter getter =
+        new GetMetricDataDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("get_metric_data_incremental_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            start.toEpochMilli(),
+            rule,
+            counter("get_metric_data_incremental_api_requests"),
+            counter("get_metric_data_incremental_metrics_requested"),
+            new DimensionData(List.of(behind, upToDate, unseen)),
+            Map.of(
+                DimensionFingerprint.of(null, behind),
+                behindData,
+                DimensionFingerprint.of(null, upToDate),
+                upToDateData));
+
+    ArgumentCaptor<GetMetricDataRequest> requests =
+        ArgumentCaptor.forClass(GetMetricDataRequest.class);
+    verify(client, times(2)).getMetricData(requests.capture());
+    assertThat(requests.getAllValues())
+        .extracting(GetMetricDataRequest::startTime)
+        .containsExactly(start.minusSeconds(600), start.minusSeconds(60));
+    assertThat(requests.getAllValues())
+        .extracting(request -> request.metricDataQueries().size())
+        .containsExactly(1, 1);
+    assertThat(getter.metricRuleDataFor(behind)).isSameAs(behindData);
+    assertThat(getter.metricRuleDataFor(upToDate)).isSameAs(upToDateData);
+    assertThat(getter.metricRuleDataFor(unseen)).isNull();
+  }
+
+  @Test
+  public void metricMathOnlyReturnsTheExpressions() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    Instant timestamp = Instant.parse("2024-01-01T00:00:00Z");
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    MetricDataResult.builder()
+                        .label(label("error_ratio", null, "LoadBalancer", "lb-1"))
+                        .timestamps(timestamp)
+                        .values(2.5)
+                        .build())
+                .build());
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ApplicationELB";
+    rule.awsMetricName = "RequestCount";
+    rule.awsStatistics = List.of();
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 600;
+    rule.metricMathInputs = new LinkedHashMap<>();
+    rule.metricMathInputs.put("requests", new MetricRule.MathInput("RequestCount", "Sum"));
+    rule.metricMathInputs.put(
+        "errors", new MetricRule.MathInput("HTTPCode_Target_5XX_Count", "Sum"));
+    rule.metricMath = Map.of("error_ratio", "100 * FILL(errors, 0) / requests");
+    List<Dimension> dimensions =
+        List.of(Dimension.builder().name("LoadBalancer").value("lb-1").build());
+
+    GetMetricDataDataGetter getter =
+        new GetMetricDataDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("get_metric_data_math_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            timestamp.toEpochMilli(),
+            rule,
+            counter("get_metric_data_math_api_requests"),
+            counter("get_metric_data_math_metrics_requested"),
+            List.of(dimensions));
+
+    ArgumentCaptor<GetMetricDataRequest> request =
+        ArgumentCaptor.forClass(GetMetricDataRequest.class);
+    verify(client).getMetricData(request.capture());
+    List<MetricDataQuery> queries = request.getValue().metricDataQueries();
+    assertThat(queries)
+        .extracting(MetricDataQuery::id)
+        .containsExactly("m0_requests", "m0_errors", "e0_0");
+    assertThat(queries.get(1).metricStat().metric().metricName())
+        .isEqualTo("HTTPCode_Target_5XX_Count");
+    assertThat(queries.get(1).returnData()).isFalse();
+    assertThat(queries.get(2).expression()).isEqualTo("100 * FILL(m0_errors, 0) / m0_requests");
+    assertThat(getter.metricRuleDataFor(dimensions).extendedValues)
+        .containsExactly(Map.entry("error_ratio", 2.5));
+  }
+
+  @Test
+  public void qualifyIdsLeavesFunctionsAndStringsAlone() {
+    assertThat(
+            GetMetricDataDataGetter.qualifyIds(
+                "IF(errors > 0, errors / requests, 0) + SEARCH(\"errors\", 'Sum')",
+                Set.of("errors", "requests"),
+                "m1_"))
+        .isEqualTo("IF(m1_errors > 0, m1_errors / m1_requests, 0) + SEARCH(\"errors\", 'Sum')");
+  }
+
+  private static String label(String stat, String owningAccount, String name, String value) {
+    return GetMetricDataDataGetter.MetricLabels.labelFor(
+        stat,
+        DimensionFingerprint.of(
+            owningAccount, List.of(Dimension.builder().name(name).value(value).build())));
+  }
+
   private Counter counter(String name) {
     return Counter.build().name(name).help(name).labelNames("a", "b").create();
   }
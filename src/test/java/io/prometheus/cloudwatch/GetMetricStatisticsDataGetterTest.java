@@ -6,6 +6,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -96,7 +97,18 @@ class GetMetricStatisticsDataGetterTest {
     rule.rangeSeconds = 120;
     rule.delaySeconds = 30;
     return new GetMetricStatisticsDataGetter(
-        client, 1_704_156_600_000L, rule, counter("api_requests"), counter("metrics_requested"));
+        client,
+        new ApiCallRunner(
+            Histogram.build()
+                .name("get_metric_statistics_test_api_request_duration")
+                .help("duration")
+                .labelNames("action", "namespace")
+                .create(),
+            new AdaptiveConcurrencyLimiter(1, 1)),
+        1_704_156_600_000L,
+        rule,
+        counter("api_requests"),
+        counter("metrics_requested"));
   }
 
   private Dimension dimension() {
@@ -5,6 +5,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 
@@ -20,6 +21,18 @@ public class MetricRuleTest {
     assertThat(left.hashCode()).isEqualTo(right.hashCode());
   }
 
+  @Test
+  public void rulesWithEqualTagSelectsAreEqual() {
+    MetricRule left = populatedRule();
+    MetricRule right = populatedRule();
+
+    assertThat(left).isEqualTo(right);
+    assertThat(left.hashCode()).isEqualTo(right.hashCode());
+
+    right.awsTagSelect.arnResourceIdRegexp = Pattern.compile("other/(.*)$");
+    assertThat(left).isNotEqualTo(right);
+  }
+
   @Test
   public void equalsHandlesIdentityNullAndDifferentTypes() {
     MetricRule rule = populatedRule();
@@ -58,6 +71,7 @@ public class MetricRuleTest {
     assertThat(populatedRule()).isNotEqualTo(changedRule(rule -> rule.help = "other help"));
     assertThat(populatedRule())
         .isNotEqualTo(changedRule(rule -> rule.listMetricsCacheTtl = Duration.ofMinutes(2)));
+    assertThat(populatedRule()).isNotEqualTo(changedRule(rule -> rule.listMetricsPartitions = 1));
   }
 
   @Test
@@ -105,6 +119,10 @@ public class MetricRuleTest {
     rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("a"));
     rule.awsDimensionSelectRegex = Map.of("LoadBalancerName", List.of("a.*"));
     rule.awsTagSelect = new CloudWatchCollector.AWSTagSelect();
+    rule.awsTagSelect.resourceTypeSelection = "elasticloadbalancing:loadbalancer";
+    rule.awsTagSelect.resourceIdDimension = "LoadBalancerName";
+    rule.awsTagSelect.tagSelections = Map.of("Monitoring", List.of("enabled"));
+    rule.awsTagSelect.arnResourceIdRegexp = Pattern.compile("loadbalancer/(.*)$");
     rule.help = "help text";
     rule.cloudwatchTimestamp = true;
     rule.useGetMetricData = true;
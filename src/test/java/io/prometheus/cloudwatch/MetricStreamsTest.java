@@ -0,0 +1,217 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.cloudwatch.MetricStreamStore.StreamedMetric;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.yaml.snakeyaml.Yaml;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+
+class MetricStreamsTest {
+
+  @Test
+  void decodesRecordedJsonDelivery() throws IOException {
+    List<StreamedMetric> metrics =
+        MetricStreamDecoder.decode(
+            MetricStreamDecoder.Format.JSON, firstRecord("json-delivery.json"));
+
+    assertThat(metrics).hasSize(2);
+    StreamedMetric metric = metrics.get(0);
+    assertThat(metric.namespace).isEqualTo("AWS/EC2");
+    assertThat(metric.metricName).isEqualTo("CPUUtilization");
+    assertThat(metric.accountId).isEqualTo("123456789012");
+    assertThat(metric.region).isEqualTo("us-east-1");
+    assertThat(metric.dimensions).containsExactly(Map.entry("InstanceId", "i-123"));
+    assertThat(metric.timestampMillis).isEqualTo(1704067200000L);
+    assertThat(metric.statisticValues)
+        .containsOnly(
+            Map.entry(Statistic.SUM, 4.0),
+            Map.entry(Statistic.SAMPLE_COUNT, 2.0),
+            Map.entry(Statistic.MINIMUM, 1.0),
+            Map.entry(Statistic.MAXIMUM, 3.0),
+            Map.entry(Statistic.AVERAGE, 2.0));
+    assertThat(metric.extendedValues).containsOnly(Map.entry("p99", 2.9));
+  }
+
+  @Test
+  void decodesRecordedOpenTelemetryDelivery() throws IOException {
+    List<StreamedMetric> metrics =
+        MetricStreamDecoder.decode(
+            MetricStreamDecoder.Format.OPENTELEMETRY_0_7,
+            firstRecord("opentelemetry07-delivery.json"));
+
+    assertThat(metrics).hasSize(1);
+    StreamedMetric metric = metrics.get(0);
+    assertThat(metric.namespace).isEqualTo("AWS/EC2");
+    assertThat(metric.metricName).isEqualTo("CPUUtilization");
+    assertThat(metric.accountId).isEqualTo("123456789012");
+    assertThat(metric.region).isEqualTo("us-east-1");
+    assertThat(metric.dimensions).containsExactly(Map.entry("InstanceId", "i-123"));
+    assertThat(metric.timestampMillis).isEqualTo(1704067200000L);
+    assertThat(metric.statisticValues)
+        .containsOnly(
+            Map.entry(Statistic.SUM, 4.0),
+            Map.entry(Statistic.SAMPLE_COUNT, 2.0),
+            Map.entry(Statistic.MINIMUM, 1.0),
+            Map.entry(Statistic.MAXIMUM, 3.0),
+            Map.entry(Statistic.AVERAGE, 2.0));
+    assertThat(metric.extendedValues).containsOnly(Map.entry("p99", 2.9));
+  }
+
+  @Test
+  void servletRecordsDeliveriesThatTheCollectorExports() throws Exception {
+    CloudWatchCollector collector =
+        collector("---\nset_timestamp: false\nmetric_streams:\n  series_ttl_seconds: 3153600000\n");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    StringWriter responseBody = responseBody(response);
+
+    new MetricStreamsServlet(collector)
+        .doPost(request("json-delivery.json", null, "ed4acda5"), response);
+
+    verify(response).setStatus(HttpServletResponse.SC_OK);
+    assertThat(responseBody.toString()).startsWith("{\"requestId\":\"ed4acda5\",\"timestamp\":");
+    MetricFamilySamples average =
+        collector.collect().stream()
+            .filter(mfs -> mfs.name.equals("aws_ec2_cpuutilization_average"))
+            .findFirst()
+            .orElseThrow();
+    assertThat(average.samples).hasSize(2);
+    MetricFamilySamples.Sample sample = average.samples.get(0);
+    assertThat(sample.labelNames)
+        .containsExactly("job", "instance", "account_id", "region", "instance_id");
+    assertThat(sample.labelValues.get(0)).isEqualTo("aws_ec2");
+    assertThat(sample.timestampMs).isNull();
+  }
+
+  @Test
+  void servletRejectsWrongAccessKey() throws Exception {
+    CloudWatchCollector collector = collector("---\nmetric_streams:\n  access_key: secret\n");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    StringWriter responseBody = responseBody(response);
+
+    new MetricStreamsServlet(collector)
+        .doPost(request("json-delivery.json", "wrong", "request"), response);
+
+    verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+    assertThat(responseBody.toString()).contains("\"errorMessage\":\"Invalid access key\"");
+    assertThat(collector.metricStreamStore.size()).isZero();
+  }
+
+  @Test
+  void storeKeepsLatestValueAndDropsExpiredSeries() {
+    MetricStreamStore store = new MetricStreamStore();
+    store.record(metric("i-1", 2_000, 2.0), 0);
+    store.record(metric("i-1", 1_000, 1.0), 0);
+    store.record(metric("i-2", 1_000, 5.0), 0);
+
+    List<MetricFamilySamples> mfs = store.collect(62_000, Duration.ofSeconds(60), true);
+
+    assertThat(mfs).hasSize(1);
+    assertThat(mfs.get(0).samples).hasSize(1);
+    assertThat(mfs.get(0).samples.get(0).value).isEqualTo(2.0);
+    assertThat(mfs.get(0).samples.get(0).timestampMs).isEqualTo(2_000);
+    assertThat(store.size()).isEqualTo(1);
+  }
+
+  @Test
+  void storeDropsNewSeriesBeyondMaxSeries() {
+    MetricStreamStore store = new MetricStreamStore();
+    assertThat(store.record(metric("i-1", 1_000, 1.0), 1)).isTrue();
+    assertThat(store.record(metric("i-2", 1_000, 5.0), 1)).isFalse();
+    // Series already held keep being updated.
+    assertThat(store.record(metric("i-1", 2_000, 2.0), 1)).isTrue();
+    assertThat(store.size()).isEqualTo(1);
+
+    store.collect(70_000, Duration.ofSeconds(60), true);
+    assertThat(store.record(metric("i-2", 70_000, 5.0), 1)).isTrue();
+  }
+
+  private StreamedMetric metric(String instanceId, long timestamp, double sum) {
+    return new StreamedMetric(
+        "AWS/EC2",
+        "CPUUtilization",
+        "123456789012",
+        "us-east-1",
+        Map.of("InstanceId", instanceId),
+        timestamp,
+        "Percent",
+        Map.of(Statistic.SUM, sum),
+        Map.of());
+  }
+
+  private CloudWatchCollector collector(String config) {
+    return new CloudWatchCollector(
+        config, mock(CloudWatchClient.class), mock(ResourceGroupsTaggingApiClient.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  private byte[] firstRecord(String delivery) throws IOException {
+    try (InputStream in = delivery(delivery)) {
+      Map<String, Object> envelope = new Yaml().load(in);
+      List<Map<String, String>> records = (List<Map<String, String>>) envelope.get("records");
+      return Base64.getDecoder().decode(records.get(0).get("data"));
+    }
+  }
+
+  private InputStream delivery(String name) {
+    return getClass().getResourceAsStream("/metric-streams/" + name);
+  }
+
+  private HttpServletRequest request(String delivery, String accessKey, String requestId)
+      throws IOException {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeader("X-Amz-Firehose-Access-Key")).thenReturn(accessKey);
+    when(request.getHeader("X-Amz-Firehose-Request-Id")).thenReturn(requestId);
+    ByteArrayInputStream body;
+    try (InputStream in = delivery(delivery)) {
+      body = new ByteArrayInputStream(in.readAllBytes());
+    }
+    when(request.getInputStream())
+        .thenReturn(
+            new ServletInputStream() {
+              @Override
+              public boolean isFinished() {
+                return body.available() == 0;
+              }
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setReadListener(ReadListener readListener) {}
+
+              @Override
+              public int read() {
+                return body.read();
+              }
+            });
+    return request;
+  }
+
+  private StringWriter responseBody(HttpServletResponse response) throws IOException {
+    StringWriter responseBody = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(responseBody));
+    return responseBody;
+  }
+}
@@ -0,0 +1,149 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+class MetricsInsightsDataGetterTest {
+
+  @Test
+  void parsesTheAggregateAndGroupByKeys() {
+    String query =
+        "SELECT MAX(CPUUtilization) FROM SCHEMA(\"AWS/EC2\", InstanceId, InstanceType)"
+            + " GROUP BY InstanceId, \"InstanceType\" ORDER BY MAX() DESC LIMIT 10";
+
+    assertThat(MetricsInsightsDataGetter.statisticOf(query)).isEqualTo(Statistic.MAXIMUM);
+    assertThat(MetricsInsightsDataGetter.groupByOf(query))
+        .containsExactly("InstanceId", "InstanceType");
+    assertThat(MetricsInsightsDataGetter.groupByOf("SELECT AVG(CPUUtilization) FROM \"AWS/EC2\""))
+        .isEmpty();
+    assertThat(MetricsInsightsDataGetter.groupValues("i-1 m5.large", 2))
+        .containsExactly("i-1", "m5.large");
+    assertThat(MetricsInsightsDataGetter.groupValues("i-1", 2)).isNull();
+    assertThatThrownBy(() -> MetricsInsightsDataGetter.statisticOf("SELECT CPUUtilization"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void turnsGroupedResultsIntoSeries() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    Instant newest = Instant.parse("2024-01-01T00:01:00Z");
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(result("i-1", newest, 40.0), result("i-2", newest, 30.0))
+                .nextToken("page2")
+                .build())
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(result("i-1", newest.minusSeconds(60), 99.0))
+                .build());
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = "CPUUtilization";
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 600;
+    rule.delaySeconds = 600;
+    rule.metricsInsightsQuery =
+        "SELECT AVG(CPUUtilization) FROM SCHEMA(\"AWS/EC2\", InstanceId) GROUP BY InstanceId";
+
+    MetricsInsightsDataGetter getter =
+        new MetricsInsightsDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("insights_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            newest.plusSeconds(600).toEpochMilli(),
+            rule,
+            counter("insights_api_requests"),
+            counter("insights_metrics_requested"));
+
+    ArgumentCaptor<GetMetricDataRequest> requests =
+        ArgumentCaptor.forClass(GetMetricDataRequest.class);
+    verify(client, times(2)).getMetricData(requests.capture());
+    MetricDataQuery query = requests.getAllValues().get(0).metricDataQueries().get(0);
+    assertThat(query.expression()).isEqualTo(rule.metricsInsightsQuery);
+    assertThat(query.period()).isEqualTo(60);
+
+    List<Dimension> first = List.of(Dimension.builder().name("InstanceId").value("i-1").build());
+    List<Dimension> second = List.of(Dimension.builder().name("InstanceId").value("i-2").build());
+    assertThat(getter.getDimensionData().getDimensions()).containsExactlyInAnyOrder(first, second);
+    assertThat(getter.metricRuleDataFor(first).statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 40.0));
+    assertThat(getter.metricRuleDataFor(first).timestamp).isEqualTo(newest);
+  }
+
+  @Test
+  void keepsMaxSeriesAndStopsPagingOnceMoreWereFound() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    Instant newest = Instant.parse("2024-01-01T00:01:00Z");
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(result("i-2", newest, 30.0), result("i-1", newest, 40.0))
+                .nextToken("page2")
+                .build());
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = "CPUUtilization";
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 600;
+    rule.delaySeconds = 600;
+    rule.maxSeries = 1;
+    rule.metricsInsightsQuery =
+        "SELECT AVG(CPUUtilization) FROM SCHEMA(\"AWS/EC2\", InstanceId) GROUP BY InstanceId";
+
+    MetricsInsightsDataGetter getter =
+        new MetricsInsightsDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("insights_max_series_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            newest.plusSeconds(600).toEpochMilli(),
+            rule,
+            counter("insights_max_series_api_requests"),
+            counter("insights_max_series_metrics_requested"));
+
+    verify(client, times(1)).getMetricData(any(GetMetricDataRequest.class));
+    List<Dimension> kept = List.of(Dimension.builder().name("InstanceId").value("i-1").build());
+    assertThat(getter.getDimensionData().getDimensions()).containsExactly(kept);
+    assertThat(getter.getDimensionData().getDroppedSeries()).isEqualTo(1);
+    List<Dimension> dropped = List.of(Dimension.builder().name("InstanceId").value("i-2").build());
+    assertThat(getter.metricRuleDataFor(dropped)).isNull();
+  }
+
+  private static MetricDataResult result(String label, Instant timestamp, double value) {
+    return MetricDataResult.builder().label(label).timestamps(timestamp).values(value).build();
+  }
+
+  private static Counter counter(String name) {
+    return Counter.build().name(name).help(name).labelNames("a", "b").create();
+  }
+}
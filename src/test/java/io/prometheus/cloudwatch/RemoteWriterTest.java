@@ -0,0 +1,242 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.cloudwatch.CloudWatchCollector.RemoteWriteConfig;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RemoteWriterTest {
+
+  private HttpServer receiver;
+  private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+  private final AtomicInteger failuresLeft = new AtomicInteger();
+
+  @BeforeEach
+  void startReceiver() throws Exception {
+    receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    receiver.createContext(
+        "/api/v1/write",
+        exchange -> {
+          byte[] body = exchange.getRequestBody().readAllBytes();
+          if (failuresLeft.getAndDecrement() > 0) {
+            exchange.sendResponseHeaders(503, -1);
+          } else if (new String(Snappy.uncompress(body), StandardCharsets.UTF_8)
+              .contains("refused")) {
+            exchange.sendResponseHeaders(400, -1);
+          } else {
+            assertThat(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                .isEqualTo("snappy");
+            received.add(Snappy.uncompress(body));
+            exchange.sendResponseHeaders(204, -1);
+          }
+          exchange.close();
+        });
+    receiver.start();
+  }
+
+  @AfterEach
+  void stopReceiver() {
+    receiver.stop(0);
+  }
+
+  @Test
+  void snappyRoundTrips() {
+    Random random = new Random(42);
+    byte[] noise = new byte[100_000];
+    random.nextBytes(noise);
+    byte[] repetitive =
+        "aws_elb_request_count_sum{job=\"aws_elb\",load_balancer_name=\"lb\"} 1\n"
+            .repeat(3000)
+            .getBytes(StandardCharsets.UTF_8);
+
+    for (byte[] input : List.of(new byte[0], noise, repetitive)) {
+      assertThat(Snappy.uncompress(Snappy.compress(input))).isEqualTo(input);
+    }
+    assertThat(Snappy.compress(repetitive).length).isLessThan(repetitive.length / 10);
+  }
+
+  @Test
+  void pushesSamplesAndRetriesRecoverableErrors() throws Exception {
+    failuresLeft.set(1);
+    List<MetricFamilySamples> families =
+        List.of(
+            new MetricFamilySamples(
+                "aws_elb_request_count_sum",
+                Type.GAUGE,
+                "help",
+                List.of(
+                    new MetricFamilySamples.Sample(
+                        "aws_elb_request_count_sum",
+                        Arrays.asList("job", "instance", "load_balancer_name"),
+                        Arrays.asList("aws_elb", "", "lb"),
+                        12.5,
+                        1704067200000L))));
+
+    try (RemoteWriter writer = new RemoteWriter(config(1, 10), families::forEach).start()) {
+      byte[] request = received.poll(10, TimeUnit.SECONDS);
+
+      assertThat(request).isNotNull();
+      assertThat(decodeSeries(request))
+          .containsExactly(
+              "__name__=aws_elb_request_count_sum,job=aws_elb,load_balancer_name=lb"
+                  + " 12.5@1704067200000");
+    }
+  }
+
+  @Test
+  void queuesSamplesWhileTheScrapeIsStillRunning() throws Exception {
+    MetricFamilySamples family =
+        new MetricFamilySamples(
+            "m",
+            Type.GAUGE,
+            "help",
+            List.of(new MetricFamilySamples.Sample("m", List.of(), List.of(), 1.0, 1000L)));
+
+    try (RemoteWriter writer =
+        new RemoteWriter(
+                config(1, 10),
+                sink -> {
+                  sink.accept(family);
+                  throw new IllegalStateException("scrape failed after the first rule");
+                })
+            .start()) {
+      byte[] request = received.poll(10, TimeUnit.SECONDS);
+
+      assertThat(request).isNotNull();
+      assertThat(decodeSeries(request)).containsExactly("__name__=m 1.0@1000");
+    }
+  }
+
+  @Test
+  void queuesADatapointExportedByTwoPushesOnce() {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    samples.add(new MetricFamilySamples.Sample("m", List.of(), List.of(), 1.0, 1000L));
+    List<MetricFamilySamples> families =
+        List.of(new MetricFamilySamples("m", Type.GAUGE, "help", samples));
+
+    try (RemoteWriter writer = new RemoteWriter(config(1, 10), families::forEach)) {
+      writer.push();
+      // CloudWatch revised the value of the same datapoint.
+      samples.set(0, new MetricFamilySamples.Sample("m", List.of(), List.of(), 1.5, 1000L));
+      writer.push();
+      assertThat(pendingSamples()).isEqualTo(1.0);
+
+      samples.set(0, new MetricFamilySamples.Sample("m", List.of(), List.of(), 2.0, 2000L));
+      writer.push();
+      assertThat(pendingSamples()).isEqualTo(2.0);
+    }
+  }
+
+  @Test
+  void sendsTheSamplesOfARejectedBatchThatTheEndpointAccepts() throws Exception {
+    List<MetricFamilySamples> families =
+        List.of(
+            new MetricFamilySamples(
+                "m",
+                Type.GAUGE,
+                "help",
+                List.of(
+                    new MetricFamilySamples.Sample(
+                        "m", List.of("s"), List.of("refused"), 3.0, 1000L),
+                    new MetricFamilySamples.Sample("m", List.of("s"), List.of("ok"), 1.0, 1000L),
+                    new MetricFamilySamples.Sample("m", List.of("s"), List.of("ok"), 2.0, 2000L))));
+
+    try (RemoteWriter writer = new RemoteWriter(config(1, 10), families::forEach).start()) {
+      byte[] request = received.poll(10, TimeUnit.SECONDS);
+
+      assertThat(request).isNotNull();
+      // Both samples of the series travel in a single TimeSeries.
+      assertThat(decodeSeries(request)).containsExactly("__name__=m,s=ok 1.0@1000 2.0@2000");
+    }
+  }
+
+  @Test
+  void dropsSamplesThatDoNotFitInTheQueue() {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      samples.add(
+          new MetricFamilySamples.Sample("m", List.of("i"), List.of(Integer.toString(i)), i));
+    }
+    List<MetricFamilySamples> families =
+        List.of(new MetricFamilySamples("m", Type.GAUGE, "help", samples));
+    double before = droppedQueueFull();
+
+    try (RemoteWriter writer = new RemoteWriter(config(1, 2), families::forEach)) {
+      writer.push();
+    }
+
+    assertThat(droppedQueueFull() - before).isEqualTo(3.0);
+  }
+
+  private RemoteWriteConfig config(int shards, int capacity) {
+    return new RemoteWriteConfig(
+        URI.create("http://127.0.0.1:" + receiver.getAddress().getPort() + "/api/v1/write"),
+        Duration.ofHours(1),
+        shards,
+        100,
+        capacity,
+        3,
+        Duration.ofSeconds(5));
+  }
+
+  private static double pendingSamples() {
+    return CollectorRegistry.defaultRegistry.getSampleValue(
+        "cloudwatch_exporter_remote_write_pending_samples");
+  }
+
+  private static double droppedQueueFull() {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_exporter_remote_write_dropped_samples_total",
+            new String[] {"reason"},
+            new String[] {"queue_full"});
+    return value == null ? 0 : value;
+  }
+
+  /** Decodes a WriteRequest into one "labels value@timestamp" string per series. */
+  private static List<String> decodeSeries(byte[] request) {
+    List<String> result = new ArrayList<>();
+    ProtobufReader writeRequest = new ProtobufReader(request, 0, request.length);
+    while (writeRequest.hasRemaining()) {
+      assertThat(writeRequest.readTag()).isEqualTo(1 << 3 | 2);
+      ProtobufReader series = writeRequest.readMessage();
+      List<String> labels = new ArrayList<>();
+      StringBuilder samples = new StringBuilder();
+      while (series.hasRemaining()) {
+        int tag = series.readTag();
+        ProtobufReader message = series.readMessage();
+        if (tag >>> 3 == 1) {
+          message.readTag();
+          String name = message.readString();
+          message.readTag();
+          labels.add(name + "=" + message.readString());
+        } else {
+          message.readTag();
+          samples.append(' ').append(message.readDouble());
+          message.readTag();
+          samples.append('@').append(message.readVarint());
+        }
+      }
+      result.add(String.join(",", labels) + samples);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class RequestRateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void rejectsNonPositiveRates() {
+    assertThatThrownBy(() -> new RequestRateLimiter(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void allowsOneSecondBurstThenQueuesCallers() {
+    AtomicLong clock = new AtomicLong();
+    RequestRateLimiter limiter = new RequestRateLimiter(2, clock::get);
+
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isZero();
+    // Callers queue up behind each other for the next second.
+    assertThat(limiter.reserve()).isEqualTo(SECOND);
+    assertThat(limiter.reserve()).isEqualTo(SECOND);
+    assertThat(limiter.reserve()).isEqualTo(2 * SECOND);
+  }
+
+  @Test
+  void neverGrantsMoreThanTheBudgetWithinAnySecond() {
+    AtomicLong clock = new AtomicLong();
+    RequestRateLimiter limiter = new RequestRateLimiter(3, clock::get);
+    List<Long> granted = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      // Callers arrive at irregular times, some of them after a quiet period.
+      clock.addAndGet(i % 7 == 0 ? 2 * SECOND : SECOND / 10);
+      granted.add(clock.get() + limiter.reserve());
+    }
+
+    for (long start : granted) {
+      assertThat(granted.stream().filter(t -> t >= start && t < start + SECOND).count())
+          .isLessThanOrEqualTo(3);
+    }
+  }
+
+  @Test
+  void refillsWhileIdleUpToOneSecondOfRequests() {
+    AtomicLong clock = new AtomicLong();
+    RequestRateLimiter limiter = new RequestRateLimiter(2, clock::get);
+    limiter.reserve();
+    limiter.reserve();
+
+    clock.addAndGet(10 * SECOND);
+
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isEqualTo(SECOND);
+  }
+
+  @Test
+  void spacesOutBudgetsBelowOneRequestPerSecond() {
+    AtomicLong clock = new AtomicLong();
+    RequestRateLimiter limiter = new RequestRateLimiter(0.5, clock::get);
+
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isEqualTo(2 * SECOND);
+  }
+}
@@ -50,6 +50,15 @@ public class RequestsMatchers {
       return this;
     }
 
+    public ListMetricsRequestMatcher DimensionValue(String name, String value) {
+      for (int i = 0; i < dimensions.size(); i++) {
+        if (dimensions.get(i).name().equals(name)) {
+          dimensions.set(i, DimensionFilter.builder().name(name).value(value).build());
+        }
+      }
+      return this;
+    }
+
     public ListMetricsRequestMatcher RecentlyActive(String recentlyActive) {
       this.recentlyActive = recentlyActive;
       return this;
@@ -70,9 +79,18 @@ public class RequestsMatchers {
       if (nextToken != null && !nextToken.equals(request.nextToken())) {
         return false;
       }
-      if (!dimensions.equals(request.dimensions())) {
+      // Filters without a value match whatever value the exporter pushed down.
+      if (dimensions.size() != request.dimensions().size()) {
         return false;
       }
+      for (int i = 0; i < dimensions.size(); i++) {
+        DimensionFilter expected = dimensions.get(i);
+        DimensionFilter actual = request.dimensions().get(i);
+        if (!expected.name().equals(actual.name())
+            || (expected.value() != null && !expected.value().equals(actual.value()))) {
+          return false;
+        }
+      }
       if (recentlyActive != null && !recentlyActive.equals(request.recentlyActive())) {
         return false;
       }
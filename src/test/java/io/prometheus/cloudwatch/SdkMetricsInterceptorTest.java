@@ -0,0 +1,168 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.prometheus.client.CollectorRegistry;
+import java.net.URI;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.http.SdkHttpRequest;
+import software.amazon.awssdk.http.SdkHttpResponse;
+
+class SdkMetricsInterceptorTest {
+
+  private static final String[] LABELS = {"service", "operation"};
+
+  @Test
+  void countsAttemptsRetriesThrottlesAndBytes() {
+    SdkMetricsInterceptor interceptor = new SdkMetricsInterceptor();
+    ExecutionAttributes attributes = attributes("RetriedOperation");
+    double attemptsBefore = value("cloudwatch_exporter_sdk_attempts_total", "RetriedOperation");
+
+    interceptor.beforeExecution(mock(Context.BeforeExecution.class), attributes);
+    interceptor.beforeTransmission(beforeTransmission(), attributes);
+    interceptor.afterTransmission(
+        afterTransmission(SdkHttpResponse.builder().statusCode(429).build()), attributes);
+    interceptor.beforeTransmission(beforeTransmission(), attributes);
+    interceptor.afterTransmission(
+        afterTransmission(
+            SdkHttpResponse.builder().statusCode(200).putHeader("Content-Length", "100").build()),
+        attributes);
+    interceptor.afterExecution(mock(Context.AfterExecution.class), attributes);
+
+    assertThat(value("cloudwatch_exporter_sdk_attempts_total", "RetriedOperation"))
+        .isEqualTo(attemptsBefore + 2);
+    assertThat(value("cloudwatch_exporter_sdk_retries_total", "RetriedOperation")).isEqualTo(1);
+    assertThat(value("cloudwatch_exporter_sdk_throttled_attempts_total", "RetriedOperation"))
+        .isEqualTo(1);
+    assertThat(value("cloudwatch_exporter_sdk_request_bytes_total", "RetriedOperation"))
+        .isEqualTo(84);
+    assertThat(value("cloudwatch_exporter_sdk_response_bytes_total", "RetriedOperation"))
+        .isEqualTo(100);
+    assertThat(value("cloudwatch_exporter_sdk_attempt_duration_seconds_count", "RetriedOperation"))
+        .isEqualTo(2);
+    assertThat(value("cloudwatch_exporter_sdk_api_call_duration_seconds_count", "RetriedOperation"))
+        .isEqualTo(1);
+    assertThat(
+            CollectorRegistry.defaultRegistry.getSampleValue(
+                "cloudwatch_exporter_sdk_http_responses_total",
+                new String[] {"service", "operation", "code"},
+                new String[] {"CloudWatch", "RetriedOperation", "429"}))
+        .isEqualTo(1);
+  }
+
+  @Test
+  void countsFailedCallsByErrorCode() {
+    SdkMetricsInterceptor interceptor = new SdkMetricsInterceptor();
+    ExecutionAttributes attributes = attributes("FailedOperation");
+    Context.FailedExecution failure = mock(Context.FailedExecution.class);
+    when(failure.exception())
+        .thenReturn(
+            AwsServiceException.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").build())
+                .build());
+
+    interceptor.beforeExecution(mock(Context.BeforeExecution.class), attributes);
+    interceptor.onExecutionFailure(failure, attributes);
+
+    assertThat(
+            CollectorRegistry.defaultRegistry.getSampleValue(
+                "cloudwatch_exporter_sdk_api_call_errors_total",
+                new String[] {"service", "operation", "error_code"},
+                new String[] {"CloudWatch", "FailedOperation", "Throttling"}))
+        .isEqualTo(1);
+  }
+
+  @Test
+  void backsOffOnlyForThrottledAttemptsOfTheLimitedCall() {
+    SdkMetricsInterceptor interceptor = new SdkMetricsInterceptor();
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8);
+    // A call that saturates the limiter raises the limit off its minimum, so a back-off shows.
+    limiter.call("getMetricData", () -> null);
+    assertThat(limiter.getLimit()).isEqualTo(2);
+    ExecutionAttributes credentialRefresh = new ExecutionAttributes();
+    credentialRefresh.putAttribute(SdkExecutionAttribute.SERVICE_NAME, "Sts");
+    credentialRefresh.putAttribute(SdkExecutionAttribute.OPERATION_NAME, "AssumeRole");
+    ExecutionAttributes getMetricData = attributes("GetMetricData");
+    SdkHttpResponse throttled = SdkHttpResponse.builder().statusCode(429).build();
+
+    limiter.call(
+        "getMetricData",
+        () -> {
+          interceptor.afterTransmission(afterTransmission(throttled), credentialRefresh);
+          assertThat(limiter.getLimit()).isEqualTo(2);
+          interceptor.afterTransmission(afterTransmission(throttled), getMetricData);
+          assertThat(limiter.getLimit()).isEqualTo(1);
+          return null;
+        });
+  }
+
+  @Test
+  void detectsThrottlingFromErrorTypeHeaders() {
+    assertThat(
+            SdkMetricsInterceptor.isThrottled(
+                SdkHttpResponse.builder()
+                    .statusCode(400)
+                    .putHeader("x-amzn-query-error", "Throttling;Sender")
+                    .build()))
+        .isTrue();
+    assertThat(
+            SdkMetricsInterceptor.isThrottled(
+                SdkHttpResponse.builder()
+                    .statusCode(400)
+                    .putHeader("x-amzn-ErrorType", "ThrottlingException:http://internal/")
+                    .build()))
+        .isTrue();
+    assertThat(
+            SdkMetricsInterceptor.isThrottled(
+                SdkHttpResponse.builder()
+                    .statusCode(400)
+                    .putHeader("x-amzn-ErrorType", "InvalidParameterValue")
+                    .build()))
+        .isFalse();
+  }
+
+  private ExecutionAttributes attributes(String operation) {
+    ExecutionAttributes attributes = new ExecutionAttributes();
+    attributes.putAttribute(SdkExecutionAttribute.SERVICE_NAME, "CloudWatch");
+    attributes.putAttribute(SdkExecutionAttribute.OPERATION_NAME, operation);
+    return attributes;
+  }
+
+  private Context.BeforeTransmission beforeTransmission() {
+    Context.BeforeTransmission context = mock(Context.BeforeTransmission.class);
+    when(context.httpRequest()).thenReturn(request());
+    when(context.requestBody()).thenReturn(Optional.empty());
+    return context;
+  }
+
+  private Context.AfterTransmission afterTransmission(SdkHttpResponse response) {
+    Context.AfterTransmission context = mock(Context.AfterTransmission.class);
+    when(context.httpRequest()).thenReturn(request());
+    when(context.httpResponse()).thenReturn(response);
+    return context;
+  }
+
+  private SdkHttpRequest request() {
+    return SdkHttpRequest.builder()
+        .method(SdkHttpMethod.POST)
+        .uri(URI.create("https://monitoring.eu-west-1.amazonaws.com/"))
+        .putHeader("Content-Length", "42")
+        .build();
+  }
+
+  private double value(String name, String operation) {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            name, LABELS, new String[] {"CloudWatch", operation});
+    return value == null ? 0 : value;
+  }
+}
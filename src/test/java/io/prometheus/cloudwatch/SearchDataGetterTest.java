@@ -0,0 +1,162 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.cloudwatch.DimensionSource.DimensionData;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+class SearchDataGetterTest {
+
+  @Test
+  void searchExpressionKeepsToTheRuleDimensionsAndSelection() {
+    MetricRule rule = rule();
+    rule.awsDimensionSelect = Map.of("InstanceType", List.of("m5.large", "c5.large"));
+
+    assertThat(SearchDataGetter.searchExpression(rule, "Average"))
+        .isEqualTo(
+            "SEARCH('{\"AWS/EC2\",\"InstanceId\",\"InstanceType\"} MetricName=\"CPUUtilization\""
+                + " (\"InstanceType\"=\"m5.large\" OR \"InstanceType\"=\"c5.large\")',"
+                + " 'Average', 60)");
+  }
+
+  @Test
+  void rebuildsDimensionSetsFromPagedResults() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    Instant newest = Instant.parse("2024-01-01T00:01:00Z");
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    result("Average/InstanceId=i-1,InstanceType=m5.large", newest, 1.0),
+                    result("Average/InstanceId=i-2,InstanceType=t3.micro", newest, 2.0),
+                    result("Average/garbage", newest, 3.0))
+                .nextToken("page2")
+                .build())
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    result(
+                        "Average/InstanceId=i-1,InstanceType=m5.large",
+                        newest.minusSeconds(60),
+                        9.0))
+                .build());
+    MetricRule rule = rule();
+    rule.awsDimensionSelectRegex = Map.of("InstanceType", List.of("m5\\..*"));
+
+    SearchDataGetter getter =
+        new SearchDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("search_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            newest.plusSeconds(600).toEpochMilli(),
+            rule,
+            counter("search_api_requests"),
+            counter("search_metrics_requested"),
+            List.of());
+
+    ArgumentCaptor<GetMetricDataRequest> requests =
+        ArgumentCaptor.forClass(GetMetricDataRequest.class);
+    verify(client, times(2)).getMetricData(requests.capture());
+    assertThat(requests.getAllValues().get(0).metricDataQueries().get(0).label())
+        .isEqualTo(
+            "Average/InstanceId=${PROP('Dim.InstanceId')},InstanceType=${PROP('Dim.InstanceType')}");
+    assertThat(requests.getAllValues().get(1).nextToken()).isEqualTo("page2");
+
+    List<Dimension> expected =
+        List.of(
+            Dimension.builder().name("InstanceId").value("i-1").build(),
+            Dimension.builder().name("InstanceType").value("m5.large").build());
+    DimensionData dimensionData = getter.getDimensionData();
+    assertThat(dimensionData.getDimensions()).containsExactly(expected);
+    DataGetter.MetricRuleData data = getter.metricRuleDataFor(expected);
+    assertThat(data.timestamp).isEqualTo(newest);
+    assertThat(data.statisticValues).containsExactly(Map.entry(Statistic.AVERAGE, 1.0));
+  }
+
+  @Test
+  void keepsMaxSeriesAndStopsPagingOnceMoreWereFound() {
+    CloudWatchClient client = mock(CloudWatchClient.class);
+    Instant newest = Instant.parse("2024-01-01T00:01:00Z");
+    when(client.getMetricData(any(GetMetricDataRequest.class)))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    result("Average/InstanceId=i-2,InstanceType=m5.large", newest, 2.0),
+                    result("Average/InstanceId=i-1,InstanceType=m5.large", newest, 1.0))
+                .nextToken("page2")
+                .build());
+    MetricRule rule = rule();
+    rule.maxSeries = 1;
+
+    SearchDataGetter getter =
+        new SearchDataGetter(
+            client,
+            new ApiCallRunner(
+                Histogram.build()
+                    .name("search_max_series_api_request_duration")
+                    .help("duration")
+                    .labelNames("action", "namespace")
+                    .create(),
+                new AdaptiveConcurrencyLimiter(1, 1)),
+            newest.plusSeconds(600).toEpochMilli(),
+            rule,
+            counter("search_max_series_api_requests"),
+            counter("search_max_series_metrics_requested"),
+            List.of());
+
+    verify(client, times(1)).getMetricData(any(GetMetricDataRequest.class));
+    List<Dimension> kept =
+        List.of(
+            Dimension.builder().name("InstanceId").value("i-1").build(),
+            Dimension.builder().name("InstanceType").value("m5.large").build());
+    DimensionData dimensionData = getter.getDimensionData();
+    assertThat(dimensionData.getDimensions()).containsExactly(kept);
+    assertThat(dimensionData.getDroppedSeries()).isEqualTo(1);
+    assertThat(getter.metricRuleDataFor(dimensionData, 0).statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 1.0));
+  }
+
+  private static MetricRule rule() {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = "CPUUtilization";
+    rule.awsDimensions = List.of("InstanceId", "InstanceType");
+    rule.awsStatistics = List.of(Statistic.AVERAGE);
+    rule.periodSeconds = 60;
+    rule.rangeSeconds = 600;
+    rule.delaySeconds = 600;
+    rule.useGetMetricData = true;
+    rule.searchDimensions = true;
+    return rule;
+  }
+
+  private static MetricDataResult result(String label, Instant timestamp, double value) {
+    return MetricDataResult.builder().label(label).timestamps(timestamp).values(value).build();
+  }
+
+  private static Counter counter(String name) {
+    return Counter.build().name(name).help(name).labelNames("a", "b").create();
+  }
+}
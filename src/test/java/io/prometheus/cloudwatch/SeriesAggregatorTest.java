@@ -0,0 +1,99 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+class SeriesAggregatorTest {
+
+  @Test
+  void averagesEachStatisticOverTheSeriesThatHaveIt() {
+    SeriesAggregator aggregator =
+        new SeriesAggregator(Set.of("AvailabilityZone"), SeriesAggregator.Function.AVG);
+    aggregator.add(null, dimensions("a", "i-1"), data(Instant.ofEpochSecond(60), 1.0, 10.0));
+    aggregator.add(null, dimensions("a", "i-2"), data(Instant.ofEpochSecond(120), 3.0, null));
+    aggregator.add(null, dimensions("b", "i-3"), data(Instant.ofEpochSecond(60), 7.0, null));
+
+    List<SeriesAggregator.Group> groups = aggregator.groups();
+
+    assertThat(groups).hasSize(2);
+    SeriesAggregator.Group first = groups.get(0);
+    assertThat(first.dimensions)
+        .containsExactly(Dimension.builder().name("AvailabilityZone").value("a").build());
+    assertThat(first.data.timestamp).isEqualTo(Instant.ofEpochSecond(120));
+    assertThat(first.data.statisticValues).containsExactly(Map.entry(Statistic.AVERAGE, 2.0));
+    assertThat(first.data.extendedValues).containsExactly(Map.entry("p99", 10.0));
+    assertThat(groups.get(1).data.statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 7.0));
+  }
+
+  @Test
+  void countsTheSeriesOfEachGroup() {
+    SeriesAggregator aggregator = new SeriesAggregator(Set.of(), SeriesAggregator.Function.COUNT);
+    aggregator.add(null, dimensions("a", "i-1"), data(Instant.ofEpochSecond(60), 1.0, null));
+    aggregator.add(null, dimensions("b", "i-2"), data(Instant.ofEpochSecond(60), 5.0, null));
+
+    List<SeriesAggregator.Group> groups = aggregator.groups();
+
+    assertThat(groups).hasSize(1);
+    assertThat(groups.get(0).dimensions).isEmpty();
+    assertThat(groups.get(0).data.statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 2.0));
+  }
+
+  @Test
+  void groupsCanBeReadMoreThanOnce() {
+    SeriesAggregator aggregator =
+        new SeriesAggregator(Set.of("AvailabilityZone"), SeriesAggregator.Function.AVG);
+    aggregator.add(null, dimensions("a", "i-1"), data(Instant.ofEpochSecond(60), 1.0, null));
+    aggregator.add(null, dimensions("a", "i-2"), data(Instant.ofEpochSecond(60), 3.0, null));
+
+    aggregator.groups();
+    aggregator.add(null, dimensions("a", "i-3"), data(Instant.ofEpochSecond(60), 5.0, null));
+
+    assertThat(aggregator.groups().get(0).data.statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 3.0));
+    assertThat(aggregator.groups().get(0).data.statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 3.0));
+  }
+
+  @Test
+  void groupsSeriesWhateverTheOrderOfTheirDimensions() {
+    SeriesAggregator aggregator =
+        new SeriesAggregator(
+            Set.of("AvailabilityZone", "InstanceType"), SeriesAggregator.Function.SUM);
+    Dimension zone = Dimension.builder().name("AvailabilityZone").value("a").build();
+    Dimension type = Dimension.builder().name("InstanceType").value("m5.large").build();
+    aggregator.add(null, List.of(zone, type), data(Instant.ofEpochSecond(60), 1.0, null));
+    aggregator.add(null, List.of(type, zone), data(Instant.ofEpochSecond(60), 2.0, null));
+
+    List<SeriesAggregator.Group> groups = aggregator.groups();
+
+    assertThat(groups).hasSize(1);
+    assertThat(groups.get(0).dimensions).containsExactly(zone, type);
+    assertThat(groups.get(0).data.statisticValues)
+        .containsExactly(Map.entry(Statistic.AVERAGE, 3.0));
+  }
+
+  private static List<Dimension> dimensions(String availabilityZone, String instanceId) {
+    return List.of(
+        Dimension.builder().name("AvailabilityZone").value(availabilityZone).build(),
+        Dimension.builder().name("InstanceId").value(instanceId).build());
+  }
+
+  private static MetricRuleData data(Instant timestamp, double average, Double p99) {
+    MetricRuleData data = new MetricRuleData(timestamp, "Percent");
+    data.statisticValues.put(Statistic.AVERAGE, average);
+    if (p99 != null) {
+      data.extendedValues.put("p99", p99);
+    }
+    return data;
+  }
+}
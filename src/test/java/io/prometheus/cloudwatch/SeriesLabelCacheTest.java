@@ -0,0 +1,91 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.prometheus.cloudwatch.SeriesLabelCache.SeriesLabels;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+class SeriesLabelCacheTest {
+
+  private final AtomicInteger builds = new AtomicInteger();
+
+  @Test
+  void reusesLabelsOfSeriesFoundAgain() {
+    SeriesLabelCache cache = new SeriesLabelCache();
+    MetricRule rule = rule("RequestCount");
+
+    SeriesLabelCache.RuleSeries first = cache.begin(rule);
+    SeriesLabels labels = labels(first, null, dimensions("lb-a"));
+    first.commit();
+    SeriesLabelCache.RuleSeries second = cache.begin(rule);
+    SeriesLabels reused = labels(second, null, dimensions("lb-a"));
+    labels(second, "111111111111", dimensions("lb-a"));
+    second.commit();
+
+    assertThat(reused).isSameAs(labels);
+    assertThat(builds).hasValue(2);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  void forgetsSeriesMissingFromTheLastScrapeAndRulesNoLongerConfigured() {
+    SeriesLabelCache cache = new SeriesLabelCache();
+    MetricRule kept = rule("RequestCount");
+    MetricRule removed = rule("Latency");
+
+    SeriesLabelCache.RuleSeries first = cache.begin(kept);
+    labels(first, null, dimensions("lb-a"));
+    labels(first, null, dimensions("lb-b"));
+    first.commit();
+    SeriesLabelCache.RuleSeries second = cache.begin(kept);
+    labels(second, null, dimensions("lb-a"));
+    second.commit();
+    SeriesLabelCache.RuleSeries other = cache.begin(removed);
+    labels(other, null, dimensions("lb-a"));
+    other.commit();
+    cache.retainRules(List.of(rule("RequestCount")));
+
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  void rebuildsLabelsOfSeriesWithACollidingHash() {
+    SeriesLabelCache cache = new SeriesLabelCache();
+    MetricRule rule = rule("RequestCount");
+
+    SeriesLabelCache.RuleSeries first = cache.begin(rule);
+    SeriesLabels labels =
+        first.labels(DimensionFingerprint.withHash(null, dimensions("lb-a"), 4, 2), this::build);
+    first.commit();
+    SeriesLabelCache.RuleSeries second = cache.begin(rule);
+    SeriesLabels collided =
+        second.labels(DimensionFingerprint.withHash(null, dimensions("lb-b"), 4, 2), this::build);
+
+    assertThat(collided).isNotSameAs(labels);
+    assertThat(builds).hasValue(2);
+  }
+
+  private SeriesLabels labels(
+      SeriesLabelCache.RuleSeries series, String owningAccount, List<Dimension> dimensions) {
+    return series.labels(DimensionFingerprint.of(owningAccount, dimensions), this::build);
+  }
+
+  private SeriesLabels build() {
+    builds.incrementAndGet();
+    return new SeriesLabels(List.of("job"), List.of("aws_elb"));
+  }
+
+  private List<Dimension> dimensions(String loadBalancer) {
+    return List.of(Dimension.builder().name("LoadBalancerName").value(loadBalancer).build());
+  }
+
+  private MetricRule rule(String metricName) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ELB";
+    rule.awsMetricName = metricName;
+    return rule;
+  }
+}
@@ -0,0 +1,71 @@
+package io.prometheus.cloudwatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+class ShardTest {
+
+  @Test
+  void everyRuleBelongsToExactlyOneShard() {
+    List<Shard> shards = List.of(new Shard(0, 3), new Shard(1, 3), new Shard(2, 3));
+    for (int i = 0; i < 100; i++) {
+      MetricRule rule = rule("Metric" + i);
+      assertThat(shards.stream().filter(shard -> shard.ownsRule(rule))).hasSize(1);
+    }
+  }
+
+  @Test
+  void seriesOfRulesShardedBySeriesAreSplitAcrossShards() {
+    List<Shard> shards = List.of(new Shard(0, 3), new Shard(1, 3), new Shard(2, 3));
+    MetricRule rule = rule("CPUUtilization");
+    rule.shardSeries = true;
+
+    assertThat(shards).allMatch(shard -> shard.ownsRule(rule));
+    int[] owned = new int[3];
+    for (int i = 0; i < 300; i++) {
+      List<Dimension> series =
+          List.of(Dimension.builder().name("InstanceId").value("i-" + i).build());
+      List<Integer> owners =
+          IntStream.range(0, 3)
+              .filter(s -> shards.get(s).ownsSeries(rule, series, null))
+              .boxed()
+              .toList();
+      assertThat(owners).hasSize(1);
+      owned[owners.get(0)]++;
+    }
+    for (int count : owned) {
+      assertThat(count).isGreaterThan(50);
+    }
+  }
+
+  @Test
+  void seriesKeyDoesNotDependOnDimensionOrder() {
+    MetricRule rule = rule("RequestCount");
+    rule.shardSeries = true;
+    Dimension a = Dimension.builder().name("A").value("1").build();
+    Dimension b = Dimension.builder().name("B").value("2").build();
+    for (int index = 0; index < 4; index++) {
+      Shard shard = new Shard(index, 4);
+      assertThat(shard.ownsSeries(rule, List.of(a, b), null))
+          .isEqualTo(shard.ownsSeries(rule, List.of(b, a), null));
+    }
+  }
+
+  @Test
+  void rejectsIndexOutsideOfCount() {
+    assertThatThrownBy(() -> new Shard(2, 2)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new Shard(0, 0)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private MetricRule rule(String metricName) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = metricName;
+    return rule;
+  }
+}